@@ -0,0 +1,211 @@
+package org.fdroid.fdroid;
+
+import static android.os.Build.VERSION_CODES.LOLLIPOP_MR1;
+import static com.google.common.truth.Truth.assertThat;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.fdroid.fdroid.data.Apk;
+import org.fdroid.fdroid.data.App;
+import org.fdroid.fdroid.data.IndexV1Reader;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Measures verifying and parsing a signed, 20 MB {@code index-v1.json} the way
+ * {@link IndexV1Updater#processDownloadedIndex} reads it.  The apps in that index are
+ * made up, and very repetitive so that the jar stays small, so only the timings
+ * relative to each other mean something.
+ * <p>
+ * This is not part of the normal unit tests, it only gets built with
+ * {@code ./gradlew testDebugUnitTest -Pbenchmark --tests '*BenchmarkTest'}.  Each
+ * variant is its own test, so the time it took is in the Gradle test report.  The
+ * "verify and parse" tests also print the throughput of their fastest round, in bytes of
+ * the uncompressed {@code index-v1.json} per second.
+ * <p>
+ * "buffered" is how it used to be read, with a {@link BufferedInputStream} between the
+ * verifying stream and the parser, "direct" is {@link ProgressInputStream}, where the
+ * parser's buffer is the only one.  Nothing is written to the database, so this only
+ * covers inflating, digesting and tokenizing.
+ * <p>
+ * The "read" tests compare Jackson's databinding with {@link IndexV1Reader} on a made
+ * up index of 10000 apps, without any jar around it.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {LOLLIPOP_MR1})
+public class IndexParsingBenchmarkTest {
+    private static final int ROUNDS = 3;
+
+    @Test
+    public void verifyAndParseBuffered() throws IOException, IndexUpdater.SigningException {
+        verifyAndParse(true);
+    }
+
+    @Test
+    public void verifyAndParseDirect() throws IOException, IndexUpdater.SigningException {
+        verifyAndParse(false);
+    }
+
+    @Test
+    public void readWithDatabinding() throws IOException {
+        readAppsAndApks(true);
+    }
+
+    @Test
+    public void readWithIndexV1Reader() throws IOException {
+        readAppsAndApks(false);
+    }
+
+    private static void verifyAndParse(boolean buffered) throws IOException, IndexUpdater.SigningException {
+        File index = TestUtils.copyResourceToTempFile("index-v1_20mb.jar");
+        try {
+            long best = Long.MAX_VALUE;
+            long size = 0;
+            for (int i = 0; i <= ROUNDS; i++) {
+                long start = System.nanoTime();
+                size = verifyAndParse(index, buffered);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            System.out.println(String.format(Locale.ENGLISH,
+                    "%s: %d bytes in %d ms, %.0f bytes/s (best of %d)",
+                    buffered ? "buffered" : "direct", size, best / 1000000,
+                    size * 1e9 / best, ROUNDS + 1));
+        } finally {
+            index.delete();
+        }
+    }
+
+    private static void readAppsAndApks(boolean databinding) throws IOException {
+        byte[] index = createIndex(10000);
+        for (int i = 0; i <= ROUNDS; i++) {
+            readAppsAndApks(index, databinding);
+        }
+    }
+
+    private static void readAppsAndApks(byte[] index, boolean databinding) throws IOException {
+        ObjectMapper mapper = IndexV1Updater.getObjectMapperInstance(1);
+        IndexV1Reader reader = new IndexV1Reader(1);
+        TypeReference<List<Apk>> typeRef = new TypeReference<List<Apk>>() {
+        };
+        JsonParser parser = mapper.getFactory().createParser(index);
+        int apps = 0;
+        int apks = 0;
+        parser.nextToken();
+        String fieldName;
+        while ((fieldName = parser.nextFieldName()) != null) {
+            parser.nextToken();
+            if ("apps".equals(fieldName)) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    App app = databinding ? mapper.readValue(parser, App.class) : reader.readApp(parser);
+                    apps += app.packageName == null ? 0 : 1;
+                }
+            } else if ("packages".equals(fieldName)) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String packageName = parser.getCurrentName();
+                    parser.nextToken();
+                    List<Apk> list = databinding
+                            ? mapper.readValue(parser, typeRef) : reader.readApks(parser, packageName);
+                    apks += list.size();
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        parser.close();
+        assertThat(apps).isEqualTo(10000);
+        assertThat(apks).isEqualTo(30000);
+    }
+
+    private static byte[] createIndex(int appCount) {
+        StringBuilder json = new StringBuilder("{\"repo\": {\"timestamp\": 1600000000000, \"version\": 21},");
+        json.append(" \"apps\": [");
+        for (int i = 0; i < appCount; i++) {
+            String packageName = "org.example.app" + i;
+            json.append(i == 0 ? "" : ",").append("{\"packageName\": \"").append(packageName)
+                    .append("\", \"name\": \"App ").append(i)
+                    .append("\", \"summary\": \"The app number ").append(i)
+                    .append("\", \"description\": \"A longer description of this app, which spans a few lines.\\n")
+                    .append("It would be much longer in a real index.\", \"license\": \"GPL-3.0-or-later\",")
+                    .append(" \"categories\": [\"System\", \"Development\"], \"suggestedVersionCode\": \"3\",")
+                    .append(" \"webSite\": \"https://example.com/").append(packageName)
+                    .append("\", \"added\": 1500000000000, \"lastUpdated\": 1600000000000,")
+                    .append(" \"localized\": {\"en-US\": {\"summary\": \"The app number ").append(i)
+                    .append("\", \"phoneScreenshots\": [\"1.png\", \"2.png\"]}, \"de\": {\"summary\": \"Die App ")
+                    .append(i).append("\"}}}");
+        }
+        json.append("], \"packages\": {");
+        for (int i = 0; i < appCount; i++) {
+            String packageName = "org.example.app" + i;
+            json.append(i == 0 ? "" : ",").append("\"").append(packageName).append("\": [");
+            for (int versionCode = 1; versionCode <= 3; versionCode++) {
+                json.append(versionCode == 1 ? "" : ",").append("{\"added\": 1600000000000, \"apkName\": \"")
+                        .append(packageName).append('_').append(versionCode)
+                        .append(".apk\", \"hash\": \"0123456789abcdef0123456789abcdef\", \"hashType\": \"sha256\",")
+                        .append(" \"minSdkVersion\": 14, \"targetSdkVersion\": 28, \"packageName\": \"")
+                        .append(packageName).append("\", \"sig\": \"9063aaadfff9cfd811a9c72fb5012f28\",")
+                        .append(" \"size\": 1000000, \"versionCode\": ").append(versionCode)
+                        .append(", \"versionName\": \"1.").append(versionCode).append("\",")
+                        .append(" \"nativecode\": [\"arm64-v8a\", \"armeabi-v7a\"],")
+                        .append(" \"uses-permission\": [[\"android.permission.INTERNET\", null],")
+                        .append(" [\"android.permission.WRITE_EXTERNAL_STORAGE\", 18]]}");
+            }
+            json.append(']');
+        }
+        json.append("}}");
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the size of the uncompressed {@code index-v1.json}
+     */
+    private static long verifyAndParse(File index, boolean buffered)
+            throws IOException, IndexUpdater.SigningException {
+        JarFile jarFile = new JarFile(index, true);
+        try {
+            JarEntry entry = (JarEntry) jarFile.getEntry(IndexV1Updater.DATA_FILE_NAME);
+            InputStream inputStream = jarFile.getInputStream(entry);
+            if (buffered) {
+                inputStream = new BufferedInputStream(inputStream);
+            } else {
+                inputStream = new ProgressInputStream(inputStream, null, null, (int) entry.getSize());
+            }
+            JsonParser parser = new JsonFactory().createParser(inputStream);
+            int strings = 0;
+            JsonToken token;
+            while ((token = parser.nextToken()) != null) {
+                if (token == JsonToken.VALUE_STRING && parser.getText() != null) {
+                    strings++;
+                }
+            }
+            parser.close();
+            X509Certificate certificate = IndexUpdater.getSigningCertFromJar(entry);
+            assertThat(strings).isGreaterThan(0);
+            assertThat(HashingUtils.hex(certificate.getEncoded())).isNotEmpty();
+            assertThat(entry.getSize()).isGreaterThan(0L);
+            return entry.getSize();
+        } catch (CertificateEncodingException e) {
+            throw new AssertionError(e);
+        } finally {
+            jarFile.close();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package org.fdroid.fdroid.data;
+
+import static android.os.Build.VERSION_CODES.LOLLIPOP_MR1;
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContextWrapper;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.fdroid.fdroid.TestUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Measures writing the same apps and apks to the temp tables through {@link TempTableBulkWriter}
+ * and through {@link ContentProviderOperation} batches on {@link TempAppProvider} and
+ * {@link TempApkProvider}, which is how {@link RepoPersister} used to do it.
+ * {@link TempTableBulkWriterTest} checks that both write the same rows.
+ * <p>
+ * This is not part of the normal unit tests, it only gets built with
+ * {@code ./gradlew testDebugUnitTest -Pbenchmark --tests '*BenchmarkTest'}.  Robolectric's
+ * SQLite is not a phone, so only the ratio between the two numbers means anything.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {LOLLIPOP_MR1})
+public class TempTableBulkWriterBenchmarkTest {
+    private static final int ROUNDS = 3;
+    private static final int APP_COUNT = 2000;
+    private static final int APKS_PER_APP = 5;
+
+    private ContextWrapper context;
+    private Repo repo;
+
+    @Before
+    public void setUp() {
+        ContentResolver contentResolver = ApplicationProvider.getApplicationContext().getContentResolver();
+        context = TestUtils.createContextWithContentResolver(contentResolver);
+        TestUtils.registerContentProvider(AppProvider.getAuthority(), AppProvider.class);
+        repo = IndexUpdaterTest.createRepo("Bulk", "https://example.com/bulk/repo", context, null);
+    }
+
+    @Test
+    public void writeThroughContentProviders() throws Exception {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i <= ROUNDS; i++) {
+            TempAppProvider.Helper.init(context, repo.getId());
+            long start = System.nanoTime();
+            ArrayList<ContentProviderOperation> appOperations = new ArrayList<>();
+            for (App app : createApps()) {
+                appOperations.add(ContentProviderOperation.newInsert(TempAppProvider.getContentUri())
+                        .withValues(app.toContentValues()).build());
+            }
+            context.getContentResolver().applyBatch(TempAppProvider.getAuthority(), appOperations);
+            ArrayList<ContentProviderOperation> apkOperations = new ArrayList<>();
+            for (List<Apk> apks : createApks(getAppIds()).values()) {
+                for (Apk apk : apks) {
+                    apkOperations.add(ContentProviderOperation.newInsert(TempApkProvider.getContentUri())
+                            .withValues(apk.toContentValues()).build());
+                }
+            }
+            context.getContentResolver().applyBatch(TempApkProvider.getAuthority(), apkOperations);
+            best = Math.min(best, System.nanoTime() - start);
+            assertRowCounts();
+        }
+        report("ContentProvider batches", best);
+    }
+
+    @Test
+    public void writeWithBulkWriter() {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i <= ROUNDS; i++) {
+            TempAppProvider.Helper.init(context, repo.getId());
+            long start = System.nanoTime();
+            TempTableBulkWriter writer = new TempTableBulkWriter(context);
+            Map<String, Long> appIds = writer.insertApps(createApps());
+            writer.insertApks(createApks(appIds));
+            writer.close();
+            best = Math.min(best, System.nanoTime() - start);
+            assertRowCounts();
+        }
+        report("TempTableBulkWriter", best);
+    }
+
+    private static void report(String variant, long nanos) {
+        System.out.println(String.format(Locale.ENGLISH,
+                "%s: %d apps with %d apks in %d ms (best of %d)",
+                variant, APP_COUNT, APP_COUNT * APKS_PER_APP, nanos / 1000000, ROUNDS + 1));
+    }
+
+    private void assertRowCounts() {
+        SQLiteDatabase db = DBHelper.getInstance(context).getWritableDatabase();
+        assertThat(DatabaseUtils.queryNumEntries(db, TempAppProvider.TABLE_TEMP_APP)).isEqualTo(APP_COUNT);
+        assertThat(DatabaseUtils.queryNumEntries(db, TempApkProvider.TABLE_TEMP_APK))
+                .isEqualTo(APP_COUNT * APKS_PER_APP);
+    }
+
+    private List<App> createApps() {
+        List<App> apps = new ArrayList<>(APP_COUNT);
+        for (int i = 0; i < APP_COUNT; i++) {
+            App app = new App();
+            app.packageName = "org.example.app" + i;
+            app.repoId = repo.getId();
+            app.name = "App " + i;
+            app.summary = "Summary of app " + i;
+            app.license = "GPL-3.0-or-later";
+            app.webSite = "https://example.com/" + i;
+            app.added = new Date(1600000000000L);
+            app.lastUpdated = new Date(1600000000000L + i);
+            app.categories = new String[]{"Development", i % 2 == 0 ? "Games" : "Internet"};
+            apps.add(app);
+        }
+        return apps;
+    }
+
+    private Map<String, List<Apk>> createApks(Map<String, Long> appIds) {
+        Map<String, List<Apk>> apksByPackage = new LinkedHashMap<>(APP_COUNT);
+        for (int i = 0; i < APP_COUNT; i++) {
+            String packageName = "org.example.app" + i;
+            List<Apk> apks = new ArrayList<>(APKS_PER_APP);
+            for (int versionCode = 1; versionCode <= APKS_PER_APP; versionCode++) {
+                Apk apk = new Apk();
+                apk.packageName = packageName;
+                apk.appId = appIds.get(packageName);
+                apk.repoId = repo.getId();
+                apk.versionCode = versionCode;
+                apk.versionName = "1." + versionCode;
+                apk.apkName = packageName + "_" + versionCode + ".apk";
+                apk.hash = "abcdef" + i + versionCode;
+                apk.hashType = "sha256";
+                apk.sig = "0123456789abcdef";
+                apk.size = 1024 * i;
+                apk.minSdkVersion = 14;
+                apk.added = new Date(1600000000000L);
+                apk.requestedPermissions = new String[]{"android.permission.INTERNET"};
+                apk.antiFeatures = versionCode == 1 ? new String[]{"Ads"} : null;
+                apks.add(apk);
+            }
+            apksByPackage.put(packageName, apks);
+        }
+        return apksByPackage;
+    }
+
+    private Map<String, Long> getAppIds() {
+        SQLiteDatabase db = DBHelper.getInstance(context).getWritableDatabase();
+        Map<String, Long> ids = new HashMap<>();
+        Cursor cursor = db.rawQuery("SELECT app.rowid, pkg.packageName FROM "
+                + TempAppProvider.TABLE_TEMP_APP + " AS app JOIN " + Schema.PackageTable.NAME
+                + " AS pkg ON (pkg.rowid = app.packageId)", null);
+        while (cursor.moveToNext()) {
+            ids.put(cursor.getString(1), cursor.getLong(0));
+        }
+        cursor.close();
+        return ids;
+    }
+}
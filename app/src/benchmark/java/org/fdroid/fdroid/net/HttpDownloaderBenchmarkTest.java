@@ -0,0 +1,121 @@
+package org.fdroid.fdroid.net;
+
+import static android.os.Build.VERSION_CODES.LOLLIPOP_MR1;
+import static com.google.common.truth.Truth.assertThat;
+
+import android.net.Uri;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Measures how long {@link HttpDownloader} takes to fetch a changed index from a server
+ * which takes {@link #LATENCY_MILLIS} to answer each request, like a slow connection or
+ * Tor would.  "head then get" sends a {@code HEAD} request before the {@code GET}, the
+ * way {@link HttpDownloader#download()} used to check the {@code etag}, "single get"
+ * is how it does it now, by looking at the headers of the {@code GET} response.
+ * {@link HttpDownloaderTest} checks that only one request is sent.
+ * <p>
+ * This is not part of the normal unit tests, it only gets built with
+ * {@code ./gradlew testDebugUnitTest -Pbenchmark --tests '*BenchmarkTest'}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {LOLLIPOP_MR1})
+public class HttpDownloaderBenchmarkTest {
+    private static final int ROUNDS = 5;
+    private static final int LATENCY_MILLIS = 200;
+    private static final String ETAG = "\"5f6a1b2c-1000\"";
+    private static final byte[] BODY = new byte[1000000];
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+    private HttpServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.add(exchange.getRequestMethod());
+        try {
+            Thread.sleep(LATENCY_MILLIS);
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+        exchange.getResponseHeaders().add("ETag", ETAG);
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.getResponseHeaders().add("Content-Length", String.valueOf(BODY.length));
+            exchange.sendResponseHeaders(200, -1);
+        } else {
+            exchange.sendResponseHeaders(200, BODY.length);
+            OutputStream body = exchange.getResponseBody();
+            body.write(BODY);
+        }
+        exchange.close();
+    }
+
+    @Test
+    public void headThenGet() throws IOException, InterruptedException {
+        download(true);
+    }
+
+    @Test
+    public void singleGet() throws IOException, InterruptedException {
+        download(false);
+    }
+
+    private void download(boolean head) throws IOException, InterruptedException {
+        Uri uri = Uri.parse("http://127.0.0.1:" + server.getAddress().getPort() + "/repo/index-v1.jar");
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i <= ROUNDS; i++) {
+            requests.clear();
+            File outputFile = folder.newFile();
+            HttpDownloader downloader = new HttpDownloader(uri, outputFile);
+            downloader.setCacheTag("\"older\"");
+            long start = System.nanoTime();
+            if (head) {
+                HttpURLConnection connection = downloader.getConnection();
+                connection.setRequestMethod("HEAD");
+                assertThat(connection.getResponseCode()).isEqualTo(200);
+                connection.disconnect();
+            }
+            downloader.download();
+            best = Math.min(best, System.nanoTime() - start);
+            assertThat(downloader.hasChanged()).isTrue();
+            assertThat(outputFile.length()).isEqualTo(BODY.length);
+            assertThat(requests).hasSize(head ? 2 : 1);
+            outputFile.delete();
+        }
+        System.out.println(String.format(Locale.ENGLISH,
+                "%s: %d ms with %d ms latency per request (best of %d)",
+                head ? "HEAD then GET" : "single GET", best / 1000000, LATENCY_MILLIS, ROUNDS + 1));
+    }
+}
@@ -14,10 +14,13 @@ import org.fdroid.fdroid.compat.SupportedArchitectures;
 import org.fdroid.fdroid.data.Apk;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 // Call getIncompatibleReasons(apk) on an instance of this class to
 // find reasons why an apk may be incompatible with the user's device.
@@ -25,12 +28,53 @@ public class CompatibilityChecker {
 
     private static final String TAG = "Compatibility";
 
+    /**
+     * The reasons that {@link #getIncompatibleReasons(Apk)} can find.  They are stored as a
+     * bitmask of these, followed by the names of the missing features, e.g. {@code "9"} for
+     * an apk which needs a newer Android and has the wrong native code.  Everything else
+     * needed to describe them is stored with the {@link Apk} anyway, so the texts are only
+     * made when they are shown, see {@link #describeIncompatibleReasons(Context, Apk)}.
+     */
+    public static final int REASON_MIN_SDK = 1;
+    public static final int REASON_MAX_SDK = 2;
+    public static final int REASON_FEATURES = 4;
+    public static final int REASON_NATIVECODE = 8;
+
+    /**
+     * Stands in for {@code null} in {@link #reasonsByRequirements}.
+     */
+    private static final String COMPATIBLE = "";
+
+    private static CompatibilityChecker instance;
+
     private final Context context;
     private final Set<String> features;
     private final String[] cpuAbis;
     private final String cpuAbisDesc;
     private final boolean ignoreTouchscreen;
 
+    private final Set<String> cpuAbiSet = new HashSet<>();
+
+    /**
+     * The result of {@link #getIncompatibleReasons(Apk)} for each combination of the
+     * values it looks at.  Most apks of an index only use a handful of them.
+     */
+    private final Map<Requirements, String> reasonsByRequirements = new ConcurrentHashMap<>();
+
+    /**
+     * The features and ABIs of the device do not change, so this is reused for as long
+     * as the touchscreen preference stays the same.
+     */
+    public static synchronized CompatibilityChecker getInstance(Context context) {
+        boolean ignoreTouchscreen = PreferenceManager.getDefaultSharedPreferences(context)
+                .getBoolean(Preferences.PREF_IGN_TOUCH, false);
+        if (instance == null || instance.ignoreTouchscreen != ignoreTouchscreen
+                || instance.context != context.getApplicationContext()) {
+            instance = new CompatibilityChecker(context);
+        }
+        return instance;
+    }
+
     public CompatibilityChecker(Context ctx) {
 
         context = ctx.getApplicationContext();
@@ -46,18 +90,19 @@ public class CompatibilityChecker {
             if (featureArray != null) {
                 if (BuildConfig.DEBUG) {
                     StringBuilder logMsg = new StringBuilder("Available device features:");
-                    for (FeatureInfo fi : pm.getSystemAvailableFeatures()) {
+                    for (FeatureInfo fi : featureArray) {
                         logMsg.append('\n').append(fi.name);
                     }
                     Utils.debugLog(TAG, logMsg.toString());
                 }
-                for (FeatureInfo fi : pm.getSystemAvailableFeatures()) {
+                for (FeatureInfo fi : featureArray) {
                     features.add(fi.name);
                 }
             }
         }
 
         cpuAbis = SupportedArchitectures.getAbis();
+        Collections.addAll(cpuAbiSet, cpuAbis);
 
         StringBuilder builder = new StringBuilder();
         boolean first = true;
@@ -77,28 +122,38 @@ public class CompatibilityChecker {
             return true;
         }
 
-        for (final String cpuAbi : cpuAbis) {
-            for (String code : nativecode) {
-                if (code.equals(cpuAbi)) {
-                    return true;
-                }
+        for (String code : nativecode) {
+            if (cpuAbiSet.contains(code)) {
+                return true;
             }
         }
         return false;
     }
 
-    public List<String> getIncompatibleReasons(final Apk apk) {
+    /**
+     * @return the reasons why {@code apk} cannot be installed on this device, encoded as
+     * described at {@link #REASON_MIN_SDK}, or {@code null} if it can be installed.
+     */
+    @Nullable
+    public String getIncompatibleReasons(final Apk apk) {
+        Requirements requirements = new Requirements(apk);
+        String incompatibleReasons = reasonsByRequirements.get(requirements);
+        if (incompatibleReasons == null) {
+            incompatibleReasons = calcIncompatibleReasons(apk);
+            reasonsByRequirements.put(requirements, incompatibleReasons);
+        }
+        return COMPATIBLE.equals(incompatibleReasons) ? null : incompatibleReasons;
+    }
+
+    private String calcIncompatibleReasons(final Apk apk) {
 
-        List<String> incompatibleReasons = new ArrayList<>();
+        int reasons = 0;
+        StringBuilder missingFeatures = new StringBuilder();
 
         if (Build.VERSION.SDK_INT < apk.minSdkVersion) {
-            incompatibleReasons.add(context.getString(
-                    R.string.minsdk_or_later,
-                    Utils.getAndroidVersionName(apk.minSdkVersion)));
+            reasons |= REASON_MIN_SDK;
         } else if (Build.VERSION.SDK_INT > apk.maxSdkVersion) {
-            incompatibleReasons.add(context.getString(
-                    R.string.up_to_maxsdk,
-                    Utils.getAndroidVersionName(apk.maxSdkVersion)));
+            reasons |= REASON_MAX_SDK;
         }
 
         if (apk.features != null) {
@@ -107,19 +162,98 @@ public class CompatibilityChecker {
                     continue;
                 }
                 if (!features.contains(feat)) {
-                    Collections.addAll(incompatibleReasons, feat.split(","));
+                    reasons |= REASON_FEATURES;
+                    missingFeatures.append(',').append(feat);
                     Utils.debugLog(TAG, apk.packageName + " vercode " + apk.versionCode
                             + " is incompatible based on lack of " + feat);
                 }
             }
         }
         if (!compatibleApi(apk.nativecode)) {
-            Collections.addAll(incompatibleReasons, apk.nativecode);
+            reasons |= REASON_NATIVECODE;
             Utils.debugLog(TAG, apk.packageName + " vercode " + apk.versionCode
                     + " only supports " + TextUtils.join(", ", apk.nativecode)
                     + " while your architectures are " + cpuAbisDesc);
         }
 
-        return incompatibleReasons;
+        return reasons == 0 ? COMPATIBLE : reasons + missingFeatures.toString();
+    }
+
+    /**
+     * @return a text for each of the {@link Apk#incompatibleReasons} of {@code apk},
+     * in the current language.
+     */
+    public static List<String> describeIncompatibleReasons(Context context, Apk apk) {
+        List<String> descriptions = new ArrayList<>();
+        if (TextUtils.isEmpty(apk.incompatibleReasons)) {
+            return descriptions;
+        }
+        String[] parts = apk.incompatibleReasons.split(",");
+        int reasons;
+        try {
+            reasons = Integer.parseInt(parts[0]);
+        } catch (NumberFormatException e) {
+            // stored as texts, before the repo was updated with this version
+            Collections.addAll(descriptions, parts);
+            return descriptions;
+        }
+
+        if ((reasons & REASON_MIN_SDK) != 0) {
+            descriptions.add(context.getString(R.string.minsdk_or_later,
+                    Utils.getAndroidVersionName(apk.minSdkVersion)));
+        }
+        if ((reasons & REASON_MAX_SDK) != 0) {
+            descriptions.add(context.getString(R.string.up_to_maxsdk,
+                    Utils.getAndroidVersionName(apk.maxSdkVersion)));
+        }
+        if ((reasons & REASON_FEATURES) != 0) {
+            descriptions.addAll(Arrays.asList(parts).subList(1, parts.length));
+        }
+        if ((reasons & REASON_NATIVECODE) != 0 && apk.nativecode != null) {
+            Collections.addAll(descriptions, apk.nativecode);
+        }
+        return descriptions;
+    }
+
+    /**
+     * Everything from an {@link Apk} that {@link #calcIncompatibleReasons(Apk)} looks at.
+     * Since {@link org.fdroid.fdroid.data.IndexV1Reader} shares equal arrays, comparing
+     * them is mostly a matter of comparing references.
+     */
+    private static final class Requirements {
+        private final int minSdkVersion;
+        private final int maxSdkVersion;
+        private final String[] features;
+        private final String[] nativecode;
+        private final int hashCode;
+
+        Requirements(Apk apk) {
+            minSdkVersion = apk.minSdkVersion;
+            maxSdkVersion = apk.maxSdkVersion;
+            features = apk.features;
+            nativecode = apk.nativecode;
+            hashCode = 31 * (31 * (31 * minSdkVersion + maxSdkVersion) + Arrays.hashCode(features))
+                    + Arrays.hashCode(nativecode);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Requirements)) {
+                return false;
+            }
+            Requirements other = (Requirements) o;
+            return minSdkVersion == other.minSdkVersion
+                    && maxSdkVersion == other.maxSdkVersion
+                    && Arrays.equals(features, other.features)
+                    && Arrays.equals(nativecode, other.nativecode);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
     }
 }
@@ -24,11 +24,11 @@ import android.app.Application;
 import android.content.Context;
 import android.content.Intent;
 import android.content.res.Configuration;
+import android.os.Bundle;
+import android.os.Process;
 import android.os.StrictMode;
 import android.util.Log;
 
-import androidx.collection.LongSparseArray;
-
 import com.nostra13.universalimageloader.cache.disc.DiskCache;
 import com.nostra13.universalimageloader.cache.disc.impl.UnlimitedDiskCache;
 import com.nostra13.universalimageloader.cache.disc.impl.ext.LruDiskCache;
@@ -37,10 +37,10 @@ import com.nostra13.universalimageloader.core.ImageLoader;
 import com.nostra13.universalimageloader.core.ImageLoaderConfiguration;
 
 import org.fdroid.fdroid.Preferences.Theme;
+import org.fdroid.fdroid.data.App;
 import org.fdroid.fdroid.data.AppProvider;
 import org.fdroid.fdroid.data.InstalledAppProviderService;
-import org.fdroid.fdroid.data.Repo;
-import org.fdroid.fdroid.data.RepoProvider;
+import org.fdroid.fdroid.data.RepoPersister;
 import org.fdroid.fdroid.net.ImageLoaderForUIL;
 import org.ligi.tracedroid.TraceDroid;
 
@@ -123,50 +123,6 @@ public class FDroidApp extends Application {
         activity.overridePendingTransition(0, 0);
     }
 
-    public static int getTimeout() {
-        return timeout;
-    }
-
-    public static String getMirror(String urlString, long repoId) throws IOException {
-        return getMirror(urlString, RepoProvider.Helper.findById(getInstance(), repoId));
-    }
-
-    public static String getMirror(String urlString, Repo repo) throws IOException {
-        if (repo.hasMirrors()) {
-            String lastWorkingMirror = lastWorkingMirrorArray.get(repo.getId());
-            if (lastWorkingMirror == null) {
-                lastWorkingMirror = repo.address;
-            }
-            if (numTries <= 0) {
-                if (timeout == 10000) {
-                    timeout = 30000;
-                    numTries = Integer.MAX_VALUE;
-                } else if (timeout == 30000) {
-                    timeout = 60000;
-                    numTries = Integer.MAX_VALUE;
-                } else {
-                    Utils.debugLog(TAG, "Mirrors: Giving up");
-                    throw new IOException("Ran out of mirrors");
-                }
-            }
-            if (numTries == Integer.MAX_VALUE) {
-                numTries = repo.getMirrorCount();
-            }
-            String mirror = repo.getMirror(lastWorkingMirror);
-            if (mirror == null) {
-                throw new IOException("No mirrors available");
-            }
-            String newUrl = urlString.replace(lastWorkingMirror, mirror);
-            Utils.debugLog(TAG, "Trying mirror " + mirror + " after " + lastWorkingMirror + " failed," +
-                    " timeout=" + timeout / 1000 + "s");
-            lastWorkingMirrorArray.put(repo.getId(), mirror);
-            numTries--;
-            return newUrl;
-        } else {
-            throw new IOException("No mirrors available");
-        }
-    }
-
     @Override
     public void onCreate() {
         super.onCreate();
@@ -194,6 +150,8 @@ public class FDroidApp extends Application {
                 () -> AppProvider.Helper.calcSuggestedApks(context)
         );
 
+        registerActivityLifecycleCallbacks(new LocaleWatcher());
+
         CleanCacheService.schedule(this);
 
         UpdateService.schedule(getApplicationContext());
@@ -230,6 +188,63 @@ public class FDroidApp extends Application {
         configureTor(Preferences.get().isTorEnabled());
     }
 
+    /**
+     * All activities are created again when the language changes, whether in the system
+     * settings or in the preferences, so that is when the localized texts of the apps are
+     * picked again, off the UI thread.  Until that is done, the old texts are shown, and
+     * the lists are reloaded once it is.
+     */
+    private final class LocaleWatcher implements ActivityLifecycleCallbacks {
+        private String localeKey;
+
+        @Override
+        public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+            String current = App.getLocaleKey();
+            if (current.equals(localeKey)) {
+                return;
+            }
+            localeKey = current;
+            final Context context = getApplicationContext();
+            new Thread("UpdateLocalized") {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    AppProvider.Helper.updateLocalized(context);
+                }
+            }.start();
+        }
+
+        @Override
+        public void onActivityStarted(Activity activity) {
+        }
+
+        @Override
+        public void onActivityResumed(Activity activity) {
+        }
+
+        @Override
+        public void onActivityPaused(Activity activity) {
+        }
+
+        @Override
+        public void onActivityStopped(Activity activity) {
+        }
+
+        @Override
+        public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+        }
+
+        @Override
+        public void onActivityDestroyed(Activity activity) {
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        RepoPersister.onTrimMemory(level);
+    }
+
     /**
      * Return the number of threads Universal Image Loader should use, based on
      * the total RAM in the device.  Devices with lots of RAM can do lots of
@@ -245,19 +260,6 @@ public class FDroidApp extends Application {
         return 2;
     }
 
-    private static final LongSparseArray<String> lastWorkingMirrorArray = new LongSparseArray<>(1);
-    private static volatile int numTries = Integer.MAX_VALUE;
-    private static volatile int timeout = 10000;
-
-    public static void resetMirrorVars() {
-        // Reset last working mirror, numtries, and timeout
-        for (int i = 0; i < lastWorkingMirrorArray.size(); i++) {
-            lastWorkingMirrorArray.removeAt(i);
-        }
-        numTries = Integer.MAX_VALUE;
-        timeout = 10000;
-    }
-
     private static boolean useTor;
 
     /**
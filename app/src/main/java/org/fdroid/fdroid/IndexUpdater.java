@@ -32,6 +32,7 @@ import java.security.CodeSigner;
 import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
 import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.jar.JarEntry;
 
 /**
@@ -59,6 +60,13 @@ public abstract class IndexUpdater {
     final Repo repo;
     boolean hasChanged;
 
+    /**
+     * Indexes are parsed into temp tables which all repos share, so only one repo at a time
+     * may go from parsing its index to committing it.  Downloading is not covered by this,
+     * so other repos can keep downloading meanwhile, unless the index is parsed while it is
+     * being downloaded.
+     */
+    static final ReentrantLock PROCESS_INDEX_LOCK = new ReentrantLock();
 
     /**
      * Updates an app repo as read out of the database into a {@link Repo} instance.
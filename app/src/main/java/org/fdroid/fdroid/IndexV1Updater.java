@@ -26,21 +26,25 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.net.Uri;
 import android.text.TextUtils;
-import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.annotation.PropertyAccessor;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.InjectableValues;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.io.ByteStreams;
 
 import org.fdroid.fdroid.data.Apk;
 import org.fdroid.fdroid.data.App;
+import org.fdroid.fdroid.data.IndexV1Reader;
+import org.fdroid.fdroid.data.MirrorHealth;
 import org.fdroid.fdroid.data.Repo;
 import org.fdroid.fdroid.data.RepoPersister;
 import org.fdroid.fdroid.data.RepoProvider;
@@ -49,6 +53,7 @@ import org.fdroid.fdroid.net.Downloader;
 import org.fdroid.fdroid.net.DownloaderFactory;
 
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.ConnectException;
@@ -64,8 +69,11 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
+import java.util.jar.Manifest;
 
 import javax.net.ssl.SSLHandshakeException;
 import javax.net.ssl.SSLKeyException;
@@ -75,17 +83,18 @@ import javax.net.ssl.SSLProtocolException;
 /**
  * Receives the index data about all available apps and packages via the V1
  * JSON data {@link #DATA_FILE_NAME}, embedded in a signed jar
- * {@link #SIGNED_FILE_NAME}.  This uses the Jackson library to parse the JSON,
- * with {@link App} and {@link Apk} being instantiated directly from the JSON
- * by Jackson. This is possible but not wise to do with {@link Repo} since that
- * class has many fields that are related to security components of the
- * implementation internal to this app.
+ * {@link #SIGNED_FILE_NAME}.  This uses the Jackson streaming parser to read
+ * the JSON, with {@link App} and {@link Apk} being filled in by
+ * {@link IndexV1Reader}, which goes straight from the tokens to their fields.
+ * This is possible but not wise to do with {@link Repo} since that class has
+ * many fields that are related to security components of the implementation
+ * internal to this app.
  * <p>
- * All non-{@code public} fields and fields tagged with {@code @JsonIgnore} are
- * ignored. All methods are ignored unless they are tagged with {@code @JsonProperty}.
- * This setup prevents the situation where future developers add variables to the
- * App/Apk classes, resulting in malicious servers being able to populate those
- * variables.
+ * {@link IndexV1Reader} only sets the fields it explicitly lists, which are the
+ * {@code public} fields not tagged with {@code @JsonIgnore}, and the methods tagged
+ * with {@code @JsonProperty}.  This setup prevents the situation where future
+ * developers add variables to the App/Apk classes, resulting in malicious servers
+ * being able to populate those variables.
  */
 public class IndexV1Updater extends IndexUpdater {
     public static final String TAG = "IndexV1Updater";
@@ -93,6 +102,13 @@ public class IndexV1Updater extends IndexUpdater {
     public static final String SIGNED_FILE_NAME = "index-v1.jar";
     public static final String DATA_FILE_NAME = "index-v1.json";
 
+    /**
+     * The manifest attributes which jarsigner writes the digests of entries to, strongest first.
+     */
+    private static final String[] DIGEST_ATTRIBUTES = {
+            "SHA-512-Digest", "SHA-384-Digest", "SHA-256-Digest", "SHA1-Digest",
+    };
+
     public IndexV1Updater(@NonNull Context context, @NonNull Repo repo) {
         super(context, repo);
     }
@@ -108,65 +124,27 @@ public class IndexV1Updater extends IndexUpdater {
      * @see org.fdroid.fdroid.net.DownloaderService#handleIntent(android.content.Intent)
      */
     public boolean update() throws IndexUpdater.UpdateException {
+        // mirrors might not have the latest index yet, so the repo itself is always tried first
+        MirrorHealth.Failover failover = MirrorHealth.getFailover(context, repo, indexUrl, true);
         Downloader downloader = null;
         try {
-            // read file name from file
-            downloader = DownloaderFactory.create(context, indexUrl);
-            downloader.setCacheTag(repo.lastetag);
-            downloader.setListener(downloadListener);
-            downloader.download();
-            if (downloader.isNotFound()) {
-                return false;
-            }
-            hasChanged = downloader.hasChanged();
-
-            if (!hasChanged) {
-                return true;
-            }
-
-            processDownloadedIndex(downloader.outputFile, downloader.getCacheTag());
-        } catch (ConnectException | HttpRetryException | NoRouteToHostException | SocketTimeoutException
-                | SSLHandshakeException | SSLKeyException | SSLPeerUnverifiedException | SSLProtocolException
-                | ProtocolException | UnknownHostException e) {
-            // if the above list changes, also change below and in DownloaderService.handleIntent()
-            Utils.debugLog(TAG, "Trying to download the index from a mirror");
-            // Mirror logic here, so that the default download code is untouched.
-            String mirrorUrl;
-            String prevMirrorUrl = indexUrl;
-            FDroidApp.resetMirrorVars();
-            int n = repo.getMirrorCount() * 3; // 3 is the number of timeouts we have. 10s, 30s & 60s
-            for (int i = 0; i <= n; i++) {
+            while (true) {
+                String urlString = failover.next();
                 try {
-                    mirrorUrl = FDroidApp.getMirror(prevMirrorUrl, repo);
-                    prevMirrorUrl = mirrorUrl;
-                    downloader = DownloaderFactory.create(context, mirrorUrl);
-                    downloader.setCacheTag(repo.lastetag);
-                    downloader.setListener(downloadListener);
-                    downloader.setTimeout(FDroidApp.getTimeout());
-                    downloader.download();
-                    if (downloader.isNotFound()) {
+                    downloader = DownloaderFactory.create(context, urlString);
+                    downloader.setTimeout(failover.getTimeout());
+                    if (!downloadAndProcessIndex(downloader)) {
                         return false;
                     }
-                    hasChanged = downloader.hasChanged();
-
-                    if (!hasChanged) {
-                        return true;
-                    }
-
-                    processDownloadedIndex(downloader.outputFile, downloader.getCacheTag());
+                    MirrorHealth.onSuccess(context, repo.getId(), urlString,
+                            downloader.getConnectMillis(), downloader.getBytesPerSecond());
                     break;
                 } catch (ConnectException | HttpRetryException | NoRouteToHostException | SocketTimeoutException
                         | SSLHandshakeException | SSLKeyException | SSLPeerUnverifiedException | SSLProtocolException
-                        | ProtocolException | UnknownHostException e2) {
-                    // We'll just let this try the next mirror
-                    Utils.debugLog(TAG, "Trying next mirror");
-                } catch (IOException e2) {
-                    if (downloader != null) {
-                        downloader.outputFile.delete();
-                    }
-                    throw new IndexUpdater.UpdateException("Error getting index file", e2);
-                } catch (InterruptedException e2) {
-                    // ignored if canceled, the local database just won't be updated
+                        | ProtocolException | UnknownHostException e) {
+                    // if the above list changes, also change it in DownloaderService.handleIntent()
+                    MirrorHealth.onFailure(context, repo.getId(), urlString);
+                    Utils.debugLog(TAG, "Trying to download the index from a mirror");
                 }
             }
         } catch (IOException e) {
@@ -181,16 +159,194 @@ public class IndexV1Updater extends IndexUpdater {
         return true;
     }
 
+    /**
+     * If no other repo is being processed right now, the index is parsed into the temp tables
+     * while it is still downloading, so that neither the CPU nor the network sit idle waiting
+     * for the other.  Otherwise this would keep the connection open while waiting, so the
+     * index is saved to a file first, as it always used to be.
+     *
+     * @return {@code false} if the index was not found
+     */
+    private boolean downloadAndProcessIndex(Downloader downloader)
+            throws IOException, IndexUpdater.UpdateException, InterruptedException {
+        downloader.setCacheTag(repo.lastetag);
+        downloader.setListener(downloadListener);
+        if (PROCESS_INDEX_LOCK.tryLock()) {
+            try {
+                InputStream inputStream = downloader.downloadAsStream();
+                if (downloader.isNotFound()) {
+                    return false;
+                }
+                hasChanged = downloader.hasChanged();
+                if (inputStream != null) {
+                    try {
+                        processStreamedIndex(inputStream, downloader.getCacheTag());
+                    } finally {
+                        Utils.closeQuietly(inputStream);
+                    }
+                }
+                return true;
+            } finally {
+                PROCESS_INDEX_LOCK.unlock();
+                downloader.outputFile.delete();
+            }
+        }
+
+        downloader.download();
+        if (downloader.isNotFound()) {
+            return false;
+        }
+        hasChanged = downloader.hasChanged();
+        if (hasChanged) {
+            processDownloadedIndex(downloader.outputFile, downloader.getCacheTag());
+        }
+        return true;
+    }
+
     public void processDownloadedIndex(File outputFile, String cacheTag)
             throws IOException, IndexUpdater.UpdateException {
         JarFile jarFile = new JarFile(outputFile, true);
+        String digest = getIndexDigest(jarFile.getManifest());
         JarEntry indexEntry = (JarEntry) jarFile.getEntry(DATA_FILE_NAME);
-        InputStream indexInputStream = new ProgressBufferedInputStream(jarFile.getInputStream(indexEntry),
+        if (indexEntry == null) {
+            jarFile.close();
+            throw new SigningException(repo, SIGNED_FILE_NAME + " does not contain " + DATA_FILE_NAME);
+        }
+        if (isUnchanged(digest)) {
+            try {
+                verifyUnchanged(jarFile.getInputStream(indexEntry), indexEntry, cacheTag, digest);
+            } finally {
+                jarFile.close();
+            }
+            return;
+        }
+        InputStream indexInputStream = new ProgressInputStream(jarFile.getInputStream(indexEntry),
                 processIndexListener, repo.address, (int) indexEntry.getSize());
-        processIndexV1(indexInputStream, indexEntry, cacheTag);
+        PROCESS_INDEX_LOCK.lock();
+        try {
+            processIndexV1(indexInputStream, indexEntry, cacheTag, digest);
+        } finally {
+            PROCESS_INDEX_LOCK.unlock();
+        }
         jarFile.close();
     }
 
+    /**
+     * Reads {@link #SIGNED_FILE_NAME} as it arrives.  The signature block comes before the
+     * entries in a signed jar, so {@link JarInputStream} checks the digest of
+     * {@link #DATA_FILE_NAME} while it is read, and only knows its signers once it was read
+     * to the end.  Until then, everything only goes into the temp tables, and those are
+     * thrown away if the signature or the signing certificate turn out to be wrong.
+     * <p>
+     * If the manifest lists the same digest for {@link #DATA_FILE_NAME} as last time, it is
+     * still read to the end to check its signature, but it is not parsed.
+     */
+    public void processStreamedIndex(InputStream inputStream, String cacheTag)
+            throws IOException, IndexUpdater.UpdateException {
+        try {
+            JarInputStream jarInputStream = new JarInputStream(inputStream, true);
+            String digest = getIndexDigest(jarInputStream.getManifest());
+            JarEntry indexEntry;
+            while ((indexEntry = jarInputStream.getNextJarEntry()) != null) {
+                if (DATA_FILE_NAME.equals(indexEntry.getName())) {
+                    break;
+                }
+            }
+            if (indexEntry == null) {
+                throw new SigningException(repo, SIGNED_FILE_NAME + " does not contain " + DATA_FILE_NAME);
+            }
+            if (isUnchanged(digest)) {
+                verifyUnchanged(jarInputStream, indexEntry, cacheTag, digest);
+                return;
+            }
+            InputStream indexInputStream = new FilterInputStream(jarInputStream) {
+                @Override
+                public void close() throws IOException {
+                    // the parser closes this, but the signers are only known at the very end
+                    ByteStreams.exhaust(in);
+                }
+            };
+            processIndexV1(indexInputStream, indexEntry, cacheTag, digest);
+        } catch (SecurityException e) {
+            throw new SigningException(repo, e.getMessage());
+        }
+    }
+
+    /**
+     * @return the digest of {@link #DATA_FILE_NAME} as listed in the manifest of the signed
+     * jar, prefixed with the name of the algorithm, or {@code null} if there is none
+     */
+    @Nullable
+    public static String getIndexDigest(@Nullable Manifest manifest) {
+        if (manifest == null) {
+            return null;
+        }
+        Attributes attributes = manifest.getAttributes(DATA_FILE_NAME);
+        if (attributes == null) {
+            return null;
+        }
+        for (String name : DIGEST_ATTRIBUTES) {
+            String value = attributes.getValue(name);
+            if (value != null) {
+                return name + ": " + value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * An index which was fully processed before does not need to be processed again,
+     * unless {@link Repo#lastetag} was cleared to force that.
+     */
+    private boolean isUnchanged(@Nullable String digest) {
+        return digest != null && repo.lastetag != null && digest.equals(repo.indexDigest);
+    }
+
+    /**
+     * @see #isUnchanged(String)
+     */
+    private boolean isUnchanged(Map<String, Object> repoMap) {
+        Object timestamp = repoMap.get("timestamp");
+        return repo.lastetag != null && repo.timestamp > 0
+                && timestamp instanceof Number && ((Number) timestamp).longValue() / 1000 == repo.timestamp;
+    }
+
+    /**
+     * The manifest is not signed by itself, so a jar which only repeats the digest of the
+     * last index could come from anyone.  {@link #DATA_FILE_NAME} is still read to the end,
+     * without parsing it, so that its signature and signing certificate are checked before
+     * anything is saved.
+     */
+    private void verifyUnchanged(InputStream indexInputStream, JarEntry indexEntry, String etag,
+                                 String digest) throws IOException, SigningException {
+        Utils.Profiler profiler = new Utils.Profiler(TAG);
+        try {
+            ByteStreams.exhaust(indexInputStream);
+        } catch (SecurityException e) {
+            throw new SigningException(repo, e.getMessage());
+        }
+        verifySigningCertificate(getSigningCertFromJar(indexEntry));
+        saveUnchanged(etag, digest, profiler);
+    }
+
+    /**
+     * Only stores the new {@code etag}, so that the apps of this repo are not touched at
+     * all.  This must only be called once the signature of the index was verified.
+     */
+    private void saveUnchanged(String etag, @Nullable String digest, Utils.Profiler profiler) {
+        hasChanged = false;
+        repo.lastetag = etag;
+        ContentValues values = new ContentValues(3);
+        values.put(Schema.RepoTable.Cols.LAST_UPDATED, Utils.formatTime(new Date(), ""));
+        values.put(Schema.RepoTable.Cols.LAST_ETAG, etag);
+        if (digest != null) {
+            repo.indexDigest = digest;
+            values.put(Schema.RepoTable.Cols.INDEX_DIGEST, digest);
+        }
+        RepoProvider.Helper.update(context, repo, values);
+        profiler.log("The index of " + repo.address + " did not change, skipped processing it.");
+    }
+
     /**
      * Get the standard {@link ObjectMapper} instance used for parsing {@code index-v1.json}.
      * This ignores unknown properties so that old releases won't crash when new things are
@@ -210,30 +366,96 @@ public class IndexV1Updater extends IndexUpdater {
     /**
      * Parses the index and feeds it to the database via {@link Repo}, {@link App},
      * and {@link Apk} instances.  This uses {@link RepoPersister}  to add the apps
-     * and packages to the database in {@link RepoPersister#saveToDb(App, List)}
-     * to write the {@link Repo}, and commit the whole thing in
-     * {@link RepoPersister#commit(ContentValues, long)}.  One confusing thing about this
-     * whole process is that {@link RepoPersister} needs to first create and entry
-     * in the database, then fetch the ID from the database to populate
-     * {@link Repo#id}.  That has to happen first, then the rest of the {@code Repo}
-     * data must be added later.
+     * and packages to the database in {@link RepoPersister#saveApp(App)} and
+     * {@link RepoPersister#saveApks(String, List)}, to write the {@link Repo}, and
+     * commit the whole thing in {@link RepoPersister#commit(ContentValues, long)}.
+     * One confusing thing about this whole process is that {@link RepoPersister}
+     * needs to first create and entry in the database, then fetch the ID from the
+     * database to populate {@link Repo#id}.  That has to happen first, then the
+     * rest of the {@code Repo} data must be added later.
+     * <p>
+     * The {@code apps} and {@code packages} blocks are streamed: each app and each
+     * package's list of {@link Apk}s is handed to {@link RepoPersister} as soon as
+     * it has been read, so only a single flush buffer worth of entries is ever held
+     * in memory, no matter how big the index is.  The two blocks can come in either
+     * order; linking the packages to their apps happens in the temporary tables
+     * before they are committed.  Nothing is committed to the real tables until the
+     * whole file was read and the signing certificate was verified.
+     * <p>
+     * The {@code repo} block comes first in indexes written by fdroidserver.  If its
+     * timestamp is the one that was processed last time, the apps and packages are not
+     * parsed at all; the rest of the file is only read to check its signature.
      *
      * @param indexInputStream {@link InputStream} to {@code index-v1.json}
      * @param etag             the {@code etag} value from HTTP headers
+     * @param digest           the digest of {@code index-v1.json} from the signed jar
      * @throws IOException
      * @throws UpdateException
      */
-    public void processIndexV1(InputStream indexInputStream, JarEntry indexEntry, String etag)
-            throws IOException, UpdateException {
+    public void processIndexV1(InputStream indexInputStream, JarEntry indexEntry, String etag,
+                               @Nullable String digest) throws IOException, UpdateException {
         Utils.Profiler profiler = new Utils.Profiler(TAG);
         profiler.log("Starting to process index-v1.json");
+        RepoPersister repoPersister = new RepoPersister(context, repo);
+        try {
+            HashMap<String, Object> repoMap = parseIndex(indexInputStream, repoPersister, profiler, true);
+            if (repoMap == null) {
+                return;
+            }
+
+            long timestamp = (Long) repoMap.get("timestamp") / 1000;
+
+            if (repo.timestamp > timestamp) {
+                throw new IndexUpdater.UpdateException("index-v1.jar is older that current index! "
+                        + timestamp + " < " + repo.timestamp);
+            }
+            X509Certificate certificate = getSigningCertFromJar(indexEntry);
+            verifySigningCertificate(certificate);
+
+            // the repo block is only trusted now that the signature was checked
+            if (isUnchanged(repoMap)) {
+                saveUnchanged(etag, digest, profiler);
+                return;
+            }
+
+            profiler.log("Certificate verified. Now saving to database...");
+
+            // timestamp is absolutely required
+            repo.timestamp = timestamp;
+            // below are optional, can be null
+            repo.lastetag = etag;
+            repo.indexDigest = digest;
+            ContentValues contentValues = getRepoDetailsToSave(repoMap);
+
+            profiler.log("Saved to database, but only a temporary table. Now persisting to database...");
+            notifyCommittingToDb();
+            repoPersister.commit(contentValues, repo.getId());
+        } finally {
+            repoPersister.close();
+        }
+        profiler.log("Persisted to database.");
+    }
+
+    /**
+     * Streams the {@code apps} and {@code packages} of {@code index-v1.json} into
+     * {@code repoPersister}, without committing anything.
+     *
+     * @param stopIfUnchanged whether to stop once the {@code repo} block turns out to have
+     *                        the timestamp of the index which was already processed, in which
+     *                        case the rest of the input is read without parsing it
+     * @return the {@code repo} block, or {@code null} if there was none
+     */
+    private HashMap<String, Object> parseIndex(InputStream indexInputStream, RepoPersister repoPersister,
+                                               Utils.Profiler profiler, boolean stopIfUnchanged)
+            throws IOException, UpdateException {
         ObjectMapper mapper = getObjectMapperInstance(repo.getId());
+        IndexV1Reader reader = new IndexV1Reader(repo.getId());
+        repoPersister.setProfiler(profiler);
         JsonFactory f = mapper.getFactory();
         JsonParser parser = f.createParser(indexInputStream);
         HashMap<String, Object> repoMap = null;
-        App[] apps = null;
-        Map<String, String[]> requests = null;
-        Map<String, List<Apk>> packages = null;
+        int appCount = 0;
+        int packageCount = 0;
 
         parser.nextToken(); // go into the main object block
         while (true) {
@@ -244,41 +466,37 @@ public class IndexV1Updater extends IndexUpdater {
             switch (fieldName) {
                 case "repo":
                     repoMap = parseRepo(mapper, parser);
-                    break;
-                case "requests":
-                    // unused, but we always need to consume the whole file.
-                    parseRequests(mapper, parser);
+                    if (stopIfUnchanged && appCount == 0 && packageCount == 0 && isUnchanged(repoMap)) {
+                        profiler.log("The timestamp of the index did not change, not parsing the apps.");
+                        ByteStreams.exhaust(indexInputStream);
+                        parser.close();
+                        return repoMap;
+                    }
                     break;
                 case "apps":
-                    apps = parseApps(mapper, parser);
+                    appCount = parseApps(reader, parser, repoPersister);
                     break;
                 case "packages":
-                    packages = parsePackages(mapper, parser);
+                    packageCount = parsePackages(reader, parser, repoPersister);
+                    break;
+                default:
+                    parser.nextToken();
+                    parser.skipChildren();
                     break;
             }
         }
         parser.close(); // ensure resources get cleaned up timely and properly
-        profiler.log("Finished processing index-v1.json. Now verifying certificate...");
-
-        if (repoMap == null) {
-            return;
-        }
-
-        long timestamp = (Long) repoMap.get("timestamp") / 1000;
-
-        if (repo.timestamp > timestamp) {
-            throw new IndexUpdater.UpdateException("index-v1.jar is older that current index! "
-                    + timestamp + " < " + repo.timestamp);
-        }
-        X509Certificate certificate = getSigningCertFromJar(indexEntry);
-        verifySigningCertificate(certificate);
-
-        profiler.log("Certificate verified. Now saving to database...");
+        profiler.log("Finished processing index (" + appCount + " apps, " + packageCount + " packages).");
+        return repoMap;
+    }
 
-        // timestamp is absolutely required
-        repo.timestamp = timestamp;
-        // below are optional, can be null
-        repo.lastetag = etag;
+    /**
+     * Copies the details from the {@code repo} block of the index into {@link #repo},
+     * and returns the columns to update in the database, including the
+     * {@link Repo#timestamp}, {@link Repo#lastetag} and {@link Repo#indexDigest} already
+     * set on {@link #repo}.
+     */
+    private ContentValues getRepoDetailsToSave(Map<String, Object> repoMap) {
         repo.name = getStringRepoValue(repoMap, "name");
         repo.icon = getStringRepoValue(repoMap, "icon");
         repo.description = getStringRepoValue(repoMap, "description");
@@ -287,45 +505,11 @@ public class IndexV1Updater extends IndexUpdater {
         repo.maxage = getIntRepoValue(repoMap, "maxage");
         repo.version = getIntRepoValue(repoMap, "version");
 
-        RepoPersister repoPersister = new RepoPersister(context, repo);
-        if (apps != null && apps.length > 0) {
-            int appCount = 0;
-            for (App app : apps) {
-                appCount++;
-                List<Apk> apks = null;
-                if (packages != null) {
-                    apks = packages.get(app.packageName);
-                }
-
-                if (apks == null) {
-                    Log.i(TAG, "processIndexV1 empty packages");
-                    apks = new ArrayList<>(0);
-                }
-
-                if (apks.size() > 0) {
-                    app.preferredSigner = apks.get(0).sig;
-                    app.isApk = true;
-                    for (Apk apk : apks) {
-                        if (!apk.isApk()) {
-                            app.isApk = false;
-                        }
-                    }
-                }
-
-                if (appCount % 50 == 0) {
-                    notifyProcessingApps(appCount, apps.length);
-                }
-
-                repoPersister.saveToDb(app, apks);
-            }
-        }
-        profiler.log("Saved to database, but only a temporary table. Now persisting to database...");
-        notifyCommittingToDb();
-
         ContentValues contentValues = new ContentValues();
         contentValues.put(Schema.RepoTable.Cols.LAST_UPDATED, Utils.formatTime(new Date(), ""));
         contentValues.put(Schema.RepoTable.Cols.TIMESTAMP, repo.timestamp);
         contentValues.put(Schema.RepoTable.Cols.LAST_ETAG, repo.lastetag);
+        contentValues.put(Schema.RepoTable.Cols.INDEX_DIGEST, repo.indexDigest);
         if (repo.version != Repo.INT_UNSET_VALUE) {
             contentValues.put(Schema.RepoTable.Cols.VERSION, repo.version);
         }
@@ -344,8 +528,7 @@ public class IndexV1Updater extends IndexUpdater {
         if (repo.mirrors != null && repo.mirrors.length > 0) {
             contentValues.put(Schema.RepoTable.Cols.MIRRORS, Utils.serializeCommaSeparatedString(repo.mirrors));
         }
-        repoPersister.commit(contentValues, repo.getId());
-        profiler.log("Persisted to database.");
+        return contentValues;
     }
 
     private int getIntRepoValue(Map<String, Object> repoMap, String key) {
@@ -364,12 +547,19 @@ public class IndexV1Updater extends IndexUpdater {
         return null;
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Anything in the list which is not a {@link String} is left out.
+     */
     private String[] getStringArrayRepoValue(Map<String, Object> repoMap, String key) {
         Object value = repoMap.get(key);
-        if (value instanceof ArrayList) {
-            ArrayList<String> list = (ArrayList<String>) value;
-            return list.toArray(new String[0]);
+        if (value instanceof List) {
+            List<String> strings = new ArrayList<>();
+            for (Object item : (List<?>) value) {
+                if (item instanceof String) {
+                    strings.add((String) item);
+                }
+            }
+            return strings.toArray(new String[0]);
         }
         return null;
     }
@@ -382,25 +572,43 @@ public class IndexV1Updater extends IndexUpdater {
         return mapper.readValue(parser, typeRef);
     }
 
-    private void parseRequests(ObjectMapper mapper, JsonParser parser) throws IOException {
-        TypeReference<HashMap<String, String[]>> typeRef = new TypeReference<HashMap<String, String[]>>() {
-        };
-        parser.nextToken(); // START_OBJECT
-        mapper.readValue(parser, typeRef);
-    }
-
-    private App[] parseApps(ObjectMapper mapper, JsonParser parser) throws IOException {
-        TypeReference<App[]> typeRef = new TypeReference<App[]>() {
-        };
+    /**
+     * Reads the {@code apps} array one element at a time, handing each {@link App}
+     * to {@code repoPersister} before the next one is read.
+     *
+     * @return the number of apps that were read
+     */
+    private int parseApps(IndexV1Reader reader, JsonParser parser, RepoPersister repoPersister)
+            throws IOException, UpdateException {
+        int count = 0;
         parser.nextToken(); // START_ARRAY
-        return mapper.readValue(parser, typeRef);
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            App app = reader.readApp(parser);
+            repoPersister.saveApp(app);
+            count++;
+        }
+        return count;
     }
 
-    private Map<String, List<Apk>> parsePackages(ObjectMapper mapper, JsonParser parser) throws IOException {
-        TypeReference<HashMap<String, List<Apk>>> typeRef = new TypeReference<HashMap<String, List<Apk>>>() {
-        };
+    /**
+     * Reads the {@code packages} object one package name at a time, handing the
+     * list of {@link Apk}s for each to {@code repoPersister} before the next one
+     * is read.
+     *
+     * @return the number of package names that were read
+     */
+    private int parsePackages(IndexV1Reader reader, JsonParser parser, RepoPersister repoPersister)
+            throws IOException, UpdateException {
+        int count = 0;
         parser.nextToken(); // START_OBJECT
-        return mapper.readValue(parser, typeRef);
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String packageName = parser.getCurrentName();
+            parser.nextToken(); // START_ARRAY
+            List<Apk> apks = reader.readApks(parser, packageName);
+            repoPersister.saveApks(packageName, apks);
+            count++;
+        }
+        return count;
     }
 
     /**
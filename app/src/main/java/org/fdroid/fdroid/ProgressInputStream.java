@@ -0,0 +1,49 @@
+package org.fdroid.fdroid;
+
+import androidx.annotation.NonNull;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reports the progress of reading an index.  This deliberately does not buffer:
+ * the JSON parser reads into its own buffer, and when reading from a {@link java.util.jar.JarFile}
+ * the verifying stream below digests the bytes right in that buffer, so the index
+ * only ever goes through memory once.
+ */
+class ProgressInputStream extends FilterInputStream {
+
+    private final ProgressListener progressListener;
+    private final String urlString;
+    private final int totalBytes;
+
+    private int currentBytes;
+    private int lastReportedBytes;
+
+    /**
+     * Reports progress to the specified {@link ProgressListener}, with the
+     * progress based on the {@code totalBytes}.
+     */
+    ProgressInputStream(InputStream in, ProgressListener progressListener, String urlString, int totalBytes) {
+        super(in);
+        this.progressListener = progressListener;
+        this.urlString = urlString;
+        this.totalBytes = totalBytes;
+    }
+
+    @Override
+    public int read(@NonNull byte[] buffer, int byteOffset, int byteCount) throws IOException {
+        int count = super.read(buffer, byteOffset, byteCount);
+        if (count > 0 && progressListener != null) {
+            currentBytes += count;
+            /* don't send every change to keep things efficient.  333333 bytes to keep all
+             * the digits changing because it looks pretty */
+            if (currentBytes - lastReportedBytes >= 333333) {
+                lastReportedBytes = currentBytes;
+                progressListener.onProgress(urlString, currentBytes, totalBytes);
+            }
+        }
+        return count;
+    }
+}
@@ -50,10 +50,18 @@ import org.fdroid.fdroid.data.AppProvider;
 import org.fdroid.fdroid.data.Repo;
 import org.fdroid.fdroid.data.RepoProvider;
 import org.fdroid.fdroid.data.Schema;
+import org.fdroid.fdroid.data.TempAppProvider;
 import org.fdroid.fdroid.installer.InstallManagerService;
+import org.fdroid.fdroid.net.DownloaderService;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class UpdateService extends IntentService {
 
@@ -84,6 +92,18 @@ public class UpdateService extends IntentService {
     private static final int FLAG_NET_METERED = 1;
     private static final int FLAG_NET_NO_LIMIT = 2;
 
+    /**
+     * How many repos are downloaded at the same time.  Only one of them can be
+     * written to the database at a time, see {@link IndexUpdater#PROCESS_INDEX_LOCK}.
+     */
+    private static final int MAX_CONCURRENT_REPO_UPDATES = 3;
+
+    /**
+     * The bytes read and total bytes of each index which is currently being downloaded,
+     * keyed by repo address, so that the progress of all of them can be reported as one.
+     */
+    private static final Map<String, long[]> downloadProgress = new HashMap<>();
+
     private static Handler toastHandler;
 
     private NotificationManager notificationManager;
@@ -371,39 +391,52 @@ public class UpdateService extends IntentService {
             boolean changes = false;
             boolean singleRepoUpdate = !TextUtils.isEmpty(address);
             final Preferences fdroidPrefs = Preferences.get();
-            for (final Repo repo : repos) {
-                if (!repo.inuse) {
-                    continue;
-                }
-                if (singleRepoUpdate && !repo.address.equals(address)) {
-                    unchangedRepos++;
-                    continue;
-                }
-                if (!singleRepoUpdate && repo.isSwap) {
-                    continue;
-                }
-
-                sendStatus(this, STATUS_INFO, getString(R.string.status_connecting_to_repo, repo.address));
-                IndexV1Updater updater = new IndexV1Updater(getBaseContext(), repo);
-                //setProgressListeners(updater);
-                try {
-                    updater.update();
-                    if (updater.hasChanged()) {
-                        updatedRepos++;
-                        changes = true;
-                    } else {
+            // The details which depend on all repos are worked out once, after the last repo
+            TempAppProvider.Helper.beginBatch(this);
+            ExecutorService executor = Executors.newFixedThreadPool(MAX_CONCURRENT_REPO_UPDATES);
+            try {
+                List<Repo> reposToUpdate = new ArrayList<>();
+                List<Future<Boolean>> updates = new ArrayList<>();
+                for (final Repo repo : repos) {
+                    if (!repo.inuse) {
+                        continue;
+                    }
+                    if (singleRepoUpdate && !repo.address.equals(address)) {
                         unchangedRepos++;
+                        continue;
                     }
-                } catch (IndexUpdater.UpdateException e) {
-                    errorRepos++;
-                    repoErrors.add(e.getMessage());
-                    Log.e(TAG, "Error updating repository " + repo.address, e);
+                    if (!singleRepoUpdate && repo.isSwap) {
+                        continue;
+                    }
+                    reposToUpdate.add(repo);
+                    updates.add(executor.submit(() -> updateRepo(repo)));
                 }
 
-                // now that downloading the index is done, start downloading updates
-                if (changes && fdroidPrefs.isAutoDownloadEnabled()) {
-                    autoDownloadUpdates(this);
+                for (int i = 0; i < updates.size(); i++) {
+                    try {
+                        if (updates.get(i).get()) {
+                            updatedRepos++;
+                            changes = true;
+                        } else {
+                            unchangedRepos++;
+                        }
+                    } catch (ExecutionException e) {
+                        if (!(e.getCause() instanceof IndexUpdater.UpdateException)) {
+                            throw e;
+                        }
+                        errorRepos++;
+                        repoErrors.add(e.getCause().getMessage());
+                        Log.e(TAG, "Error updating repository " + reposToUpdate.get(i).address, e.getCause());
+                    }
                 }
+            } finally {
+                executor.shutdownNow();
+                TempAppProvider.Helper.endBatch(this);
+            }
+
+            // now that all the indexes are in, start downloading updates
+            if (changes && fdroidPrefs.isAutoDownloadEnabled()) {
+                autoDownloadUpdates(this);
             }
 
             if (!changes) {
@@ -443,6 +476,26 @@ public class UpdateService extends IntentService {
         Log.i(TAG, "Updating repo(s) complete, took " + time / 1000 + " seconds to complete.");
     }
 
+    /**
+     * Runs on one of the threads of the pool in {@link #onHandleIntent(Intent)}.
+     *
+     * @return whether the index of {@code repo} changed
+     */
+    private boolean updateRepo(Repo repo) throws IndexUpdater.UpdateException {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+        sendStatus(this, STATUS_INFO, getString(R.string.status_connecting_to_repo, repo.address));
+        IndexV1Updater updater = new IndexV1Updater(getBaseContext(), repo);
+        //setProgressListeners(updater);
+        try {
+            updater.update();
+            return updater.hasChanged();
+        } finally {
+            synchronized (downloadProgress) {
+                downloadProgress.remove(repo.address);
+            }
+        }
+    }
+
     private void notifyContentProviders() {
         // Note: This is Ap*p* and Ap*k* Provider
         getContentResolver().notifyChange(AppProvider.getContentUri(), null);
@@ -511,10 +564,10 @@ public class UpdateService extends IntentService {
                 continue;
             }
             Apk apk = ApkProvider.Helper.findSuggestedApk(context, app);
-            InstallManagerService.queue(context, app, apk);
+            InstallManagerService.queue(context, app, apk, DownloaderService.PRIORITY_AUTO_UPDATE);
         }
         if (updateLastApp != null && updateLastApk != null) {
-            InstallManagerService.queue(context, updateLastApp, updateLastApk);
+            InstallManagerService.queue(context, updateLastApp, updateLastApk, DownloaderService.PRIORITY_AUTO_UPDATE);
         }
     }
 
@@ -538,9 +591,39 @@ public class UpdateService extends IntentService {
 
         notificationManager.notify(NOTIFY_ID_UPDATES_AVAILABLE, builder.build());
     }
+    /**
+     * When several repos are being downloaded at once, this reports their combined progress.
+     */
     public static void reportDownloadProgress(Context context, IndexUpdater updater,
                                               long bytesRead, long totalBytes) {
         Utils.debugLog(TAG, "Downloading " + updater.indexUrl + "(" + bytesRead + "/" + totalBytes + ")");
+        int downloads;
+        synchronized (downloadProgress) {
+            downloadProgress.put(updater.repo.address, new long[]{bytesRead, totalBytes});
+            downloads = downloadProgress.size();
+            if (downloads > 1) {
+                bytesRead = 0;
+                totalBytes = 0;
+                for (long[] progress : downloadProgress.values()) {
+                    bytesRead += progress[0];
+                    totalBytes = totalBytes == -1 || progress[1] <= 0 ? -1 : totalBytes + progress[1];
+                }
+            }
+        }
+        if (downloads > 1) {
+            int percent = totalBytes > 0 ? Utils.getPercent(bytesRead, totalBytes) : -1;
+            String message;
+            if (totalBytes == -1) {
+                message = context.getString(R.string.status_download_repos_unknown_size,
+                        downloads, Utils.getFriendlySize(bytesRead));
+            } else {
+                message = context.getString(R.string.status_download_repos, downloads,
+                        Utils.getFriendlySize(bytesRead), Utils.getFriendlySize(totalBytes), percent);
+            }
+            sendStatus(context, STATUS_INFO, message, percent);
+            return;
+        }
+
         String downloadedSizeFriendly = Utils.getFriendlySize(bytesRead);
         int percent = -1;
         if (totalBytes > 0) {
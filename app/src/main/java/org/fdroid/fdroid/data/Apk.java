@@ -39,8 +39,9 @@ import java.util.regex.Pattern;
  * <p>
  * <b>NOTE:</b>If an instance variable is only meant for internal state, and not for
  * representing data coming from the server, then it must also be decorated with
- * {@code @JsonIgnore} to prevent abuse!  The tests for
- * {@link org.fdroid.fdroid.IndexV1Updater} will also have to be updated.
+ * {@code @JsonIgnore} to prevent abuse!  The index is actually read by
+ * {@link IndexV1Reader}, which only sets the fields it knows about, so new
+ * fields coming from the index have to be added there too.
  *
  * @see <a href="https://gitlab.com/fdroid/fdroiddata">fdroiddata</a>
  * @see <a href="https://gitlab.com/fdroid/fdroidserver">fdroidserver</a>
@@ -109,7 +110,11 @@ public class Apk extends ValueObject implements Comparable<Apk>, Parcelable {
      */
     public String srcname;
 
-    public String[] incompatibleReasons;
+    /**
+     * Why this apk cannot be installed on this device, in the compact form described at
+     * {@link org.fdroid.fdroid.CompatibilityChecker#REASON_MIN_SDK}, or {@code null}.
+     */
+    public String incompatibleReasons;
 
     public String[] antiFeatures;
 
@@ -219,7 +224,7 @@ public class Apk extends ValueObject implements Comparable<Apk>, Parcelable {
                     nativecode = Utils.parseCommaSeparatedString(cursor.getString(i));
                     break;
                 case Cols.INCOMPATIBLE_REASONS:
-                    incompatibleReasons = Utils.parseCommaSeparatedString(cursor.getString(i));
+                    incompatibleReasons = cursor.getString(i);
                     break;
                 case Cols.REPO_ID:
                     repoId = cursor.getInt(i);
@@ -365,7 +370,7 @@ public class Apk extends ValueObject implements Comparable<Apk>, Parcelable {
         values.put(Cols.REQUESTED_PERMISSIONS, Utils.serializeCommaSeparatedString(requestedPermissions));
         values.put(Cols.FEATURES, Utils.serializeCommaSeparatedString(features));
         values.put(Cols.NATIVE_CODE, Utils.serializeCommaSeparatedString(nativecode));
-        values.put(Cols.INCOMPATIBLE_REASONS, Utils.serializeCommaSeparatedString(incompatibleReasons));
+        values.put(Cols.INCOMPATIBLE_REASONS, incompatibleReasons);
         values.put(Cols.AntiFeatures.ANTI_FEATURES, Utils.serializeCommaSeparatedString(antiFeatures));
         values.put(Cols.IS_COMPATIBLE, compatible ? 1 : 0);
         return values;
@@ -408,7 +413,7 @@ public class Apk extends ValueObject implements Comparable<Apk>, Parcelable {
         dest.writeString(this.srcname);
         dest.writeInt(this.repoVersion);
         dest.writeString(this.repoAddress);
-        dest.writeStringArray(this.incompatibleReasons);
+        dest.writeString(this.incompatibleReasons);
         dest.writeStringArray(this.antiFeatures);
         dest.writeLong(this.appId);
     }
@@ -440,7 +445,7 @@ public class Apk extends ValueObject implements Comparable<Apk>, Parcelable {
         this.srcname = in.readString();
         this.repoVersion = in.readInt();
         this.repoAddress = in.readString();
-        this.incompatibleReasons = in.createStringArray();
+        this.incompatibleReasons = in.readString();
         this.antiFeatures = in.createStringArray();
         this.appId = in.readLong();
     }
@@ -493,7 +498,6 @@ public class Apk extends ValueObject implements Comparable<Apk>, Parcelable {
      * Set the Package Name property while ensuring it is sanitized.
      */
     @JsonProperty("packageName")
-    @SuppressWarnings("unused")
     void setPackageName(String packageName) {
         if (Utils.isSafePackageName(packageName)) {
             this.packageName = packageName;
@@ -504,14 +508,12 @@ public class Apk extends ValueObject implements Comparable<Apk>, Parcelable {
     }
 
     @JsonProperty("uses-permission")
-    @SuppressWarnings("unused")
-    private void setUsesPermission(Object[][] permissions) {
+    void setUsesPermission(Object[][] permissions) {
         setRequestedPermissions(permissions, 0);
     }
 
     @JsonProperty("uses-permission-sdk-23")
-    @SuppressWarnings("unused")
-    private void setUsesPermissionSdk23(Object[][] permissions) {
+    void setUsesPermissionSdk23(Object[][] permissions) {
         setRequestedPermissions(permissions, 23);
     }
 
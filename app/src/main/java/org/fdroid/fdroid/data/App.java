@@ -25,6 +25,9 @@ import androidx.annotation.RequiresApi;
 import com.fasterxml.jackson.annotation.JacksonInject;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.hash.Hashing;
 
 import org.fdroid.fdroid.Utils;
@@ -44,6 +47,7 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.Locale;
 import java.util.Map;
@@ -65,8 +69,9 @@ import java.util.regex.Pattern;
  * <p>
  * <b>NOTE:</b>If an instance variable is only meant for internal state, and not for
  * representing data coming from the server, then it must also be decorated with
- * {@code @JsonIgnore} to prevent abuse!  The tests for
- * {@link org.fdroid.fdroid.IndexV1Updater} will also have to be updated.
+ * {@code @JsonIgnore} to prevent abuse!  The index is actually read by
+ * {@link IndexV1Reader}, which only sets the fields it knows about, so new
+ * fields coming from the index have to be added there too.
  *
  * @see <a href="https://gitlab.com/fdroid/fdroiddata">fdroiddata</a>
  * @see <a href="https://gitlab.com/fdroid/fdroidserver">fdroidserver</a>
@@ -211,7 +216,36 @@ public class App extends ValueObject implements Comparable<App>, Parcelable {
      * URL to download the app's icon. (Set only from localized block, see also
      * {@link #iconFromApk} and {@link #getIconUrl(Context)}
      */
-    private String iconUrl;
+    @JsonIgnore
+    String iconUrl;
+
+    /**
+     * All of the {@code localized} blocks from the index, limited to {@link #LOCALIZED_KEYS}.
+     * They are stored as they are, and {@link AppProvider} picks the texts for the current
+     * locales from them when the apps are queried, see {@link #applyLocalized(String)}.
+     */
+    @JsonIgnore
+    Map<String, Map<String, Object>> localized;
+
+    /**
+     * The keys of a {@code localized} block which are actually used.
+     */
+    @JsonIgnore
+    private static final Set<String> LOCALIZED_KEYS = new HashSet<>(Arrays.asList(
+            "name", "summary", "description", "whatsNew", "video", "icon", "featureGraphic",
+            "promoGraphic", "tvBanner", "phoneScreenshots", "sevenInchScreenshots",
+            "tenInchScreenshots", "tvScreenshots", "wearScreenshots"));
+
+    /**
+     * Stored along with the {@code localized} blocks, holding the texts which were
+     * set outside of them, to fall back on when no locale has them.  It is not a
+     * valid locale, so it never gets picked as one.
+     */
+    @JsonIgnore
+    private static final String LOCALIZED_DEFAULTS = "";
+
+    @JsonIgnore
+    private static final ObjectMapper LOCALIZED_MAPPER = new ObjectMapper();
 
     public static String getIconName(String packageName, int versionCode) {
         return packageName + "_" + versionCode + ".png";
@@ -415,7 +449,7 @@ public class App extends ValueObject implements Comparable<App>, Parcelable {
      * the setting of {@link App#description} to insert the format method.
      */
     @JsonProperty("description")
-    private void setDescription(String description) { // NOPMD
+    void setDescription(String description) { // NOPMD
         this.description = formatDescription(description);
     }
 
@@ -453,8 +487,81 @@ public class App extends ValueObject implements Comparable<App>, Parcelable {
 
 
     /**
-     * Parses the {@code localized} block in the incoming index metadata,
-     * choosing the best match in terms of locale/language while filling as
+     * Keeps the {@code localized} block of the incoming index metadata, without
+     * choosing a locale yet, so that changing the language does not need the
+     * index to be downloaded and parsed again.
+     */
+    @JsonProperty("localized")
+    void setLocalized(Map<String, Map<String, Object>> localized) { // NOPMD
+        this.localized = new LinkedHashMap<>();
+        for (Map.Entry<String, Map<String, Object>> block : localized.entrySet()) {
+            if (block.getValue() == null) {
+                continue;
+            }
+            Map<String, Object> entries = new LinkedHashMap<>();
+            for (Map.Entry<String, Object> entry : block.getValue().entrySet()) {
+                if (LOCALIZED_KEYS.contains(entry.getKey())) {
+                    entries.put(entry.getKey(), entry.getValue());
+                }
+            }
+            this.localized.put(block.getKey(), entries);
+        }
+    }
+
+    /**
+     * @return {@link #localized} along with the texts to fall back on, in the form
+     * {@link #applyLocalized(String)} reads, or {@code null} if there is no {@code localized} block.
+     */
+    String getLocalizedForStorage() {
+        if (localized == null) {
+            return null;
+        }
+        Map<String, Object> defaults = new LinkedHashMap<>();
+        defaults.put("name", name);
+        defaults.put("summary", summary);
+        defaults.put("description", description);
+        defaults.put("video", video);
+        Map<String, Map<String, Object>> stored = new LinkedHashMap<>(localized);
+        stored.put(LOCALIZED_DEFAULTS, defaults);
+        try {
+            return LOCALIZED_MAPPER.writeValueAsString(stored);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Sets the localized texts to those which fit the current locales best, from
+     * what {@link #getLocalizedForStorage()} returned.
+     */
+    void applyLocalized(String stored) throws IOException {
+        Map<String, Map<String, Object>> map = LOCALIZED_MAPPER.readValue(stored,
+                new TypeReference<LinkedHashMap<String, Map<String, Object>>>() {
+                });
+        Map<String, Object> defaults = map.remove(LOCALIZED_DEFAULTS);
+        if (defaults != null) {
+            name = (String) defaults.get("name");
+            summary = (String) defaults.get("summary");
+            description = (String) defaults.get("description");
+            video = (String) defaults.get("video");
+        }
+        resolveLocalized(map);
+    }
+
+    /**
+     * @return something which changes whenever the locales used by
+     * {@link #applyLocalized(String)} change
+     */
+    public static String getLocaleKey() {
+        if (Build.VERSION.SDK_INT >= 24) {
+            return Locale.getDefault() + "," + getSystemLocales();
+        }
+        return Locale.getDefault().toString();
+    }
+
+    /**
+     * Picks from the {@code localized} blocks of the index metadata, choosing
+     * the best match in terms of locale/language while filling as
      * many fields as possible.  It first sets up a locale list based on user
      * preference and the locales available for this app, then picks the texts
      * based on that list.  One thing that makes this tricky is that any given
@@ -463,12 +570,12 @@ public class App extends ValueObject implements Comparable<App>, Parcelable {
      * rather than just taking the whole block for a specific locale.  This is to
      * ensure that there is something to show, as often as possible.
      * <p>
-     * It is still possible that the fields will be loaded directly by Jackson
+     * It is still possible that the fields were set directly from the index
      * without any locale info.  This comes from the old-style, inline app metadata
      * fields that do not have locale info.  They should not be used if the
      * {@code localized} block is included in the index.  Also, null strings in
      * the {@code localized} block should not overwrite Name/Summary/Description
-     * strings with empty/null if they were set directly by Jackson.
+     * strings with empty/null if they were set directly.
      * <p>
      * Choosing the locale to use follows two sets of rules, one for Android versions
      * older than {@code android-24} and the other for {@code android-24} or newer.
@@ -499,8 +606,7 @@ public class App extends ValueObject implements Comparable<App>, Parcelable {
      * locale with a country as an option, so here it makes sense to try to fallback
      * on other country-specific locales, rather than English.
      */
-    @JsonProperty("localized")
-    void setLocalized(Map<String, Map<String, Object>> localized) { // NOPMD
+    void resolveLocalized(Map<String, Map<String, Object>> localized) {
         Locale defaultLocale = Locale.getDefault();
         String languageTag = defaultLocale.getLanguage();
         String countryTag = defaultLocale.getCountry();
@@ -591,6 +697,11 @@ public class App extends ValueObject implements Comparable<App>, Parcelable {
 
     @RequiresApi(api = Build.VERSION_CODES.N)
     String getLocales() {
+        return getSystemLocales();
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.N)
+    private static String getSystemLocales() {
         return Resources.getSystem().getConfiguration().getLocales().toLanguageTags();
     }
 
@@ -1010,6 +1121,7 @@ public class App extends ValueObject implements Comparable<App>, Parcelable {
         values.put(Cols.WEAR_SCREENSHOTS, Utils.serializeCommaSeparatedString(wearScreenshots));
         values.put(Cols.IS_COMPATIBLE, compatible ? 1 : 0);
         values.put(Cols.IS_APK, isApk ? 1 : 0);
+        values.put(Cols.LOCALIZED, getLocalizedForStorage());
 
         return values;
     }
@@ -6,6 +6,8 @@ import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.text.TextUtils;
 import android.util.Log;
@@ -26,6 +28,7 @@ import org.fdroid.fdroid.data.Schema.InstalledAppTable;
 import org.fdroid.fdroid.data.Schema.PackageTable;
 import org.fdroid.fdroid.data.Schema.RepoTable;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
@@ -150,6 +153,15 @@ public class AppProvider extends FDroidProvider {
             return cursorToList(context.getContentResolver().query(AppProvider.getCanUpdateUri(), projection, null, null, null));
         }
 
+        /**
+         * Picks the localized fields of all apps again if the locales changed since the
+         * last time.  This writes to the database, so it must not run on the UI thread.
+         */
+        public static void updateLocalized(Context context) {
+            Uri uri = Uri.withAppendedPath(AppProvider.getContentUri(), PATH_UPDATE_LOCALIZED);
+            context.getContentResolver().update(uri, null, null, null);
+        }
+
         static void recalculatePreferredMetadata(Context context) {
             Uri uri = Uri.withAppendedPath(AppProvider.getContentUri(), PATH_CALC_PREFERRED_METADATA);
             context.getContentResolver().query(uri, null, null, null, null);
@@ -464,6 +476,7 @@ public class AppProvider extends FDroidProvider {
     private static final String PATH_CALC_PREFERRED_METADATA = "calcPreferredMetadata";
     private static final String PATH_CALC_SUGGESTED_APKS = "calcNonRepoDetailsFromIndex";
     private static final String PATH_INSTALLED_WITH_KNOWN_VULNS = "installedWithKnownVulns";
+    private static final String PATH_UPDATE_LOCALIZED = "updateLocalized";
 
     private static final int CAN_UPDATE = CODE_SINGLE + 1;
     private static final int INSTALLED = CAN_UPDATE + 1;
@@ -478,6 +491,7 @@ public class AppProvider extends FDroidProvider {
     private static final int HIGHEST_PRIORITY = SEARCH_CAN_UPDATE + 1;
     private static final int CALC_PREFERRED_METADATA = HIGHEST_PRIORITY + 1;
     private static final int INSTALLED_WITH_KNOWN_VULNS = CALC_PREFERRED_METADATA + 1;
+    private static final int UPDATE_LOCALIZED = INSTALLED_WITH_KNOWN_VULNS + 1;
 
     static {
         MATCHER.addURI(getAuthority(), null, CODE_LIST);
@@ -496,6 +510,7 @@ public class AppProvider extends FDroidProvider {
         MATCHER.addURI(getAuthority(), PATH_SPECIFIC_APP + "/#/*", CODE_SINGLE);
         MATCHER.addURI(getAuthority(), PATH_CALC_PREFERRED_METADATA, CALC_PREFERRED_METADATA);
         MATCHER.addURI(getAuthority(), PATH_INSTALLED_WITH_KNOWN_VULNS, INSTALLED_WITH_KNOWN_VULNS);
+        MATCHER.addURI(getAuthority(), PATH_UPDATE_LOCALIZED, UPDATE_LOCALIZED);
     }
 
     public static Uri getContentUri() {
@@ -772,6 +787,103 @@ public class AppProvider extends FDroidProvider {
         return new AppQuerySelection(selection, args);
     }
 
+    /**
+     * The locales which the localized fields of all apps were last picked for.
+     */
+    private static String localizedFor;
+
+    /**
+     * Picks the localized fields for the current locales, for all apps whose
+     * {@link Cols#LOCALIZED_FOR} does not match them, or only for the app with {@code rowId}.
+     * This only needs what is already stored in {@link Cols#LOCALIZED}, so changing the
+     * language takes effect without downloading the index again.  Since this writes to the
+     * database, {@link #query} never does it.  It is done when apps are committed or inserted,
+     * and in the background when the locales change, see {@link Helper#updateLocalized(Context)}.
+     *
+     * @param table the table of the apps, since {@link TempAppProvider} also commits to the real one
+     * @param rowId the app to pick the fields of, or {@code null} for all apps
+     * @return the number of apps which were updated
+     */
+    protected int updateLocalized(String table, @Nullable Long rowId) {
+        String localeKey = App.getLocaleKey();
+        synchronized (AppProvider.class) {
+            String selection = Cols.LOCALIZED + " IS NOT NULL AND (" + Cols.LOCALIZED_FOR + " IS NULL OR "
+                    + Cols.LOCALIZED_FOR + " != ?)";
+            String[] args = {localeKey};
+            if (rowId != null) {
+                selection += " AND " + Cols.ROW_ID + " = ?";
+                args = new String[]{localeKey, Long.toString(rowId)};
+            }
+            SQLiteDatabase db = db();
+            Cursor cursor = db.query(table, new String[]{Cols.ROW_ID, Cols.LOCALIZED},
+                    selection, args, null, null, null);
+            SQLiteStatement update = db.compileStatement("UPDATE " + table + " SET "
+                    + Cols.NAME + " = ?, " + Cols.SUMMARY + " = ?, " + Cols.DESCRIPTION + " = ?, "
+                    + Cols.WHATSNEW + " = ?, " + Cols.VIDEO + " = ?, " + Cols.ICON_URL + " = ?, "
+                    + Cols.FEATURE_GRAPHIC + " = ?, " + Cols.PROMO_GRAPHIC + " = ?, " + Cols.TV_BANNER + " = ?, "
+                    + Cols.PHONE_SCREENSHOTS + " = ?, " + Cols.SEVEN_INCH_SCREENSHOTS + " = ?, "
+                    + Cols.TEN_INCH_SCREENSHOTS + " = ?, " + Cols.TV_SCREENSHOTS + " = ?, "
+                    + Cols.WEAR_SCREENSHOTS + " = ?, " + Cols.LOCALIZED_FOR + " = ? "
+                    + "WHERE " + Cols.ROW_ID + " = ?");
+            int count = 0;
+            db.beginTransaction();
+            try {
+                while (cursor.moveToNext()) {
+                    App app = new App();
+                    try {
+                        app.applyLocalized(cursor.getString(1));
+                    } catch (IOException e) {
+                        Log.w(TAG, "Could not read the localized fields of app " + cursor.getLong(0), e);
+                        continue;
+                    }
+                    int i = 1;
+                    DatabaseUtils.bindObjectToProgram(update, i++, app.name == null ? null : app.name.trim());
+                    DatabaseUtils.bindObjectToProgram(update, i++, app.summary == null ? null : app.summary.trim());
+                    DatabaseUtils.bindObjectToProgram(update, i++, app.description == null ? "" : app.description);
+                    DatabaseUtils.bindObjectToProgram(update, i++, app.whatsNew);
+                    DatabaseUtils.bindObjectToProgram(update, i++, app.video);
+                    DatabaseUtils.bindObjectToProgram(update, i++, app.iconUrl);
+                    DatabaseUtils.bindObjectToProgram(update, i++, app.featureGraphic);
+                    DatabaseUtils.bindObjectToProgram(update, i++, app.promoGraphic);
+                    DatabaseUtils.bindObjectToProgram(update, i++, app.tvBanner);
+                    DatabaseUtils.bindObjectToProgram(update, i++, Utils.serializeCommaSeparatedString(app.phoneScreenshots));
+                    DatabaseUtils.bindObjectToProgram(update, i++, Utils.serializeCommaSeparatedString(app.sevenInchScreenshots));
+                    DatabaseUtils.bindObjectToProgram(update, i++, Utils.serializeCommaSeparatedString(app.tenInchScreenshots));
+                    DatabaseUtils.bindObjectToProgram(update, i++, Utils.serializeCommaSeparatedString(app.tvScreenshots));
+                    DatabaseUtils.bindObjectToProgram(update, i++, Utils.serializeCommaSeparatedString(app.wearScreenshots));
+                    update.bindString(i++, localeKey);
+                    update.bindLong(i, cursor.getLong(0));
+                    update.executeUpdateDelete();
+                    count++;
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                cursor.close();
+                update.close();
+            }
+            Utils.debugLog(TAG, "Picked the localized fields of " + count + " apps for " + localeKey);
+            if (rowId == null && AppMetadataTable.NAME.equals(table)) {
+                localizedFor = localeKey;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Like {@link #updateLocalized(String, Long)} for all apps, but only if the locales changed
+     * since the last time.
+     */
+    private int updateLocalizedIfLocaleChanged() {
+        synchronized (AppProvider.class) {
+            if (App.getLocaleKey().equals(localizedFor)) {
+                return 0;
+            }
+            return updateLocalized(AppMetadataTable.NAME, null);
+        }
+    }
+
+
     @Override
     public Cursor query(@NonNull Uri uri, String[] projection, String customSelection, String[] selectionArgs, String sortOrder) {
         AppQuerySelection selection = new AppQuerySelection(customSelection, selectionArgs);
@@ -976,6 +1088,7 @@ public class AppProvider extends FDroidProvider {
         }
 
         long appMetadataId = db().insertOrThrow(getTableName(), null, values);
+        updateLocalized(getTableName(), appMetadataId);
         if (!isApplyingBatch()) {
             Log.d(TAG, "insert: Notifying " + uri);
             getContext().getContentResolver().notifyChange(uri, null);
@@ -1013,7 +1126,15 @@ public class AppProvider extends FDroidProvider {
 
     @Override
     public int update(@NonNull Uri uri, ContentValues values, String where, String[] whereArgs) {
-        if (MATCHER.match(uri) != CALC_SUGGESTED_APKS) {
+        int match = MATCHER.match(uri);
+        if (match == UPDATE_LOCALIZED) {
+            int count = updateLocalizedIfLocaleChanged();
+            if (count > 0) {
+                getContext().getContentResolver().notifyChange(getContentUri(), null);
+            }
+            return count;
+        }
+        if (match != CALC_SUGGESTED_APKS) {
             throw new UnsupportedOperationException("Update not supported for " + uri + ".");
         }
 
@@ -1061,14 +1182,21 @@ public class AppProvider extends FDroidProvider {
     }
 
     private void updatePreferredMetadata() {
-        Utils.debugLog(TAG, "Deciding on which metadata should take priority for each package.");
+        updatePreferredMetadata(getTableName(), null);
+    }
 
-        final String app = getTableName();
+    /**
+     * @param app        The app table to choose from. This is the real table once apps have been
+     *                   committed from the temp table, as the preferred metadata points at their rowids.
+     * @param packageIds A query for the package IDs to update, or null for all packages.
+     */
+    protected void updatePreferredMetadata(String app, @Nullable String packageIds) {
+        Utils.debugLog(TAG, "Deciding on which metadata should take priority for each package.");
 
         final String highestPriority =
                 "SELECT MAX(r." + RepoTable.Cols.PRIORITY + ") " +
                         "FROM " + RepoTable.NAME + " AS r " +
-                        "JOIN " + getTableName() + " AS m ON (m." + Cols.REPO_ID + " = r." + RepoTable.Cols._ID + ") " +
+                        "JOIN " + app + " AS m ON (m." + Cols.REPO_ID + " = r." + RepoTable.Cols._ID + ") " +
                         "WHERE m." + Cols.PACKAGE_ID + " = " + "metadata." + Cols.PACKAGE_ID;
 
         String updateSql =
@@ -1079,7 +1207,10 @@ public class AppProvider extends FDroidProvider {
                         " JOIN " + RepoTable.NAME + " AS repo ON (metadata." + Cols.REPO_ID + " = repo." + RepoTable.Cols._ID + ") " +
                         " WHERE metadata." + Cols.PACKAGE_ID + " = " + PackageTable.NAME + "." + PackageTable.Cols.ROW_ID +
                         " AND repo." + RepoTable.Cols.PRIORITY + " = (" + highestPriority + ")" +
-                        ");";
+                        ")";
+        if (packageIds != null) {
+            updateSql += " WHERE " + PackageTable.Cols.ROW_ID + " IN (" + packageIds + ")";
+        }
 
         db().execSQL(updateSql);
     }
@@ -1088,7 +1219,7 @@ public class AppProvider extends FDroidProvider {
      * For each app, we want to set the isCompatible flag to 1 if any of the apks we know
      * about are compatible, and 0 otherwise.
      */
-    private void updateCompatibleFlags() {
+    protected void updateCompatibleFlags() {
         Utils.debugLog(TAG, "Calculating whether apps are compatible, based on whether any of their apks are compatible");
 
         final String apk = getApkTableName();
@@ -1113,22 +1244,33 @@ public class AppProvider extends FDroidProvider {
      *
      * @see #updateSuggestedFromLatest(String)
      */
-    private void updateSuggestedFromUpstream(@Nullable String packageName) {
+    protected void updateSuggestedFromUpstream(@Nullable String packageName) {
+        String packageIds = null;
+        String[] args = null;
+        if (packageName != null) {
+            packageIds = getPackageIdFromPackageNameQuery();
+            args = new String[]{packageName};
+        }
+        updateSuggestedFromUpstream(getTableName(), getApkTableName(), packageIds, args);
+    }
+
+    /**
+     * @param app        The app table to update, and to take the other apps of each package from.
+     * @param apk        The apk table which belongs to {@code app}.
+     * @param packageIds A query for the package IDs whose apps should be updated, or null for all apps.
+     * @see #updateSuggestedFromUpstream(String)
+     */
+    protected void updateSuggestedFromUpstream(String app, String apk, @Nullable String packageIds, @Nullable String[] args) {
         Utils.debugLog(TAG, "Calculating suggested versions for all NON-INSTALLED apps which specify an upstream version code.");
 
-        final String apk = getApkTableName();
-        final String app = getTableName();
         final String installed = InstalledAppTable.NAME;
 
         final boolean unstableUpdates = Preferences.get().getUnstableUpdates();
         String restrictToStable = unstableUpdates ? "" : (apk + "." + ApkTable.Cols.VERSION_CODE + " <= " + app + "." + Cols.UPSTREAM_VERSION_CODE + " AND ");
 
         String restrictToApp = "";
-        String[] args = null;
-
-        if (packageName != null) {
-            restrictToApp = " AND " + app + "." + Cols.PACKAGE_ID + " = (" + getPackageIdFromPackageNameQuery() + ") ";
-            args = new String[]{packageName};
+        if (packageIds != null) {
+            restrictToApp = " AND " + app + "." + Cols.PACKAGE_ID + " IN (" + packageIds + ") ";
         }
 
         // The join onto `appForThisApk` is to ensure that the MAX(apk.versionCode) is chosen from
@@ -1172,12 +1314,7 @@ public class AppProvider extends FDroidProvider {
      * @see #updateSuggestedFromUpstream(String)
      */
     private void updateSuggestedFromLatest(@Nullable String packageName) {
-        Utils.debugLog(TAG, "Calculating suggested versions for all apps which don't specify an upstream version code.");
-
-        final String apk = getApkTableName();
         final String app = getTableName();
-        final String installed = InstalledAppTable.NAME;
-
         final String restrictToApps;
         final String[] args;
 
@@ -1190,6 +1327,19 @@ public class AppProvider extends FDroidProvider {
             restrictToApps = " COALESCE(" + Cols.UPSTREAM_VERSION_CODE + ", 0) = 0 AND " + app + "." + Cols.PACKAGE_ID + " = (" + getPackageIdFromPackageNameQuery() + ") ";
             args = new String[]{packageName};
         }
+        updateSuggestedFromLatest(app, getApkTableName(), restrictToApps, args);
+    }
+
+    /**
+     * @param app            The app table to update, and to take the other apps of each package from.
+     * @param apk            The apk table which belongs to {@code app}.
+     * @param restrictToApps The WHERE clause choosing which apps of {@code app} to update.
+     * @see #updateSuggestedFromLatest(String)
+     */
+    protected void updateSuggestedFromLatest(String app, String apk, String restrictToApps, @Nullable String[] args) {
+        Utils.debugLog(TAG, "Calculating suggested versions for all apps which don't specify an upstream version code.");
+
+        final String installed = InstalledAppTable.NAME;
 
         String updateSql =
                 "UPDATE " + app + " SET " + Cols.SUGGESTED_VERSION_CODE + " = ( " +
@@ -38,6 +38,7 @@ import org.fdroid.fdroid.data.Schema.AppMetadataTable;
 import org.fdroid.fdroid.data.Schema.AppPrefsTable;
 import org.fdroid.fdroid.data.Schema.CatJoinTable;
 import org.fdroid.fdroid.data.Schema.InstalledAppTable;
+import org.fdroid.fdroid.data.Schema.MirrorHealthTable;
 import org.fdroid.fdroid.data.Schema.PackageTable;
 import org.fdroid.fdroid.data.Schema.RepoTable;
 
@@ -84,7 +85,8 @@ public class DBHelper extends SQLiteOpenHelper {
             + RepoTable.Cols.ICON + " string, "
             + RepoTable.Cols.MIRRORS + " string, "
             + RepoTable.Cols.USER_MIRRORS + " string, "
-            + RepoTable.Cols.PUSH_REQUESTS + " integer not null default " + Repo.PUSH_REQUEST_IGNORE
+            + RepoTable.Cols.PUSH_REQUESTS + " integer not null default " + Repo.PUSH_REQUEST_IGNORE + ", "
+            + RepoTable.Cols.INDEX_DIGEST + " text"
             + ");";
 
     static final String CREATE_TABLE_APK =
@@ -157,6 +159,9 @@ public class DBHelper extends SQLiteOpenHelper {
             + AppMetadataTable.Cols.TV_SCREENSHOTS + " string,"
             + AppMetadataTable.Cols.WEAR_SCREENSHOTS + " string,"
             + AppMetadataTable.Cols.IS_APK + " boolean,"
+            + AppMetadataTable.Cols.CONTENT_HASH + " string,"
+            + AppMetadataTable.Cols.LOCALIZED + " text,"
+            + AppMetadataTable.Cols.LOCALIZED_FOR + " text,"
             + "primary key(" + AppMetadataTable.Cols.PACKAGE_ID + ", " + AppMetadataTable.Cols.REPO_ID + "));";
 
     private static final String CREATE_TABLE_APP_PREFS = "CREATE TABLE " + AppPrefsTable.NAME
@@ -212,7 +217,17 @@ public class DBHelper extends SQLiteOpenHelper {
             + "primary key(" + ApkAntiFeatureJoinTable.Cols.APK_ID + ", " + ApkAntiFeatureJoinTable.Cols.ANTI_FEATURE_ID + ") "
             + " );";
 
-    protected static final int DB_VERSION = 85;
+    static final String CREATE_TABLE_MIRROR_HEALTH = "CREATE TABLE " + MirrorHealthTable.NAME
+            + " ( "
+            + MirrorHealthTable.Cols.REPO_ID + " INT NOT NULL, "
+            + MirrorHealthTable.Cols.MIRROR + " TEXT NOT NULL, "
+            + MirrorHealthTable.Cols.CONNECT_MILLIS + " REAL, "
+            + MirrorHealthTable.Cols.BYTES_PER_SECOND + " REAL, "
+            + MirrorHealthTable.Cols.FAILURE_RATE + " REAL NOT NULL DEFAULT 0, "
+            + "primary key(" + MirrorHealthTable.Cols.REPO_ID + ", " + MirrorHealthTable.Cols.MIRROR + ") "
+            + " );";
+
+    protected static final int DB_VERSION = 90;
 
     private final Context context;
 
@@ -242,6 +257,7 @@ public class DBHelper extends SQLiteOpenHelper {
         db.execSQL(CREATE_TABLE_APP_PREFS);
         db.execSQL(CREATE_TABLE_ANTI_FEATURE);
         db.execSQL(CREATE_TABLE_APK_ANTI_FEATURE_JOIN);
+        db.execSQL(CREATE_TABLE_MIRROR_HEALTH);
         ensureIndexes(db);
 
         String[] defaultRepos = context.getResources().getStringArray(R.array.default_repos);
@@ -275,6 +291,11 @@ public class DBHelper extends SQLiteOpenHelper {
         Utils.debugLog(TAG, "Upgrading database from v" + oldVersion + " v" + newVersion);
         addOpenCollective(db, oldVersion);
         addTranslation(db, oldVersion);
+        addContentHash(db, oldVersion);
+        addLocalized(db, oldVersion);
+        encodeIncompatibleReasons(db, oldVersion);
+        addIndexDigest(db, oldVersion);
+        addMirrorHealth(db, oldVersion);
     }
 
     private void addOpenCollective(SQLiteDatabase db, int oldVersion) {
@@ -302,6 +323,75 @@ public class DBHelper extends SQLiteOpenHelper {
         }
     }
 
+    /**
+     * Existing apps start without a hash, so each repo gets fully rewritten once on its
+     * next update, after which only apps whose hash changed are touched.
+     */
+    private void addContentHash(SQLiteDatabase db, int oldVersion) {
+        if (oldVersion >= 86) {
+            return;
+        }
+        if (!columnExists(db, AppMetadataTable.NAME, AppMetadataTable.Cols.CONTENT_HASH)) {
+            Utils.debugLog(TAG, "Adding " + AppMetadataTable.Cols.CONTENT_HASH + " field to "
+                    + AppMetadataTable.NAME + " table in db.");
+            db.execSQL("alter table " + AppMetadataTable.NAME + " add column "
+                    + AppMetadataTable.Cols.CONTENT_HASH + " string;");
+        }
+    }
+
+    /**
+     * Only one locale was kept of the apps which are already stored, so all repos
+     * need to be downloaded again to get the rest of them.
+     */
+    private void addLocalized(SQLiteDatabase db, int oldVersion) {
+        if (oldVersion >= 87) {
+            return;
+        }
+        if (!columnExists(db, AppMetadataTable.NAME, AppMetadataTable.Cols.LOCALIZED)) {
+            Utils.debugLog(TAG, "Adding " + AppMetadataTable.Cols.LOCALIZED + " and "
+                    + AppMetadataTable.Cols.LOCALIZED_FOR + " fields to " + AppMetadataTable.NAME + " table in db.");
+            db.execSQL("alter table " + AppMetadataTable.NAME + " add column "
+                    + AppMetadataTable.Cols.LOCALIZED + " text;");
+            db.execSQL("alter table " + AppMetadataTable.NAME + " add column "
+                    + AppMetadataTable.Cols.LOCALIZED_FOR + " text;");
+        }
+        clearRepoEtags(db);
+    }
+
+    /**
+     * {@link ApkTable.Cols#INCOMPATIBLE_REASONS} used to hold translated texts, now it is a
+     * code which {@link org.fdroid.fdroid.CompatibilityChecker} turns into texts when shown.
+     * Old values are still shown as they are until the repos were updated again.
+     */
+    private void encodeIncompatibleReasons(SQLiteDatabase db, int oldVersion) {
+        if (oldVersion >= 88) {
+            return;
+        }
+        clearRepoEtags(db);
+    }
+
+    private void addIndexDigest(SQLiteDatabase db, int oldVersion) {
+        if (oldVersion >= 89) {
+            return;
+        }
+        if (!columnExists(db, RepoTable.NAME, RepoTable.Cols.INDEX_DIGEST)) {
+            Utils.debugLog(TAG, "Adding " + RepoTable.Cols.INDEX_DIGEST + " field to "
+                    + RepoTable.NAME + " table in db.");
+            db.execSQL("alter table " + RepoTable.NAME + " add column "
+                    + RepoTable.Cols.INDEX_DIGEST + " text;");
+        }
+    }
+
+    private void addMirrorHealth(SQLiteDatabase db, int oldVersion) {
+        if (oldVersion >= 90) {
+            return;
+        }
+        if (!tableExists(db, MirrorHealthTable.NAME)) {
+            Utils.debugLog(TAG, "Creating " + MirrorHealthTable.NAME + " table in db.");
+            db.execSQL(CREATE_TABLE_MIRROR_HEALTH);
+        }
+    }
+
     /**
      * By clearing the etags stored in the repo table, it means that next time the user updates
      * their repos (either manually or on a scheduled task), they will update regardless of whether
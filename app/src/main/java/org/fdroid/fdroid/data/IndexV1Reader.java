@@ -0,0 +1,468 @@
+package org.fdroid.fdroid.data;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the {@link App} and {@link Apk} entries of {@code index-v1.json} straight off
+ * the {@link JsonParser}, rather than going through Jackson's reflective databinding.
+ * <p>
+ * Only the keys listed in {@link #readAppField(JsonParser, App, String)} and
+ * {@link #readApkField(JsonParser, Apk, String)} are ever set, everything else is
+ * skipped.  Those are the same public fields and {@code @JsonProperty} setters that
+ * Jackson would map, minus {@link Apk#appId} and {@link Apk#incompatibleReasons},
+ * which are worked out on the device and must never come from a repo.  So when adding
+ * a field to {@link App} or {@link Apk} that is meant to come from the index, it also
+ * has to be added here.
+ * <p>
+ * Type mismatches are handled the way Jackson would do it for the common cases,
+ * e.g. {@code "suggestedVersionCode": "12"} is read as a number, and values of the
+ * wrong shape, like an object where a string is expected, are skipped.
+ * <p>
+ * One instance is used for a whole index, so it also keeps a dictionary of the short
+ * tokens that repeat all over it, like permissions, features, ABIs, categories and
+ * signatures.  Each of them is only kept once, and so are whole lists of them, since
+ * e.g. the versions of an app mostly have exactly the same permissions.  Those arrays
+ * are shared between {@link App}s and {@link Apk}s, so they must not be changed in place.
+ */
+public class IndexV1Reader {
+
+    private final long repoId;
+    private final Map<String, String> strings = new HashMap<>();
+    private final Map<List<String>, String[]> stringArrays = new HashMap<>();
+
+    public IndexV1Reader(long repoId) {
+        this.repoId = repoId;
+    }
+
+    /**
+     * Reads one entry of the {@code apps} array, the parser must be at its {@code START_OBJECT}.
+     */
+    public App readApp(JsonParser parser) throws IOException {
+        App app = new App();
+        app.repoId = repoId;
+        String fieldName;
+        while ((fieldName = parser.nextFieldName()) != null) {
+            parser.nextToken();
+            try {
+                readAppField(parser, app, fieldName);
+            } catch (IllegalArgumentException e) {
+                throw new JsonParseException(parser, e.getMessage(), e);
+            }
+        }
+        return app;
+    }
+
+    /**
+     * Reads the list of {@link Apk}s of one entry of the {@code packages} object, the
+     * parser must be at its {@code START_ARRAY}.
+     */
+    public List<Apk> readApks(JsonParser parser, String packageName) throws IOException {
+        List<Apk> apks = new ArrayList<>();
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return apks;
+        }
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            apks.add(readApk(parser, packageName));
+        }
+        return apks;
+    }
+
+    private Apk readApk(JsonParser parser, String packageName) throws IOException {
+        Apk apk = new Apk();
+        apk.repoId = repoId;
+        String fieldName;
+        while ((fieldName = parser.nextFieldName()) != null) {
+            parser.nextToken();
+            try {
+                readApkField(parser, apk, fieldName);
+            } catch (IllegalArgumentException e) {
+                throw new JsonParseException(parser, e.getMessage(), e);
+            }
+        }
+        if (apk.packageName == null) {
+            apk.packageName = packageName;
+        }
+        apk.requestedPermissions = share(apk.requestedPermissions);
+        return apk;
+    }
+
+    private void readAppField(JsonParser parser, App app, String fieldName) throws IOException {
+        switch (fieldName) {
+            case "packageName":
+                app.setPackageName(readString(parser));
+                break;
+            case "name":
+                app.name = readString(parser);
+                break;
+            case "summary":
+                app.summary = readString(parser);
+                break;
+            case "icon":
+                app.iconFromApk = readString(parser);
+                break;
+            case "description":
+                app.setDescription(readString(parser));
+                break;
+            case "whatsNew":
+                app.whatsNew = readString(parser);
+                break;
+            case "featureGraphic":
+                app.featureGraphic = readString(parser);
+                break;
+            case "promoGraphic":
+                app.promoGraphic = readString(parser);
+                break;
+            case "tvBanner":
+                app.tvBanner = readString(parser);
+                break;
+            case "phoneScreenshots":
+                app.phoneScreenshots = readStringArray(parser);
+                break;
+            case "sevenInchScreenshots":
+                app.sevenInchScreenshots = readStringArray(parser);
+                break;
+            case "tenInchScreenshots":
+                app.tenInchScreenshots = readStringArray(parser);
+                break;
+            case "tvScreenshots":
+                app.tvScreenshots = readStringArray(parser);
+                break;
+            case "wearScreenshots":
+                app.wearScreenshots = readStringArray(parser);
+                break;
+            case "license":
+                app.license = intern(readString(parser));
+                break;
+            case "authorName":
+                app.authorName = readString(parser);
+                break;
+            case "authorEmail":
+                app.authorEmail = readString(parser);
+                break;
+            case "webSite":
+                app.webSite = readString(parser);
+                break;
+            case "issueTracker":
+                app.issueTracker = readString(parser);
+                break;
+            case "translation":
+                app.translation = readString(parser);
+                break;
+            case "sourceCode":
+                app.sourceCode = readString(parser);
+                break;
+            case "video":
+                app.video = readString(parser);
+                break;
+            case "changelog":
+                app.changelog = readString(parser);
+                break;
+            case "donate":
+                app.donate = readString(parser);
+                break;
+            case "bitcoin":
+                app.bitcoin = readString(parser);
+                break;
+            case "litecoin":
+                app.litecoin = readString(parser);
+                break;
+            case "flattrID":
+                app.flattrID = readString(parser);
+                break;
+            case "liberapay":
+                app.liberapay = readString(parser);
+                break;
+            case "liberapayID":
+                app.setLiberapayID(readString(parser));
+                break;
+            case "openCollective":
+                app.openCollective = readString(parser);
+                break;
+            case "upstreamVersionName":
+                app.upstreamVersionName = readString(parser);
+                break;
+            case "suggestedVersionCode":
+                app.upstreamVersionCode = readInt(parser);
+                break;
+            case "added":
+                app.added = readDate(parser);
+                break;
+            case "lastUpdated":
+                app.lastUpdated = readDate(parser);
+                break;
+            case "categories":
+                app.categories = readTokens(parser);
+                break;
+            case "antiFeatures":
+                app.antiFeatures = readTokens(parser);
+                break;
+            case "requirements":
+                app.requirements = readTokens(parser);
+                break;
+            case "localized":
+                Map<String, Map<String, Object>> localized = readLocalized(parser);
+                if (localized != null) {
+                    app.setLocalized(localized);
+                }
+                break;
+            default:
+                parser.skipChildren();
+                break;
+        }
+    }
+
+    private void readApkField(JsonParser parser, Apk apk, String fieldName) throws IOException {
+        switch (fieldName) {
+            case "packageName":
+                apk.setPackageName(intern(readString(parser)));
+                break;
+            case "versionName":
+                apk.versionName = readString(parser);
+                break;
+            case "versionCode":
+                apk.versionCode = readInt(parser);
+                break;
+            case "size":
+                apk.size = readInt(parser);
+                break;
+            case "hash":
+                apk.hash = readString(parser);
+                break;
+            case "hashType":
+                apk.hashType = intern(readString(parser));
+                break;
+            case "minSdkVersion":
+                apk.minSdkVersion = readInt(parser);
+                break;
+            case "targetSdkVersion":
+                apk.targetSdkVersion = readInt(parser);
+                break;
+            case "maxSdkVersion":
+                apk.maxSdkVersion = readInt(parser);
+                break;
+            case "obbMainFile":
+                apk.obbMainFile = readString(parser);
+                break;
+            case "obbMainFileSha256":
+                apk.obbMainFileSha256 = readString(parser);
+                break;
+            case "obbPatchFile":
+                apk.obbPatchFile = readString(parser);
+                break;
+            case "obbPatchFileSha256":
+                apk.obbPatchFileSha256 = readString(parser);
+                break;
+            case "added":
+                apk.added = readDate(parser);
+                break;
+            case "requestedPermissions":
+                apk.requestedPermissions = readTokens(parser);
+                break;
+            case "uses-permission":
+                apk.setUsesPermission(readPermissions(parser));
+                break;
+            case "uses-permission-sdk-23":
+                apk.setUsesPermissionSdk23(readPermissions(parser));
+                break;
+            case "features":
+                apk.features = readTokens(parser);
+                break;
+            case "nativecode":
+                apk.nativecode = readTokens(parser);
+                break;
+            case "sig":
+                apk.sig = intern(readString(parser));
+                break;
+            case "apkName":
+                apk.apkName = readString(parser);
+                break;
+            case "srcname":
+                apk.srcname = readString(parser);
+                break;
+            case "antiFeatures":
+                apk.antiFeatures = readTokens(parser);
+                break;
+            default:
+                parser.skipChildren();
+                break;
+        }
+    }
+
+    /**
+     * @return the value if it is a string or any other scalar, otherwise {@code null}
+     */
+    private static String readString(JsonParser parser) throws IOException {
+        JsonToken token = parser.currentToken();
+        if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return null;
+        }
+        return parser.getValueAsString();
+    }
+
+    private static int readInt(JsonParser parser) throws IOException {
+        JsonToken token = parser.currentToken();
+        if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return 0;
+        }
+        return parser.getValueAsInt();
+    }
+
+    private static Date readDate(JsonParser parser) throws IOException {
+        JsonToken token = parser.currentToken();
+        if (token == JsonToken.VALUE_NUMBER_INT) {
+            return new Date(parser.getLongValue());
+        }
+        if (token == JsonToken.VALUE_STRING) {
+            try {
+                return new Date(Long.parseLong(parser.getText()));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        parser.skipChildren();
+        return null;
+    }
+
+    private static String[] readStringArray(JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return null;
+        }
+        List<String> list = new ArrayList<>();
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            list.add(readString(parser));
+        }
+        return list.toArray(new String[list.size()]);
+    }
+
+    /**
+     * Reads a list of tokens which are likely to be found elsewhere in the index as well,
+     * like {@code ["arm64-v8a", "armeabi-v7a"]}, see {@link #share(String[])}.
+     */
+    private String[] readTokens(JsonParser parser) throws IOException {
+        String[] tokens = readStringArray(parser);
+        if (tokens != null) {
+            for (int i = 0; i < tokens.length; i++) {
+                tokens[i] = intern(tokens[i]);
+            }
+        }
+        return share(tokens);
+    }
+
+    /**
+     * @return the instance of {@code string} which was seen first while reading this index
+     */
+    private String intern(String string) {
+        if (string == null) {
+            return null;
+        }
+        String interned = strings.get(string);
+        if (interned == null) {
+            strings.put(string, string);
+            return string;
+        }
+        return interned;
+    }
+
+    /**
+     * @return an array with the same items as {@code array}, which was already returned
+     * for another {@link App} or {@link Apk}, if there was one
+     */
+    private String[] share(String[] array) {
+        if (array == null) {
+            return null;
+        }
+        List<String> key = Arrays.asList(array);
+        String[] shared = stringArrays.get(key);
+        if (shared == null) {
+            stringArrays.put(key, array);
+            return array;
+        }
+        return shared;
+    }
+
+    /**
+     * Reads the {@code [["android.permission.CAMERA", null], ["android.permission.READ_SMS", 22]]}
+     * format of {@code uses-permission}, with the optional {@code maxSdkVersion} as second item.
+     */
+    private Object[][] readPermissions(JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return new Object[0][];
+        }
+        List<Object[]> permissions = new ArrayList<>();
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (parser.currentToken() != JsonToken.START_ARRAY) {
+                parser.skipChildren();
+                continue;
+            }
+            Object[] permission = new Object[2];
+            int i = 0;
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                if (i == 0) {
+                    permission[0] = intern(readString(parser));
+                } else if (i == 1 && parser.currentToken() != JsonToken.VALUE_NULL) {
+                    permission[1] = readInt(parser);
+                } else {
+                    parser.skipChildren();
+                }
+                i++;
+            }
+            if (permission[0] != null) {
+                permissions.add(permission);
+            }
+        }
+        return permissions.toArray(new Object[permissions.size()][]);
+    }
+
+    /**
+     * The {@code localized} block is keyed by locale, so unlike the rest, it is read
+     * into a {@link Map}, which {@link App#setLocalized(Map)} keeps for picking from
+     * later.  Only strings and lists of strings are kept, that is all that is looked
+     * up in there.
+     */
+    private static Map<String, Map<String, Object>> readLocalized(JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return null;
+        }
+        Map<String, Map<String, Object>> localized = new LinkedHashMap<>();
+        String locale;
+        while ((locale = parser.nextFieldName()) != null) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                continue;
+            }
+            Map<String, Object> entries = new LinkedHashMap<>();
+            String key;
+            while ((key = parser.nextFieldName()) != null) {
+                JsonToken token = parser.nextToken();
+                if (token == JsonToken.START_ARRAY) {
+                    List<String> list = new ArrayList<>();
+                    while (parser.nextToken() != JsonToken.END_ARRAY) {
+                        list.add(readString(parser));
+                    }
+                    entries.put(key, list);
+                } else {
+                    entries.put(key, readString(parser));
+                }
+            }
+            localized.put(locale, entries);
+        }
+        return localized;
+    }
+}
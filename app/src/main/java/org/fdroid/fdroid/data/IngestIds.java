@@ -0,0 +1,146 @@
+package org.fdroid.fdroid.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+
+import org.fdroid.fdroid.data.Schema.AntiFeatureTable;
+import org.fdroid.fdroid.data.Schema.CategoryTable;
+import org.fdroid.fdroid.data.Schema.PackageTable;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The database IDs of all packages, categories and anti-features, for the duration
+ * of a single repo update.  Each table is read with one query when this is created,
+ * after which looking up a name does not touch the database at all.  Names which are
+ * not known yet are added in one go per flush, via {@link #ensurePackages(Collection)},
+ * {@link #ensureCategories(Collection)} and {@link #ensureAntiFeatures(Collection)},
+ * which have to be called in the same transaction as the inserts which use the IDs.
+ * <p>
+ * Only one repo is written at a time, see {@code IndexUpdater.PROCESS_INDEX_LOCK}, but
+ * packages are also added outside of that, by {@link InstalledAppProvider} when an app
+ * gets installed in between two flushes.  So before adding a name, it is looked up in
+ * the database once more.
+ *
+ * @see PackageProvider.Helper#ensureExists(android.content.Context, String)
+ * @see CategoryProvider.Helper#ensureExists(android.content.Context, String)
+ * @see ApkProvider#ensureAntiFeature(String)
+ */
+class IngestIds {
+
+    private final Dictionary packages;
+    private final Dictionary categories;
+    private final Dictionary antiFeatures;
+
+    IngestIds(SQLiteDatabase db) {
+        packages = new Dictionary(db, PackageTable.NAME, PackageTable.Cols.PACKAGE_NAME, false);
+        categories = new Dictionary(db, CategoryTable.NAME, CategoryTable.Cols.NAME, true);
+        antiFeatures = new Dictionary(db, AntiFeatureTable.NAME, AntiFeatureTable.Cols.NAME, false);
+    }
+
+    void ensurePackages(Collection<String> packageNames) {
+        packages.ensureExist(packageNames);
+    }
+
+    void ensureCategories(Collection<String> categoryNames) {
+        categories.ensureExist(categoryNames);
+    }
+
+    void ensureAntiFeatures(Collection<String> antiFeatureNames) {
+        antiFeatures.ensureExist(antiFeatureNames);
+    }
+
+    long getPackageId(String packageName) {
+        return packages.get(packageName);
+    }
+
+    /**
+     * Categories are matched ignoring their case, like {@link CategoryProvider} does.
+     */
+    long getCategoryId(String categoryName) {
+        return categories.get(categoryName);
+    }
+
+    long getAntiFeatureId(String antiFeatureName) {
+        return antiFeatures.get(antiFeatureName);
+    }
+
+    void close() {
+        packages.close();
+        categories.close();
+        antiFeatures.close();
+    }
+
+    /**
+     * Maps the names in one column of a table to the rowid they are stored with.
+     */
+    private static final class Dictionary {
+        private final String table;
+        private final boolean ignoreCase;
+        private final Map<String, Long> ids = new HashMap<>();
+        private final SQLiteStatement find;
+        private final SQLiteStatement insert;
+
+        Dictionary(SQLiteDatabase db, String table, String column, boolean ignoreCase) {
+            this.table = table;
+            this.ignoreCase = ignoreCase;
+            Cursor cursor = db.rawQuery("SELECT rowid, " + column + " FROM " + table + " ORDER BY rowid", null);
+            try {
+                while (cursor.moveToNext()) {
+                    String key = getKey(cursor.getString(1));
+                    if (!ids.containsKey(key)) {
+                        ids.put(key, cursor.getLong(0));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            find = db.compileStatement("SELECT rowid FROM " + table + " WHERE " + column + " = ?"
+                    + (ignoreCase ? " COLLATE NOCASE" : "") + " ORDER BY rowid LIMIT 1");
+            insert = db.compileStatement("INSERT INTO " + table + " (" + column + ") VALUES (?)");
+        }
+
+        private String getKey(String name) {
+            return ignoreCase ? name.toLowerCase(Locale.ENGLISH) : name;
+        }
+
+        void ensureExist(Collection<String> names) {
+            for (String name : names) {
+                String key = getKey(name);
+                if (ids.containsKey(key)) {
+                    continue;
+                }
+                long id;
+                find.bindString(1, name);
+                try {
+                    id = find.simpleQueryForLong();
+                } catch (SQLiteDoneException e) {
+                    insert.bindString(1, name);
+                    id = insert.executeInsert();
+                    if (id == -1) {
+                        throw new IllegalStateException("Could not insert " + name + " into " + table);
+                    }
+                }
+                ids.put(key, id);
+            }
+        }
+
+        long get(String name) {
+            Long id = ids.get(getKey(name));
+            if (id == null) {
+                throw new IllegalStateException(name + " was not added to " + table + " before using it");
+            }
+            return id;
+        }
+
+        void close() {
+            find.close();
+            insert.close();
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package org.fdroid.fdroid.data;
+
+import org.fdroid.fdroid.CompatibilityChecker;
+import org.fdroid.fdroid.IndexUpdater;
+import org.fdroid.fdroid.Utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Takes the apps and packages handed to a {@link RepoPersister} off the thread which
+ * is parsing the index, so that parsing, the {@link CompatibilityChecker} and the
+ * database writes all overlap:
+ * <pre>
+ * parser thread -> parsed queue -> compatibility worker -> checked queue -> writer thread
+ * </pre>
+ * Both queues are bounded, so when the database falls behind, the parser blocks rather
+ * than piling up parsed records in memory.  There is only ever one writer thread, and
+ * it sees the records in the order they were parsed, so {@link RepoPersister} does not
+ * need to know about any of this.
+ * <p>
+ * The compatibility worker takes everything that is queued at once, and spreads big
+ * batches over the remaining cores, see {@link #calcApkCompatibilityFlags(CompatibilityChecker, List)}.
+ * <p>
+ * If a stage fails, it keeps draining its queue so that nothing upstream blocks forever,
+ * and the failure is thrown to the parser thread on its next {@link #putApp(App)},
+ * {@link #putApks(String, List)} or {@link #finish()}.
+ */
+class IngestPipeline {
+
+    private static final String TAG = "IngestPipeline";
+
+    /**
+     * The number of records (an app, or the list of packages of one app) which can be
+     * waiting between two stages.  Together with the flush buffer of {@link RepoPersister}
+     * this bounds how many parsed records can be in memory at once.
+     */
+    private static final int QUEUE_CAPACITY = 100;
+
+    private static final long ABORT_TIMEOUT_SECONDS = 30;
+
+    /**
+     * Below this, checking the compatibility of a batch is not worth handing to other threads.
+     */
+    private static final int PARALLEL_CHECK_MIN_APKS = 200;
+
+    private static ExecutorService checkExecutor;
+
+    interface Writer {
+        void writeApp(App app) throws IndexUpdater.UpdateException;
+
+        void writeApks(String packageName, List<Apk> apks) throws IndexUpdater.UpdateException;
+    }
+
+    private static final class Record {
+        final App app;
+        final String packageName;
+        final List<Apk> apks;
+
+        Record(App app, String packageName, List<Apk> apks) {
+            this.app = app;
+            this.packageName = packageName;
+            this.apks = apks;
+        }
+    }
+
+    private static final Record END = new Record(null, null, null);
+
+    private final BlockingQueue<Record> parsed = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final BlockingQueue<Record> checked = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+    private final Future<?> checkerTask;
+    private final Future<?> writerTask;
+
+    private volatile Exception failure;
+
+    IngestPipeline(final CompatibilityChecker checker, final Writer writer) {
+        checkerTask = executor.submit(() -> {
+            List<Record> batch = new ArrayList<>();
+            boolean ended = false;
+            while (!ended) {
+                batch.add(parsed.take());
+                parsed.drainTo(batch);
+                int end = batch.indexOf(END);
+                if (end >= 0) {
+                    batch.subList(end, batch.size()).clear();
+                    ended = true;
+                }
+                if (failure == null) {
+                    try {
+                        List<Apk> apks = new ArrayList<>();
+                        for (Record record : batch) {
+                            if (record.apks != null) {
+                                apks.addAll(record.apks);
+                            }
+                        }
+                        calcApkCompatibilityFlags(checker, apks);
+                        for (Record record : batch) {
+                            checked.put(record);
+                        }
+                    } catch (RuntimeException e) {
+                        failure = e;
+                    }
+                }
+                batch.clear();
+            }
+            checked.put(END);
+            return null;
+        });
+
+        writerTask = executor.submit(() -> {
+            Record record;
+            while ((record = checked.take()) != END) {
+                if (failure != null) {
+                    continue;
+                }
+                try {
+                    if (record.app != null) {
+                        writer.writeApp(record.app);
+                    } else {
+                        writer.writeApks(record.packageName, record.apks);
+                    }
+                } catch (IndexUpdater.UpdateException | RuntimeException e) {
+                    failure = e;
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Splits big batches over {@link #getCheckExecutor()}, as long as there are cores
+     * left over beside the ones parsing and writing.
+     */
+    private static void calcApkCompatibilityFlags(final CompatibilityChecker checker, final List<Apk> apks)
+            throws InterruptedException {
+        int cores = Runtime.getRuntime().availableProcessors();
+        if (apks.size() < PARALLEL_CHECK_MIN_APKS || cores <= 2) {
+            RepoPersister.calcApkCompatibilityFlags(checker, apks);
+            return;
+        }
+        int chunkSize = (apks.size() + cores - 1) / cores;
+        List<Future<?>> chunks = new ArrayList<>();
+        for (int start = chunkSize; start < apks.size(); start += chunkSize) {
+            final List<Apk> chunk = apks.subList(start, Math.min(start + chunkSize, apks.size()));
+            chunks.add(getCheckExecutor().submit(() -> RepoPersister.calcApkCompatibilityFlags(checker, chunk)));
+        }
+        RepoPersister.calcApkCompatibilityFlags(checker, apks.subList(0, chunkSize));
+        for (Future<?> chunk : chunks) {
+            try {
+                chunk.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Shared by all pipelines, as several repos can be updated at once.
+     */
+    private static synchronized ExecutorService getCheckExecutor() {
+        if (checkExecutor == null) {
+            checkExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() - 1,
+                    runnable -> {
+                        Thread thread = new Thread(runnable, "CompatibilityCheck");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+        }
+        return checkExecutor;
+    }
+
+    void putApp(App app) throws IndexUpdater.UpdateException {
+        put(new Record(app, null, null));
+    }
+
+    void putApks(String packageName, List<Apk> apks) throws IndexUpdater.UpdateException {
+        put(new Record(null, packageName, apks));
+    }
+
+    /**
+     * Wait for everything which was put into the pipeline to be written.
+     */
+    void finish() throws IndexUpdater.UpdateException {
+        Utils.debugLog(TAG, "Waiting for " + (parsed.size() + checked.size()) + " queued records to be written.");
+        put(END);
+        try {
+            checkerTask.get();
+            writerTask.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IndexUpdater.UpdateException("Interrupted while writing the index to the database", e);
+        } catch (ExecutionException e) {
+            throw new IndexUpdater.UpdateException("An internal error occurred while updating the database", e);
+        } finally {
+            executor.shutdown();
+        }
+        throwIfFailed();
+    }
+
+    /**
+     * Stops the worker threads, e.g. when parsing failed, discarding anything still
+     * queued.  This waits for a write which is already running to finish, so that
+     * the caller can safely clean up after the writer.
+     */
+    void abort() {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(ABORT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void put(Record record) throws IndexUpdater.UpdateException {
+        throwIfFailed();
+        try {
+            parsed.put(record);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IndexUpdater.UpdateException("Interrupted while writing the index to the database", e);
+        }
+    }
+
+    private void throwIfFailed() throws IndexUpdater.UpdateException {
+        Exception e = failure;
+        if (e instanceof IndexUpdater.UpdateException) {
+            throw (IndexUpdater.UpdateException) e;
+        } else if (e != null) {
+            throw new IndexUpdater.UpdateException("An internal error occurred while updating the database", e);
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package org.fdroid.fdroid.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.annotation.Nullable;
+import androidx.collection.LongSparseArray;
+
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.data.Schema.MirrorHealthTable;
+import org.fdroid.fdroid.data.Schema.MirrorHealthTable.Cols;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * How fast and reliable each mirror of a repo was so far, including the repo itself,
+ * so that downloads go to the best one first.  For each mirror, this keeps a moving
+ * average of how long the server took to answer, of the download speed, and of how
+ * often it failed, in which the most recent downloads count most.  It is kept in
+ * {@link MirrorHealthTable}, so it is still known after a restart.
+ * <p>
+ * Mirrors are ranked by how long they would take to download {@link #REFERENCE_SIZE}
+ * bytes, where failures make that take longer.  Nothing known about a mirror counts as
+ * {@link #DEFAULT_CONNECT_MILLIS} and {@link #DEFAULT_BYTES_PER_SECOND}, and the repo
+ * itself goes first when it is a tie.  One in {@link #EXPLORE_ONE_IN} times, a random
+ * other mirror goes first instead, so that mirrors which got better are noticed.
+ * <p>
+ * Every download goes through the mirrors with its own {@link Failover}, so that downloads
+ * running at the same time do not use up each other's tries or change each other's
+ * timeouts.
+ */
+public final class MirrorHealth {
+    private static final String TAG = "MirrorHealth";
+
+    /**
+     * How much the latest download counts in the moving averages.
+     */
+    private static final double WEIGHT = 0.3;
+
+    private static final int EXPLORE_ONE_IN = 10;
+
+    private static final double REFERENCE_SIZE = 1024 * 1024;
+    private static final double DEFAULT_CONNECT_MILLIS = 1000;
+    private static final double DEFAULT_BYTES_PER_SECOND = 256 * 1024;
+
+    /**
+     * The connect timeouts for the first, second and third time {@link Failover}
+     * goes through all mirrors.
+     */
+    static final int[] TIMEOUTS = {10000, 30000, 60000};
+
+    private static final LongSparseArray<MirrorHealth> INSTANCES = new LongSparseArray<>();
+    private static final Random RANDOM = new Random();
+
+    private final long repoId;
+    private final Map<String, Stats> stats = new HashMap<>();
+
+    static final class Stats {
+        double connectMillis = -1;
+        double bytesPerSecond = -1;
+        double failureRate;
+
+        /**
+         * How long {@link #REFERENCE_SIZE} bytes would take, counting the tries that fail.
+         */
+        double estimateMillis() {
+            double millis = (connectMillis < 0 ? DEFAULT_CONNECT_MILLIS : connectMillis)
+                    + REFERENCE_SIZE * 1000 / (bytesPerSecond <= 0 ? DEFAULT_BYTES_PER_SECOND : bytesPerSecond);
+            return millis / Math.max(0.05, 1 - failureRate);
+        }
+    }
+
+    private MirrorHealth(long repoId) {
+        this.repoId = repoId;
+    }
+
+    private static synchronized MirrorHealth get(Context context, long repoId) {
+        MirrorHealth health = INSTANCES.get(repoId);
+        if (health == null) {
+            health = new MirrorHealth(repoId);
+            health.load(DBHelper.getInstance(context).getReadableDatabase());
+            INSTANCES.put(repoId, health);
+        }
+        return health;
+    }
+
+    /**
+     * Forgets what was loaded, so that the next use reads it from the database again.
+     */
+    static synchronized void clearCache() {
+        INSTANCES.clear();
+    }
+
+    private void load(SQLiteDatabase db) {
+        Cursor cursor = db.query(MirrorHealthTable.NAME, Cols.ALL, Cols.REPO_ID + " = ?",
+                new String[]{String.valueOf(repoId)}, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                Stats mirrorStats = new Stats();
+                mirrorStats.connectMillis = cursor.isNull(2) ? -1 : cursor.getDouble(2);
+                mirrorStats.bytesPerSecond = cursor.isNull(3) ? -1 : cursor.getDouble(3);
+                mirrorStats.failureRate = cursor.getDouble(4);
+                stats.put(cursor.getString(1), mirrorStats);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void save(Context context, String mirror, Stats mirrorStats) {
+        ContentValues values = new ContentValues(5);
+        values.put(Cols.REPO_ID, repoId);
+        values.put(Cols.MIRROR, mirror);
+        if (mirrorStats.connectMillis >= 0) {
+            values.put(Cols.CONNECT_MILLIS, mirrorStats.connectMillis);
+        }
+        if (mirrorStats.bytesPerSecond > 0) {
+            values.put(Cols.BYTES_PER_SECOND, mirrorStats.bytesPerSecond);
+        }
+        values.put(Cols.FAILURE_RATE, mirrorStats.failureRate);
+        DBHelper.getInstance(context).getWritableDatabase()
+                .insertWithOnConflict(MirrorHealthTable.NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    private Stats getStats(String mirror) {
+        Stats mirrorStats = stats.get(mirror);
+        if (mirrorStats == null) {
+            mirrorStats = new Stats();
+            stats.put(mirror, mirrorStats);
+        }
+        return mirrorStats;
+    }
+
+    /**
+     * Records a download from {@code urlString} which worked.
+     *
+     * @param connectMillis  how long the server took to answer, or {@code -1} if not known
+     * @param bytesPerSecond how fast the download was, or {@code -1} if it was too small to tell
+     */
+    public static void onSuccess(Context context, long repoId, String urlString,
+                                 long connectMillis, long bytesPerSecond) {
+        String mirror = findMirror(context, repoId, urlString);
+        if (mirror == null) {
+            return;
+        }
+        MirrorHealth health = get(context, repoId);
+        synchronized (health) {
+            Stats mirrorStats = health.getStats(mirror);
+            if (connectMillis >= 0) {
+                mirrorStats.connectMillis = average(mirrorStats.connectMillis, connectMillis);
+            }
+            if (bytesPerSecond > 0) {
+                mirrorStats.bytesPerSecond = average(mirrorStats.bytesPerSecond, bytesPerSecond);
+            }
+            mirrorStats.failureRate = average(mirrorStats.failureRate, 0);
+            health.save(context, mirror, mirrorStats);
+        }
+    }
+
+    /**
+     * Records that {@code urlString} could not be downloaded, because its server
+     * could not be reached, or did not have the file.
+     */
+    public static void onFailure(Context context, long repoId, String urlString) {
+        String mirror = findMirror(context, repoId, urlString);
+        if (mirror == null) {
+            return;
+        }
+        Utils.debugLog(TAG, "Download from " + mirror + " failed");
+        MirrorHealth health = get(context, repoId);
+        synchronized (health) {
+            Stats mirrorStats = health.getStats(mirror);
+            mirrorStats.failureRate = average(mirrorStats.failureRate, 1);
+            health.save(context, mirror, mirrorStats);
+        }
+    }
+
+    /**
+     * Drops everything known about the mirrors of a repo which was removed.
+     */
+    static void forget(Context context, long repoId) {
+        synchronized (MirrorHealth.class) {
+            INSTANCES.remove(repoId);
+        }
+        DBHelper.getInstance(context).getWritableDatabase().delete(MirrorHealthTable.NAME,
+                Cols.REPO_ID + " = ?", new String[]{String.valueOf(repoId)});
+    }
+
+    private static double average(double average, double value) {
+        if (average < 0) {
+            return value;
+        }
+        return average + WEIGHT * (value - average);
+    }
+
+    @Nullable
+    private static String findMirror(Context context, long repoId, String urlString) {
+        if (repoId <= 0 || urlString == null) {
+            return null;
+        }
+        String[] projection = {Schema.RepoTable.Cols.ADDRESS, Schema.RepoTable.Cols.MIRRORS,
+                Schema.RepoTable.Cols.USER_MIRRORS};
+        Repo repo = RepoProvider.Helper.findById(context, repoId, projection);
+        return repo == null ? null : repo.findMirror(urlString);
+    }
+
+    /**
+     * Sorts {@code mirrors} best first, and sometimes moves another one to the front.
+     *
+     * @return how long each of them usually takes to answer, if known
+     */
+    synchronized Map<String, Double> rank(List<String> mirrors, final String address) {
+        final Map<String, Double> estimates = new HashMap<>();
+        Map<String, Double> connectMillis = new HashMap<>();
+        for (String mirror : mirrors) {
+            Stats mirrorStats = stats.get(mirror);
+            if (mirrorStats == null) {
+                mirrorStats = new Stats();
+            } else if (mirrorStats.connectMillis >= 0) {
+                connectMillis.put(mirror, mirrorStats.connectMillis);
+            }
+            estimates.put(mirror, mirrorStats.estimateMillis());
+        }
+        Collections.sort(mirrors, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                int compare = Double.compare(estimates.get(a), estimates.get(b));
+                if (compare == 0) {
+                    return Boolean.compare(!a.equals(address), !b.equals(address));
+                }
+                return compare;
+            }
+        });
+        if (mirrors.size() > 1 && RANDOM.nextInt(EXPLORE_ONE_IN) == 0) {
+            String explored = mirrors.remove(1 + RANDOM.nextInt(mirrors.size() - 1));
+            mirrors.add(0, explored);
+        }
+        Utils.debugLog(TAG, "Mirrors of repo " + repoId + " from best to worst: " + mirrors);
+        return connectMillis;
+    }
+
+    /**
+     * @return the usable mirrors of {@code repo}, including the repo itself, best first,
+     * in the same order a {@link Failover} would try them
+     */
+    public static List<String> getRankedMirrors(Context context, Repo repo) {
+        List<String> mirrors = repo.getUsableMirrors();
+        get(context, repo.getId()).rank(mirrors, repo.address);
+        return mirrors;
+    }
+
+    /**
+     * For a download from a repo which has mirrors.
+     *
+     * @param urlString   the URL of the file on the repo itself
+     * @param repoIsFirst whether the repo itself should be tried first anyway, for
+     *                    files which a mirror might not have the latest version of
+     */
+    public static Failover getFailover(Context context, long repoId, String urlString, boolean repoIsFirst) {
+        Repo repo = repoId > 0 ? RepoProvider.Helper.findById(context, repoId) : null;
+        return getFailover(context, repo, urlString, repoIsFirst);
+    }
+
+    /**
+     * @see #getFailover(Context, long, String, boolean)
+     */
+    public static Failover getFailover(Context context, @Nullable Repo repo, String urlString,
+                                       boolean repoIsFirst) {
+        String base = repo == null ? null : repo.findMirror(urlString);
+        if (base == null) {
+            return new Failover(urlString, null, Collections.<String>emptyList(),
+                    Collections.<String, Double>emptyMap(), 1);
+        }
+        List<String> mirrors = repo.getUsableMirrors();
+        Map<String, Double> connectMillis = get(context, repo.getId()).rank(mirrors, repo.address);
+        if (repoIsFirst) {
+            mirrors.remove(repo.address);
+            mirrors.add(0, repo.address);
+        }
+        return new Failover(urlString, base, mirrors, connectMillis, repo.hasMirrors() ? TIMEOUTS.length : 1);
+    }
+
+    /**
+     * The mirrors to try for one download, best first.  After each of them failed once,
+     * they are all tried again with a longer timeout, see {@link #TIMEOUTS}.  The timeout
+     * is never shorter than four times how long the mirror usually takes to answer, so
+     * that slow connections like Tor do not time out on the first round already.
+     */
+    public static final class Failover {
+        private final String urlString;
+        private final String base;
+        private final List<String> mirrors;
+        private final Map<String, Double> connectMillis;
+        private final int rounds;
+        private int tries;
+        private String current;
+
+        Failover(String urlString, String base, List<String> mirrors, Map<String, Double> connectMillis,
+                 int rounds) {
+            this.urlString = urlString;
+            this.base = base;
+            this.mirrors = mirrors;
+            this.connectMillis = connectMillis;
+            this.rounds = rounds;
+        }
+
+        /**
+         * @return the URL to try next
+         * @throws IOException if all mirrors were tried as often as they should be
+         */
+        public synchronized String next() throws IOException {
+            if (base == null) {
+                if (tries++ > 0) {
+                    throw new IOException("No mirrors available");
+                }
+                return urlString;
+            }
+            if (tries >= mirrors.size() * rounds) {
+                Utils.debugLog(TAG, "Mirrors: Giving up");
+                throw new IOException("Ran out of mirrors");
+            }
+            current = mirrors.get(tries % mirrors.size());
+            tries++;
+            Utils.debugLog(TAG, "Trying " + current + " for " + urlString + ", timeout=" + getTimeout() / 1000 + "s");
+            return urlString.replace(base, current);
+        }
+
+        /**
+         * @return the connect timeout in milliseconds for the URL {@link #next()} returned last
+         */
+        public synchronized int getTimeout() {
+            if (current == null) {
+                return TIMEOUTS[0];
+            }
+            int timeout = TIMEOUTS[Math.min(TIMEOUTS.length - 1, (tries - 1) / mirrors.size())];
+            Double millis = connectMillis.get(current);
+            if (millis != null) {
+                timeout = (int) Math.max(timeout, Math.min(TIMEOUTS[TIMEOUTS.length - 1], 4 * millis));
+            }
+            return timeout;
+        }
+    }
+}
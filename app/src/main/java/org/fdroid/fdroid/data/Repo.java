@@ -39,7 +39,6 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 
@@ -79,6 +78,12 @@ public class Repo extends ValueObject{
      */
     @JsonIgnore
     public String lastetag;
+    /**
+     * The digest the signed jar listed for the last index that was processed, see
+     * {@link org.fdroid.fdroid.IndexV1Updater#getIndexDigest(java.util.jar.Manifest)}
+     */
+    @JsonIgnore
+    public String indexDigest;
     /**
      * How to treat push requests included in this repo's index XML. This comes
      * from {@code default_repo.xml} or perhaps user input.  It should never be
@@ -198,6 +203,9 @@ public class Repo extends ValueObject{
                 case Cols.PUSH_REQUESTS:
                     pushRequests = cursor.getInt(i);
                     break;
+                case Cols.INDEX_DIGEST:
+                    indexDigest = cursor.getString(i);
+                    break;
             }
         }
     }
@@ -268,6 +276,10 @@ public class Repo extends ValueObject{
             lastetag = values.getAsString(Cols.LAST_ETAG);
         }
 
+        if (values.containsKey(Cols.INDEX_DIGEST)) {
+            indexDigest = values.getAsString(Cols.INDEX_DIGEST);
+        }
+
         if (values.containsKey(Cols.ADDRESS)) {
             address = values.getAsString(Cols.ADDRESS);
         }
@@ -358,6 +370,38 @@ public class Repo extends ValueObject{
         return allMirrors;
     }
 
+    /**
+     * @return the address of the repo, followed by all its mirrors which can be used
+     * right now, which leaves out {@code .onion} mirrors unless Tor is used
+     */
+    public List<String> getUsableMirrors() {
+        List<String> usableMirrors = new ArrayList<>();
+        usableMirrors.add(address);
+        for (String m : getMirrorList()) {
+            if (!usableMirrors.contains(m) && (FDroidApp.isUsingTor() || !m.contains(".onion"))) {
+                usableMirrors.add(m);
+            }
+        }
+        return usableMirrors;
+    }
+
+    /**
+     * @return the address of the repo or of the mirror which {@code urlString} is on,
+     * or {@code null} if it is not from this repo
+     */
+    @Nullable
+    public String findMirror(String urlString) {
+        String found = null;
+        List<String> allMirrors = getMirrorList();
+        allMirrors.add(address);
+        for (String m : allMirrors) {
+            if (urlString.startsWith(m) && (found == null || m.length() > found.length())) {
+                found = m;
+            }
+        }
+        return found;
+    }
+
     /**
      * Get the number of available mirrors, including the canonical repo.
      */
@@ -376,29 +420,4 @@ public class Repo extends ValueObject{
         }
         return count;
     }
-
-    @Nullable
-    public String getMirror(String lastWorkingMirror) {
-        if (TextUtils.isEmpty(lastWorkingMirror)) {
-            lastWorkingMirror = address;
-        }
-        List<String> shuffledMirrors = getMirrorList();
-        Collections.shuffle(shuffledMirrors);
-        if (shuffledMirrors.size() > 1) {
-            for (String m : shuffledMirrors) {
-                // Return a non default, and not last used mirror
-                if (!m.equals(address) && !m.equals(lastWorkingMirror)) {
-                    if (FDroidApp.isUsingTor()) {
-                        return m;
-                    } else {
-                        // Filter-out onion mirrors for non-tor connections
-                        if (!m.contains(".onion")) {
-                            return m;
-                        }
-                    }
-                }
-            }
-        }
-        return null; // In case we are out of mirrors.
-    }
 }
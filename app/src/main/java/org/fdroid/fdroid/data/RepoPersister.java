@@ -1,12 +1,12 @@
 package org.fdroid.fdroid.data;
 
-import android.content.ContentProviderOperation;
+import android.content.ComponentCallbacks2;
 import android.content.ContentValues;
 import android.content.Context;
-import android.content.OperationApplicationException;
-import android.net.Uri;
-import android.os.RemoteException;
+import android.database.SQLException;
+import android.os.SystemClock;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import org.fdroid.fdroid.CompatibilityChecker;
 import org.fdroid.fdroid.IndexUpdater;
@@ -22,21 +22,50 @@ public class RepoPersister {
     private static final String TAG = "RepoPersister";
 
     /**
-     * Crappy benchmark with a Nexus 4, Android 5.0 on a fairly crappy internet connection I get:
+     * How many apps (or lists of packages) are buffered before they are written to the
+     * database, until there is an estimate of how big they are.  Crappy benchmark with a
+     * Nexus 4, Android 5.0 on a fairly crappy internet connection I get:
      * * 25 = 37 seconds
      * * 50 = 33 seconds
      * * 100 = 30 seconds
      * * 200 = 32 seconds
-     * Raising this means more memory consumption, so we'd like it to be low, but not
-     * so low that it takes too long.
+     * After the first flush, the size is worked out from the heap, see {@link #chooseBufferSize()}.
+     * Since the app IDs come straight from the inserts, it is not limited by how many
+     * package names fit into a query URI.
      */
-    private static final int MAX_APP_BUFFER = 50;
+    private static final int DEFAULT_APP_BUFFER = 50;
+
+    private static final int MIN_APP_BUFFER = 10;
+
+    /**
+     * Beyond this, bigger batches do not make writing any faster.
+     */
+    private static final int MAX_APP_BUFFER = 250;
+
+    /**
+     * The buffer may take at most this fraction of the maximum heap, and at most
+     * {@link #HEADROOM_SHARE} of what is still free of it.
+     */
+    private static final int HEAP_SHARE = 32;
+    private static final int HEADROOM_SHARE = 4;
+
+    /**
+     * How long to stick to {@link #MIN_APP_BUFFER} after {@link #onTrimMemory(int)}.
+     */
+    private static final long LOW_MEMORY_MILLIS = 60000;
+
+    private static volatile long lowMemorySince = -LOW_MEMORY_MILLIS;
 
     @NonNull
     private final Repo repo;
 
     private boolean hasBeenInitialized;
 
+    /**
+     * Only available once {@link #hasBeenInitialized}.
+     */
+    private TempTableBulkWriter writer;
+
     @NonNull
     private final Context context;
 
@@ -46,30 +75,172 @@ public class RepoPersister {
     @NonNull
     private final Map<String, List<Apk>> apksToSave = new HashMap<>();
 
+    /**
+     * The database ID of every app written to the temp table so far, so that packages
+     * which are read after their app can be linked to it straight away.  Packages which
+     * are read before their app are linked in the database before committing, see
+     * {@link TempAppProvider.Helper#commitAppsAndApks(Context, long)}.
+     */
+    @NonNull
+    private final Map<String, Long> appIds = new HashMap<>();
+
     @NonNull
     private final CompatibilityChecker checker;
 
+    /**
+     * When set, compatibility checks and database writes happen on their own threads,
+     * see {@link IngestPipeline}.  Otherwise everything runs on the calling thread.
+     */
+    @Nullable
+    private final IngestPipeline pipeline;
+
+    @Nullable
+    private Utils.Profiler profiler;
+
+    private int bufferSize = DEFAULT_APP_BUFFER;
+
+    /**
+     * The estimated size of what is currently buffered, see {@link #estimateSize(App)}.
+     */
+    private long bufferedBytes;
+
+    /**
+     * Running average of the estimated size of an app including its packages, or
+     * {@code 0} before anything was flushed.
+     */
+    private long bytesPerApp;
+
+    /**
+     * Uses the pipelined mode when there is more than one CPU core to run it on.
+     */
     public RepoPersister(@NonNull Context context, @NonNull Repo repo) {
+        this(context, repo, Runtime.getRuntime().availableProcessors() > 1);
+    }
+
+    public RepoPersister(@NonNull Context context, @NonNull Repo repo, boolean pipelined) {
         this.repo = repo;
         this.context = context;
-        checker = new CompatibilityChecker(context);
+        checker = CompatibilityChecker.getInstance(context);
+        if (pipelined) {
+            pipeline = new IngestPipeline(checker, new IngestPipeline.Writer() {
+                @Override
+                public void writeApp(App app) throws IndexUpdater.UpdateException {
+                    bufferApp(app);
+                }
+
+                @Override
+                public void writeApks(String packageName, List<Apk> apks) throws IndexUpdater.UpdateException {
+                    bufferApks(packageName, apks);
+                }
+            });
+        } else {
+            pipeline = null;
+        }
+    }
+
+    /**
+     * Buffer sizes and flush timings are logged to {@code profiler}.
+     */
+    public void setProfiler(@Nullable Utils.Profiler profiler) {
+        this.profiler = profiler;
+    }
+
+    /**
+     * Called from {@link android.content.ComponentCallbacks2#onTrimMemory(int)}.  Any repo
+     * update currently running then writes out what it buffered and only buffers very little
+     * for a while.
+     */
+    public static void onTrimMemory(int level) {
+        if (level != ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            lowMemorySince = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private static boolean isMemoryLow() {
+        return SystemClock.elapsedRealtime() - lowMemorySince < LOW_MEMORY_MILLIS;
     }
 
     public void saveToDb(App app, List<Apk> packages) throws IndexUpdater.UpdateException {
-        appsToSave.add(app);
-        apksToSave.put(app.packageName, packages);
+        saveApp(app);
+        saveApks(app.packageName, packages);
+    }
 
-        if (appsToSave.size() >= MAX_APP_BUFFER) {
-            flushBufferToDb();
+    /**
+     * Queue an app to be written, independently of its packages.
+     */
+    public void saveApp(App app) throws IndexUpdater.UpdateException {
+        if (pipeline != null) {
+            pipeline.putApp(app);
+        } else {
+            bufferApp(app);
+        }
+    }
+
+    /**
+     * Queue the packages of a single app to be written.  The app itself can be saved
+     * before or after this via {@link #saveApp(App)}.
+     */
+    public void saveApks(String packageName, List<Apk> packages) throws IndexUpdater.UpdateException {
+        if (packages == null || packages.isEmpty()) {
+            return;
+        }
+        if (pipeline != null) {
+            pipeline.putApks(packageName, packages);
+        } else {
+            bufferApks(packageName, packages);
         }
     }
 
+    /**
+     * Replaces everything stored for this repo with what was saved.
+     */
     public void commit(ContentValues repoDetailsToSave, long repoIdToCommit) throws IndexUpdater.UpdateException {
+        if (pipeline != null) {
+            pipeline.finish();
+        }
         flushBufferToDb();
+        closeWriter();
         TempAppProvider.Helper.commitAppsAndApks(context, repoIdToCommit);
         RepoProvider.Helper.update(context, repo, repoDetailsToSave);
     }
 
+    /**
+     * Stops any background work without committing, e.g. when the index turned out to
+     * be invalid.  Does nothing if {@link #commit(ContentValues, long)} already ran.
+     */
+    public void close() {
+        if (pipeline != null) {
+            pipeline.abort();
+        }
+        closeWriter();
+    }
+
+    private void closeWriter() {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    private void bufferApp(App app) throws IndexUpdater.UpdateException {
+        appsToSave.add(app);
+        bufferedBytes += estimateSize(app);
+        flushBufferToDbIfFull();
+    }
+
+    private void bufferApks(String packageName, List<Apk> packages) throws IndexUpdater.UpdateException {
+        apksToSave.put(packageName, packages);
+        bufferedBytes += estimateSize(packages);
+        flushBufferToDbIfFull();
+    }
+
+    private void flushBufferToDbIfFull() throws IndexUpdater.UpdateException {
+        int limit = isMemoryLow() ? Math.min(bufferSize, MIN_APP_BUFFER) : bufferSize;
+        if (appsToSave.size() >= limit || apksToSave.size() >= limit) {
+            flushBufferToDb();
+        }
+    }
+
     private void flushBufferToDb() throws IndexUpdater.UpdateException {
         if (!hasBeenInitialized) {
             // This is where we will store all of the metadata before committing at the
@@ -78,99 +249,129 @@ public class RepoPersister {
             // want to put stuff in the real database until we are sure it is from a
             // trusted source. It also helps performance as it is done via an in-memory database.
             TempAppProvider.Helper.init(context, repo.getId());
+            writer = new TempTableBulkWriter(context);
             hasBeenInitialized = true;
         }
 
         if (apksToSave.size() > 0 || appsToSave.size() > 0) {
-            Utils.debugLog(TAG, "Flushing details of up to " + MAX_APP_BUFFER + " apps/packages to the database.");
-            Map<String, Long> appIds = flushAppsToDbInBatch();
-            flushApksToDbInBatch(appIds);
+            long start = System.currentTimeMillis();
+            if (appsToSave.size() > 0) {
+                appIds.putAll(flushAppsToDbInBatch());
+            }
+            if (apksToSave.size() > 0) {
+                flushApksToDbInBatch();
+            }
+            long sample = bufferedBytes / Math.max(appsToSave.size(), apksToSave.size());
+            bytesPerApp = bytesPerApp == 0 ? sample : (bytesPerApp * 3 + sample) / 4;
+            String flushed = "Flushed " + appsToSave.size() + " apps and " + apksToSave.size()
+                    + " lists of packages in " + (System.currentTimeMillis() - start) + "ms";
             apksToSave.clear();
             appsToSave.clear();
-        }
-    }
+            bufferedBytes = 0;
 
-    private void flushApksToDbInBatch(Map<String, Long> appIds) throws IndexUpdater.UpdateException {
-        List<Apk> apksToSaveList = new ArrayList<>();
-        for (Map.Entry<String, List<Apk>> entries : apksToSave.entrySet()) {
-            for (Apk apk : entries.getValue()) {
-                apk.appId = appIds.get(apk.packageName);
+            int size = chooseBufferSize();
+            if (size != bufferSize) {
+                bufferSize = size;
+                log(flushed + ", now buffering up to " + size + " apps (about " + bytesPerApp + " bytes each)");
+            } else {
+                log(flushed);
             }
-            apksToSaveList.addAll(entries.getValue());
-        }
-
-        calcApkCompatibilityFlags(apksToSaveList);
-
-        ArrayList<ContentProviderOperation> apkOperations = insertApks(apksToSaveList);
-
-        try {
-            context.getContentResolver().applyBatch(TempApkProvider.getAuthority(), apkOperations);
-        } catch (RemoteException | OperationApplicationException e) {
-            throw new IndexUpdater.UpdateException("An internal error occurred while updating the database", e);
         }
     }
 
     /**
-     * Will first insert new or update existing rows in the database for each {@link RepoPersister#appsToSave}.
-     * Then, will query the database for the ID + packageName for each of these apps, so that they
-     * can be returned and the relevant apks can be joined to the app table correctly.
+     * Picks how many apps to buffer from {@link #bytesPerApp}, so that the buffer only
+     * takes a small part of the heap, and less of it the less of it is free.
      */
-    private Map<String, Long> flushAppsToDbInBatch() throws IndexUpdater.UpdateException {
-        ArrayList<ContentProviderOperation> appOperations = insertApps(appsToSave);
+    private int chooseBufferSize() {
+        if (isMemoryLow()) {
+            return MIN_APP_BUFFER;
+        }
+        Runtime runtime = Runtime.getRuntime();
+        long headroom = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        long budget = Math.min(runtime.maxMemory() / HEAP_SHARE, headroom / HEADROOM_SHARE);
+        long size = budget / Math.max(1, bytesPerApp);
+        return (int) Math.max(MIN_APP_BUFFER, Math.min(MAX_APP_BUFFER, size));
+    }
 
-        try {
-            context.getContentResolver().applyBatch(TempAppProvider.getAuthority(), appOperations);
-            return getIdsForPackages(appsToSave);
-        } catch (RemoteException | OperationApplicationException e) {
-            throw new IndexUpdater.UpdateException("An internal error occurred while updating the database", e);
+    private void log(String message) {
+        if (profiler != null) {
+            profiler.log(message);
+        } else {
+            Utils.debugLog(TAG, message);
         }
     }
 
     /**
-     * Although this might seem counter intuitive - receiving a list of apps, then querying the
-     * database again for info about these apps, it is required because the apps came from the
-     * repo metadata, but we are really interested in their IDs from the database. These IDs only
-     * exist in SQLite and not the repo metadata.
+     * A rough estimate of how much heap {@code app} takes, counting the fixed size of its
+     * fields and the characters of its texts, which is what varies between apps.
      */
-    private Map<String, Long> getIdsForPackages(List<App> apps) {
-        List<String> packageNames = new ArrayList<>(appsToSave.size());
-        for (App app : apps) {
-            packageNames.add(app.packageName);
+    static long estimateSize(App app) {
+        long size = 1024 + estimateSize(app.name) + estimateSize(app.summary)
+                + estimateSize(app.description) + estimateSize(app.whatsNew);
+        if (app.localized != null) {
+            for (Map<String, Object> block : app.localized.values()) {
+                size += 64;
+                for (Object value : block.values()) {
+                    if (value instanceof String) {
+                        size += estimateSize((String) value);
+                    } else if (value instanceof List) {
+                        for (Object item : (List<?>) value) {
+                            size += item instanceof String ? estimateSize((String) item) : 16;
+                        }
+                    }
+                }
+            }
         }
+        return size;
+    }
 
-        String[] projection = {
-                Schema.AppMetadataTable.Cols.ROW_ID,
-                Schema.AppMetadataTable.Cols.Package.PACKAGE_NAME,
-        };
+    static long estimateSize(List<Apk> apks) {
+        long size = 0;
+        for (Apk apk : apks) {
+            size += 512 + estimateSize(apk.versionName) + estimateSize(apk.hash) + estimateSize(apk.apkName)
+                    + estimateSize(apk.srcname) + estimateSize(apk.obbMainFile) + estimateSize(apk.obbPatchFile);
+        }
+        return size;
+    }
 
-        List<App> fromDb = TempAppProvider.Helper.findByPackageNames(context, packageNames, repo.id, projection);
+    private static long estimateSize(String string) {
+        return string == null ? 0 : 40 + 2L * string.length();
+    }
 
-        Map<String, Long> ids = new HashMap<>(fromDb.size());
-        for (App app : fromDb) {
-            ids.put(app.packageName, app.getId());
+    /**
+     * Any package whose app has not been written yet is saved with an {@link Apk#appId}
+     * of {@code 0}, and gets linked to its app when the temp tables are committed.
+     */
+    private void flushApksToDbInBatch() throws IndexUpdater.UpdateException {
+        for (Map.Entry<String, List<Apk>> entries : apksToSave.entrySet()) {
+            Long appId = appIds.get(entries.getKey());
+            for (Apk apk : entries.getValue()) {
+                apk.appId = appId == null ? 0 : appId;
+            }
+            if (pipeline == null) {
+                // otherwise the IngestPipeline already did this on its own thread
+                calcApkCompatibilityFlags(checker, entries.getValue());
+            }
         }
-        return ids;
-    }
 
-    private ArrayList<ContentProviderOperation> insertApps(List<App> apps) {
-        ArrayList<ContentProviderOperation> operations = new ArrayList<>(apps.size());
-        for (App app : apps) {
-            ContentValues values = app.toContentValues();
-            Uri uri = TempAppProvider.getContentUri();
-            operations.add(ContentProviderOperation.newInsert(uri).withValues(values).build());
+        try {
+            writer.insertApks(apksToSave);
+        } catch (SQLException e) {
+            throw new IndexUpdater.UpdateException("An internal error occurred while updating the database", e);
         }
-        return operations;
     }
 
-    private ArrayList<ContentProviderOperation> insertApks(List<Apk> packages) {
-        ArrayList<ContentProviderOperation> operations = new ArrayList<>(packages.size());
-        for (Apk apk : packages) {
-            ContentValues values = apk.toContentValues();
-            Uri uri = TempApkProvider.getContentUri();
-            operations.add(ContentProviderOperation.newInsert(uri).withValues(values).build());
+    /**
+     * Inserts each of {@link RepoPersister#appsToSave} and returns the rowid it got,
+     * keyed by package name, so the relevant apks can be joined to the app table.
+     */
+    private Map<String, Long> flushAppsToDbInBatch() throws IndexUpdater.UpdateException {
+        try {
+            return writer.insertApps(appsToSave);
+        } catch (SQLException e) {
+            throw new IndexUpdater.UpdateException("An internal error occurred while updating the database", e);
         }
-
-        return operations;
     }
 
     /**
@@ -179,16 +380,10 @@ public class RepoPersister {
      * The reason is that we need to interact with the CompatibilityChecker
      * in order to see if, and why an apk is not compatible.
      */
-    private void calcApkCompatibilityFlags(List<Apk> apks) {
+    static void calcApkCompatibilityFlags(CompatibilityChecker checker, List<Apk> apks) {
         for (final Apk apk : apks) {
-            final List<String> reasons = checker.getIncompatibleReasons(apk);
-            if (reasons.size() > 0) {
-                apk.compatible = false;
-                apk.incompatibleReasons = reasons.toArray(new String[reasons.size()]);
-            } else {
-                apk.compatible = true;
-                apk.incompatibleReasons = null;
-            }
+            apk.incompatibleReasons = checker.getIncompatibleReasons(apk);
+            apk.compatible = apk.incompatibleReasons == null;
         }
     }
 
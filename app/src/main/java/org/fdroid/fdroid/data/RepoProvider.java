@@ -235,6 +235,7 @@ public class RepoProvider extends FDroidProvider {
             ContentResolver resolver = context.getContentResolver();
             Uri uri = RepoProvider.getContentUri(repoId);
             resolver.delete(uri, null, null);
+            MirrorHealth.forget(context, repoId);
         }
 
         public static void purgeApps(Context context, Repo repo) {
@@ -202,6 +202,25 @@ public interface Schema {
             String WEAR_SCREENSHOTS = "wearScreenshots";
             String IS_APK = "isApk";
 
+            /**
+             * A digest of everything the index said about this app and its apks, used to
+             * skip rewriting apps which did not change since the last update of their repo.
+             */
+            String CONTENT_HASH = "contentHash";
+
+            /**
+             * All of the {@code localized} blocks of this app, which {@link #NAME},
+             * {@link #SUMMARY}, {@link #DESCRIPTION} and the other localized fields are
+             * picked from for the current locales.
+             */
+            String LOCALIZED = "localized";
+
+            /**
+             * The locales which the localized fields were last picked for, {@code null}
+             * if that still needs to happen.
+             */
+            String LOCALIZED_FOR = "localizedFor";
+
             interface SuggestedApk {
                 String VERSION_NAME = "suggestedApkVersion";
             }
@@ -240,7 +259,8 @@ public interface Schema {
                     ANTI_FEATURES, REQUIREMENTS, ICON_URL,
                     FEATURE_GRAPHIC, PROMO_GRAPHIC, TV_BANNER, PHONE_SCREENSHOTS,
                     SEVEN_INCH_SCREENSHOTS, TEN_INCH_SCREENSHOTS, TV_SCREENSHOTS, WEAR_SCREENSHOTS,
-                    PREFERRED_SIGNER, SUGGESTED_VERSION_CODE, IS_APK,
+                    PREFERRED_SIGNER, SUGGESTED_VERSION_CODE, IS_APK, CONTENT_HASH, LOCALIZED,
+                    LOCALIZED_FOR,
             };
 
             /**
@@ -366,15 +386,36 @@ public interface Schema {
             String MIRRORS      = "mirrors";
             String USER_MIRRORS = "userMirrors";
             String PUSH_REQUESTS = "pushRequests";
+            String INDEX_DIGEST = "indexDigest";
 
             String[] ALL = {
                     _ID, ADDRESS, NAME, DESCRIPTION, IN_USE, PRIORITY, SIGNING_CERT,
                     FINGERPRINT, MAX_AGE, LAST_UPDATED, LAST_ETAG, VERSION, IS_SWAP,
                     USERNAME, PASSWORD, TIMESTAMP, ICON, MIRRORS, USER_MIRRORS, PUSH_REQUESTS,
+                    INDEX_DIGEST,
             };
         }
     }
 
+    /**
+     * How well each mirror of a repo, including the repo itself, did so far.
+     * @see MirrorHealth
+     */
+    interface MirrorHealthTable {
+
+        String NAME = "fdroid_mirrorHealth";
+
+        interface Cols {
+            String REPO_ID = "repoId";
+            String MIRROR = "mirror";
+            String CONNECT_MILLIS = "connectMillis";
+            String BYTES_PER_SECOND = "bytesPerSecond";
+            String FAILURE_RATE = "failureRate";
+
+            String[] ALL = {REPO_ID, MIRROR, CONNECT_MILLIS, BYTES_PER_SECOND, FAILURE_RATE};
+        }
+    }
+
     interface InstalledAppTable {
 
         String NAME = "fdroid_installedApp";
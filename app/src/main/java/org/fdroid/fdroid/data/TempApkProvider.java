@@ -20,6 +20,22 @@ public class TempApkProvider extends ApkProvider {
 
     static final String TABLE_TEMP_APK = "temp_" + ApkTable.NAME;
 
+    /**
+     * Only exists in the temp table.  Holds the package name of any apk which was
+     * inserted before the app it belongs to, so that they can be linked afterwards.
+     * It is never copied to the real apk table.
+     */
+    static final String COL_PENDING_PACKAGE_NAME = "pendingPackageName";
+
+    /**
+     * Only exists in the temp database.  Holds a digest of all the apks of each package,
+     * written by {@link TempTableBulkWriter}, which becomes part of the
+     * {@link Schema.AppMetadataTable.Cols#CONTENT_HASH} of its app when committing.
+     */
+    static final String TABLE_TEMP_PACKAGE_HASH = "temp_packageHash";
+    static final String COL_PACKAGE_NAME = "packageName";
+    static final String COL_HASH = "hash";
+
     private static final String PATH_INIT = "init";
 
     private static final int CODE_INIT = 10000;
@@ -58,8 +74,7 @@ public class TempApkProvider extends ApkProvider {
     public static class Helper {
 
         /**
-         * Deletes the old temporary table (if it exists). Then creates a new temporary apk provider
-         * table and populates it with all the data from the real apk provider table.
+         * Creates new, empty temporary apk tables, which only ever hold the repo being updated.
          *
          * This is package local because it must be invoked after
          * {@link org.fdroid.fdroid.data.TempAppProvider.Helper#init(Context, long)}. Due to this
@@ -99,25 +114,10 @@ public class TempApkProvider extends ApkProvider {
         final SQLiteDatabase db = db();
         final String memoryDbName = TempAppProvider.DB;
         db.execSQL(DBHelper.CREATE_TABLE_APK.replaceFirst(ApkTable.NAME, memoryDbName + "." + getTableName()));
+        db.execSQL("ALTER TABLE " + memoryDbName + "." + getTableName() + " ADD COLUMN " + COL_PENDING_PACKAGE_NAME + " text");
         db.execSQL(DBHelper.CREATE_TABLE_APK_ANTI_FEATURE_JOIN.replaceFirst(Schema.ApkAntiFeatureJoinTable.NAME, memoryDbName + "." + getApkAntiFeatureJoinTableName()));
-
-        String where = ApkTable.NAME + "." + Cols.REPO_ID + " != ?";
-        String[] whereArgs = new String[]{Long.toString(repoIdBeingUpdated)};
-        db.execSQL(TempAppProvider.copyData(Cols.ALL_COLS, ApkTable.NAME, memoryDbName + "." + getTableName(), where), whereArgs);
-
-        String antiFeaturesWhere =
-                Schema.ApkAntiFeatureJoinTable.NAME + "." + Schema.ApkAntiFeatureJoinTable.Cols.APK_ID + " IN " +
-                        "(SELECT innerApk." + Cols.ROW_ID + " FROM " + ApkTable.NAME + " AS innerApk " +
-                        "WHERE innerApk." + Cols.REPO_ID + " != ?)";
-
-        db.execSQL(TempAppProvider.copyData(
-                Schema.ApkAntiFeatureJoinTable.Cols.ALL_COLS,
-                Schema.ApkAntiFeatureJoinTable.NAME,
-                memoryDbName + "." + getApkAntiFeatureJoinTableName(),
-                antiFeaturesWhere), whereArgs);
-
+        db.execSQL("CREATE TABLE " + memoryDbName + "." + TABLE_TEMP_PACKAGE_HASH + " (" + COL_PACKAGE_NAME + " text primary key, " + COL_HASH + " text not null)");
         db.execSQL("CREATE INDEX IF NOT EXISTS " + memoryDbName + ".apk_appId on " + getTableName() + " (" + Cols.APP_ID + ");");
-        db.execSQL("CREATE INDEX IF NOT EXISTS " + memoryDbName + ".apk_compatible ON " + getTableName() + " (" + Cols.IS_COMPATIBLE + ");");
     }
 
 }
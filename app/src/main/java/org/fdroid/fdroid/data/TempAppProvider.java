@@ -4,6 +4,7 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.net.Uri;
@@ -11,12 +12,15 @@ import androidx.annotation.NonNull;
 import android.text.TextUtils;
 import android.util.Log;
 
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.data.Schema.ApkAntiFeatureJoinTable;
 import org.fdroid.fdroid.data.Schema.ApkTable;
 import org.fdroid.fdroid.data.Schema.AppMetadataTable;
 import org.fdroid.fdroid.data.Schema.AppMetadataTable.Cols;
 import org.fdroid.fdroid.data.Schema.CatJoinTable;
 import org.fdroid.fdroid.data.Schema.PackageTable;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -38,22 +42,54 @@ public class TempAppProvider extends AppProvider {
     static final String TABLE_TEMP_APK_ANTI_FEATURE_JOIN = "temp_" + Schema.ApkAntiFeatureJoinTable.NAME;
     static final String TABLE_TEMP_CAT_JOIN = "temp_" + CatJoinTable.NAME;
 
+    /**
+     * Maps each app of the repo being committed from its rowid in the temp table to the
+     * rowid it has (or will get) in the real table, and whether it is unchanged there.
+     */
+    private static final String TABLE_TEMP_APP_ID_MAP = "temp_appIdMap";
+    private static final String COL_TEMP_ID = "tempId";
+    private static final String COL_MAIN_ID = "mainId";
+    private static final String COL_UNCHANGED = "unchanged";
+
+    /**
+     * The packages whose apps were added, replaced or removed by a commit, in any repo.
+     * The values which depend on all the apps of a package are recalculated for these.
+     */
+    private static final String TABLE_TEMP_TOUCHED_PACKAGE = "temp_touchedPackage";
+    private static final String COL_PACKAGE_ID = "packageId";
+
+    /**
+     * Collects the touched packages of every commit between {@link Helper#beginBatch(Context)}
+     * and {@link Helper#endBatch(Context)}.  It lives in the SQLite {@code temp} schema, so it
+     * survives the temp database being detached after each commit.
+     */
+    private static final String TABLE_BATCH_TOUCHED_PACKAGE = "batch_touchedPackage";
+
     private static final String PATH_INIT = "init";
     private static final String PATH_COMMIT = "commit";
+    private static final String PATH_BEGIN_BATCH = "beginBatch";
+    private static final String PATH_END_BATCH = "endBatch";
 
     private static final int CODE_INIT = 10000;
     private static final int CODE_COMMIT = CODE_INIT + 1;
-    private static final int APPS = CODE_COMMIT + 1;
+    private static final int CODE_BEGIN_BATCH = CODE_COMMIT + 1;
+    private static final int CODE_END_BATCH = CODE_BEGIN_BATCH + 1;
 
     private static final UriMatcher MATCHER = new UriMatcher(-1);
 
     static {
         MATCHER.addURI(getAuthority(), PATH_INIT + "/#", CODE_INIT);
         MATCHER.addURI(getAuthority(), PATH_COMMIT + "/#", CODE_COMMIT);
-        MATCHER.addURI(getAuthority(), PATH_APPS + "/#/*", APPS);
+        MATCHER.addURI(getAuthority(), PATH_BEGIN_BATCH, CODE_BEGIN_BATCH);
+        MATCHER.addURI(getAuthority(), PATH_END_BATCH, CODE_END_BATCH);
         MATCHER.addURI(getAuthority(), PATH_SPECIFIC_APP + "/#/*", CODE_SINGLE);
     }
 
+    /**
+     * Set between {@link Helper#beginBatch(Context)} and {@link Helper#endBatch(Context)}.
+     */
+    private boolean inBatch;
+
     @Override
     protected String getTableName() {
         return TABLE_TEMP_APP;
@@ -72,30 +108,12 @@ public class TempAppProvider extends AppProvider {
         return Uri.parse("content://" + getAuthority());
     }
 
-    public static Uri getAppsUri(List<String> apps, long repoId) {
-        return getContentUri().buildUpon()
-                .appendPath(PATH_APPS)
-                .appendPath(Long.toString(repoId))
-                .appendPath(TextUtils.join(",", apps))
-                .build();
-    }
-
-    private AppQuerySelection queryRepoApps(long repoId, String packageNames) {
-        return queryPackageNames(packageNames, PackageTable.NAME + "." + PackageTable.Cols.PACKAGE_NAME)
-                .add(queryRepo(repoId));
-    }
-
-    private AppQuerySelection queryRepo(long repoId) {
-        String[] args = new String[]{Long.toString(repoId)};
-        String selection = getTableName() + "." + Cols.REPO_ID + " = ? ";
-        return new AppQuerySelection(selection, args);
-    }
-
     public static class Helper {
 
         /**
-         * Deletes the old temporary table (if it exists). Then creates a new temporary apk provider
-         * table and populates it with all the data from the real apk provider table.
+         * Deletes the old temporary tables (if they exist), then creates new, empty ones which
+         * only ever hold the repo being updated.  Anything which depends on other repos is
+         * worked out against the real tables when committing.
          */
         public static void init(Context context, long repoIdToUpdate) {
             Uri uri = getContentUri().buildUpon()
@@ -106,16 +124,11 @@ public class TempAppProvider extends AppProvider {
             TempApkProvider.Helper.init(context, repoIdToUpdate);
         }
 
-        public static List<App> findByPackageNames(Context context,
-                                                   List<String> packageNames, long repoId, String[] projection) {
-            Uri uri = getAppsUri(packageNames, repoId);
-            Cursor cursor = context.getContentResolver().query(uri, projection, null, null, null);
-            return AppProvider.Helper.cursorToList(cursor);
-        }
-
         /**
-         * Saves data from the temp table to the apk table, by removing _EVERYTHING_ from the real
-         * apk table and inserting all of the records from here. The temporary table is then removed.
+         * Saves data from the temp tables to the real tables. Only apps whose
+         * {@link Cols#CONTENT_HASH} differs from what is stored are rewritten, along with their
+         * apks, categories and anti-features, apps which are no longer in the repo are removed,
+         * and everything else is left alone. The temporary tables are then removed.
          */
         public static void commitAppsAndApks(Context context, long repoIdToCommit) {
             Uri uri = getContentUri().buildUpon()
@@ -124,6 +137,27 @@ public class TempAppProvider extends AppProvider {
                     .build();
             context.getContentResolver().insert(uri, new ContentValues());
         }
+
+        /**
+         * Until {@link #endBatch(Context)}, each commit only writes the apps, apks, categories and
+         * anti-features of its repo.  The preferred metadata and suggested versions, which depend
+         * on all repos, are left for {@link #endBatch(Context)} to work out in one go, as are the
+         * change notifications.  Meant for updating all repos one after another.
+         */
+        public static void beginBatch(Context context) {
+            Uri uri = getContentUri().buildUpon().appendPath(PATH_BEGIN_BATCH).build();
+            context.getContentResolver().insert(uri, new ContentValues());
+        }
+
+        /**
+         * Recalculates everything which was left out by the commits since
+         * {@link #beginBatch(Context)}, then notifies about the changes.  Does nothing if
+         * there is no batch.
+         */
+        public static void endBatch(Context context) {
+            Uri uri = getContentUri().buildUpon().appendPath(PATH_END_BATCH).build();
+            context.getContentResolver().insert(uri, new ContentValues());
+        }
     }
 
     @Override
@@ -142,8 +176,17 @@ public class TempAppProvider extends AppProvider {
                 initTable(Long.parseLong(uri.getLastPathSegment()));
                 return null;
             case CODE_COMMIT:
-                updateAllAppDetails();
-                commitTable(Long.parseLong(uri.getLastPathSegment()));
+                long repoId = Long.parseLong(uri.getLastPathSegment());
+                linkApksToApps(repoId);
+                updateCompatibleFlags();
+                addPackageHashes(repoId);
+                commitTable(repoId);
+                return null;
+            case CODE_BEGIN_BATCH:
+                beginBatch();
+                return null;
+            case CODE_END_BATCH:
+                endBatch();
                 return null;
             default:
                 return super.insert(uri, values);
@@ -159,13 +202,6 @@ public class TempAppProvider extends AppProvider {
     public Cursor query(@NonNull Uri uri, String[] projection,
                         String customSelection, String[] selectionArgs, String sortOrder) {
         AppQuerySelection selection = new AppQuerySelection(customSelection, selectionArgs);
-        switch (MATCHER.match(uri)) {
-            case APPS:
-                List<String> segments = uri.getPathSegments();
-                selection = selection.add(queryRepoApps(Long.parseLong(segments.get(1)), segments.get(2)));
-                break;
-        }
-
         return super.runQuery(uri, selection, projection, sortOrder, 0);
     }
 
@@ -185,41 +221,137 @@ public class TempAppProvider extends AppProvider {
     private void initTable(long repoIdBeingUpdated) {
         final SQLiteDatabase db = db();
 
-        String mainApp = AppMetadataTable.NAME;
         String tempApp = DB + "." + getTableName();
-        String mainCat = CatJoinTable.NAME;
         String tempCat = DB + "." + getCatJoinTableName();
 
         ensureTempTableDetached(db);
         db.execSQL("ATTACH DATABASE ':memory:' AS " + DB);
         db.execSQL(DBHelper.CREATE_TABLE_APP_METADATA.replaceFirst(AppMetadataTable.NAME, tempApp));
         db.execSQL(DBHelper.CREATE_TABLE_CAT_JOIN.replaceFirst(CatJoinTable.NAME, tempCat));
+        db.execSQL("CREATE TABLE " + DB + "." + TABLE_TEMP_APP_ID_MAP + " (" + COL_TEMP_ID + " INTEGER PRIMARY KEY, " + COL_MAIN_ID + " INTEGER NOT NULL, " + COL_UNCHANGED + " INTEGER NOT NULL)");
+        db.execSQL("CREATE TABLE " + DB + "." + TABLE_TEMP_TOUCHED_PACKAGE + " (" + COL_PACKAGE_ID + " INTEGER PRIMARY KEY)");
+
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + DB + ".app_id ON " + getTableName() + " (" + Cols.PACKAGE_ID + ");");
+    }
 
-        String appWhere = mainApp + "." + Cols.REPO_ID + " != ?";
-        String[] repoArgs = new String[]{Long.toString(repoIdBeingUpdated)};
-        db.execSQL(copyData(Cols.ALL_COLS, mainApp, tempApp, appWhere), repoArgs);
+    /**
+     * Apps and packages are streamed into the temp tables independently, so an apk may
+     * have been written before its app was.  Those were saved with an app ID of 0 and
+     * their package name in {@link TempApkProvider#COL_PENDING_PACKAGE_NAME}, so this
+     * looks up their app now.  Any apk which still has no app is dropped, the same as
+     * packages without an app entry always were.  Finally the app fields which are
+     * derived from the list of apks ({@link Cols#PREFERRED_SIGNER} from the first apk
+     * listed, and {@link Cols#IS_APK}) are calculated for all apps in this repo.
+     */
+    private void linkApksToApps(long repoId) {
+        final SQLiteDatabase db = db();
+        final String tempApp = getTableName();
+        final String tempApk = getApkTableName();
+        final String[] repoArgs = new String[]{Long.toString(repoId)};
+
+        String appIdForPackage =
+                "SELECT app." + Cols.ROW_ID + " FROM " + tempApp + " AS app " +
+                        "JOIN " + PackageTable.NAME + " AS pkg ON (pkg." + PackageTable.Cols.ROW_ID + " = app." + Cols.PACKAGE_ID + ") " +
+                        "WHERE pkg." + PackageTable.Cols.PACKAGE_NAME + " = " + tempApk + "." + TempApkProvider.COL_PENDING_PACKAGE_NAME + " " +
+                        "AND app." + Cols.REPO_ID + " = ?";
+        LoggingQuery.execSQL(db,
+                "UPDATE " + tempApk + " SET " + ApkTable.Cols.APP_ID + " = COALESCE((" + appIdForPackage + "), 0) " +
+                        "WHERE " + ApkTable.Cols.APP_ID + " = 0", repoArgs);
+
+        String orphanApks = "SELECT " + ApkTable.Cols.ROW_ID + " FROM " + tempApk + " WHERE " + ApkTable.Cols.APP_ID + " = 0";
+        LoggingQuery.execSQL(db,
+                "DELETE FROM " + TABLE_TEMP_APK_ANTI_FEATURE_JOIN + " " +
+                        "WHERE " + Schema.ApkAntiFeatureJoinTable.Cols.APK_ID + " IN (" + orphanApks + ")", null);
+        LoggingQuery.execSQL(db, "DELETE FROM " + tempApk + " WHERE " + ApkTable.Cols.APP_ID + " = 0", null);
+
+        String appApks = "FROM " + tempApk + " AS apk WHERE apk." + ApkTable.Cols.APP_ID + " = " + tempApp + "." + Cols.ROW_ID;
+        LoggingQuery.execSQL(db,
+                "UPDATE " + tempApp + " SET " +
+                        Cols.PREFERRED_SIGNER + " = (SELECT apk." + ApkTable.Cols.SIGNATURE + " " + appApks + " ORDER BY apk." + ApkTable.Cols.ROW_ID + " LIMIT 1), " +
+                        Cols.IS_APK + " = (EXISTS (SELECT 1 " + appApks + ") " +
+                        "AND NOT EXISTS (SELECT 1 " + appApks + " AND SUBSTR(apk." + ApkTable.Cols.NAME + ", -4) != '.apk')) " +
+                        "WHERE " + Cols.REPO_ID + " = ?", repoArgs);
+    }
 
-        // TODO: String catWhere = mainCat + "." + CatJoinTable.Cols..Cols.REPO_ID + " != ?";
-        db.execSQL(copyData(CatJoinTable.Cols.ALL_COLS, mainCat, tempCat, null));
+    /**
+     * The hash written for each app only covers its own metadata, as its apks may be written
+     * before or after it.  This appends the hash of the apks of its package, so that a change
+     * to either of them shows up in {@link Cols#CONTENT_HASH}.
+     */
+    private void addPackageHashes(long repoId) {
+        final String tempApp = getTableName();
+        String packageHash =
+                "SELECT h." + TempApkProvider.COL_HASH + " FROM " + TempApkProvider.TABLE_TEMP_PACKAGE_HASH + " AS h " +
+                        "JOIN " + PackageTable.NAME + " AS pkg ON (pkg." + PackageTable.Cols.PACKAGE_NAME + " = h." + TempApkProvider.COL_PACKAGE_NAME + ") " +
+                        "WHERE pkg." + PackageTable.Cols.ROW_ID + " = " + tempApp + "." + Cols.PACKAGE_ID;
+        LoggingQuery.execSQL(db(),
+                "UPDATE " + tempApp + " SET " + Cols.CONTENT_HASH + " = " + Cols.CONTENT_HASH + " || COALESCE((" + packageHash + "), '') " +
+                        "WHERE " + Cols.REPO_ID + " = ?", new String[]{Long.toString(repoId)});
+    }
 
-        db.execSQL("CREATE INDEX IF NOT EXISTS " + DB + ".app_id ON " + getTableName() + " (" + Cols.PACKAGE_ID + ");");
-        db.execSQL("CREATE INDEX IF NOT EXISTS " + DB + ".app_upstreamVercode ON " + getTableName() + " (" + Cols.UPSTREAM_VERSION_CODE + ");");
-        db.execSQL("CREATE INDEX IF NOT EXISTS " + DB + ".app_compatible ON " + getTableName() + " (" + Cols.IS_COMPATIBLE + ");");
+    /**
+     * Recalculates the values which depend on all the apps of a package, across every repo, but
+     * only for the packages in {@code touchedPackages}. A repo with a handful of apps therefore
+     * costs next to nothing to update, however many other apps there are.  If this commit
+     * touched most packages anyway, as the first update of a big repo does, everything is
+     * recalculated instead, since that does the same work without the lookups.
+     */
+    private void updatePackageDetails(String touchedPackages) {
+        final SQLiteDatabase db = db();
+        final String mainApp = AppMetadataTable.NAME;
+        final String mainApk = ApkTable.NAME;
+
+        long touched = DatabaseUtils.queryNumEntries(db, touchedPackages);
+        if (touched == 0) {
+            return;
+        }
+        long total = DatabaseUtils.queryNumEntries(db, PackageTable.NAME);
+
+        String restrictToApps = "COALESCE(" + Cols.UPSTREAM_VERSION_CODE + ", 0) = 0 OR " + Cols.SUGGESTED_VERSION_CODE + " IS NULL";
+        if (touched * 2 > total) {
+            Utils.debugLog(TAG, "Recalculating details of all " + total + " packages.");
+            updatePreferredMetadata(mainApp, null);
+            updateSuggestedFromUpstream(mainApp, mainApk, null, null);
+            updateSuggestedFromLatest(mainApp, mainApk, restrictToApps, null);
+        } else {
+            Utils.debugLog(TAG, "Recalculating details of " + touched + " of " + total + " packages.");
+            String packageIds = "SELECT " + COL_PACKAGE_ID + " FROM " + touchedPackages;
+            updatePreferredMetadata(mainApp, packageIds);
+            updateSuggestedFromUpstream(mainApp, mainApk, packageIds, null);
+            updateSuggestedFromLatest(mainApp, mainApk,
+                    "(" + restrictToApps + ") AND " + Cols.PACKAGE_ID + " IN (" + packageIds + ")", null);
+        }
     }
 
     /**
-     * Constructs an INSERT INTO ... SELECT statement as a means from getting data from one table
-     * into another. The list of columns to copy are explicitly specified using colsToCopy.
+     * Joins the given columns, each prefixed with a table alias, leaving out {@code exclude}.
      */
-    static String copyData(String[] colsToCopy, String fromTable, String toTable, String where) {
-        String cols = TextUtils.join(", ", colsToCopy);
-        String sql = "INSERT INTO " + toTable + " (" + cols + ") SELECT " + cols + " FROM " + fromTable;
-        if (!TextUtils.isEmpty(where)) {
-            sql += " WHERE " + where;
+    private static String columns(String[] cols, String exclude, String alias) {
+        List<String> result = new ArrayList<>(cols.length);
+        for (String col : cols) {
+            if (!col.equals(exclude)) {
+                result.add(alias == null ? col : alias + "." + col);
+            }
         }
-        return sql;
+        return TextUtils.join(", ", result);
     }
 
+    /**
+     * Join clause onto the {@link #TABLE_TEMP_APP_ID_MAP} which only keeps apps that are new or changed.
+     */
+    private static String changedApps(String tempAppId) {
+        return DB + "." + TABLE_TEMP_APP_ID_MAP + " AS map ON (map." + COL_TEMP_ID + " = " + tempAppId + ") " +
+                "WHERE map." + COL_UNCHANGED + " = 0";
+    }
+
+    /**
+     * Apps are matched to the real table by package and repo.  Each app which is new, or whose
+     * {@link Cols#CONTENT_HASH} changed, is deleted and inserted again along with everything
+     * which hangs off it, keeping its rowid if it had one.  Apps which are unchanged keep their
+     * rows untouched.  The {@link Cols#SUGGESTED_VERSION_CODE} depends on the apks of every repo,
+     * so it is only worked out here, against the real tables, for all apps of the packages which
+     * this commit added, replaced or removed.
+     */
     private void commitTable(long repoIdToCommit) {
         final SQLiteDatabase db = db();
         try {
@@ -229,55 +361,122 @@ public class TempAppProvider extends AppProvider {
             final String tempApk = DB + "." + TempApkProvider.TABLE_TEMP_APK;
             final String tempCatJoin = DB + "." + TABLE_TEMP_CAT_JOIN;
             final String tempAntiFeatureJoin = DB + "." + TABLE_TEMP_APK_ANTI_FEATURE_JOIN;
+            final String idMap = DB + "." + TABLE_TEMP_APP_ID_MAP;
+
+            final String mainApp = AppMetadataTable.NAME;
+            final String mainApk = ApkTable.NAME;
 
             final String[] repoArgs = new String[]{Long.toString(repoIdToCommit)};
 
-            db.execSQL("DELETE FROM " + AppMetadataTable.NAME + " WHERE " + Cols.REPO_ID + " = ?", repoArgs);
-            db.execSQL(copyData(Cols.ALL_COLS, tempApp, AppMetadataTable.NAME, Cols.REPO_ID + " = ?"), repoArgs);
+            // New apps get rowids above any which are currently used.
+            long newAppOffset = DatabaseUtils.longForQuery(db,
+                    "SELECT (SELECT COALESCE(MAX(" + Cols.ROW_ID + "), 0) FROM " + mainApp + ") - " +
+                            "(SELECT COALESCE(MIN(" + Cols.ROW_ID + "), 1) FROM " + tempApp + " WHERE " + Cols.REPO_ID + " = ?) + 1", repoArgs);
+            db.execSQL(
+                    "INSERT INTO " + idMap + " (" + COL_TEMP_ID + ", " + COL_MAIN_ID + ", " + COL_UNCHANGED + ") " +
+                            "SELECT t." + Cols.ROW_ID + ", COALESCE(m." + Cols.ROW_ID + ", t." + Cols.ROW_ID + " + ?), COALESCE(m." + Cols.CONTENT_HASH + " = t." + Cols.CONTENT_HASH + ", 0) " +
+                            "FROM " + tempApp + " AS t " +
+                            "LEFT JOIN " + mainApp + " AS m ON (m." + Cols.PACKAGE_ID + " = t." + Cols.PACKAGE_ID + " AND m." + Cols.REPO_ID + " = t." + Cols.REPO_ID + ") " +
+                            "WHERE t." + Cols.REPO_ID + " = ?", new Object[]{newAppOffset, repoIdToCommit});
+
+            final String unchangedIds = "SELECT " + COL_MAIN_ID + " FROM " + idMap + " WHERE " + COL_UNCHANGED + " = 1";
+            final String touchedPackages = DB + "." + TABLE_TEMP_TOUCHED_PACKAGE;
+
+            final String staleApps = "SELECT " + Cols.ROW_ID + " FROM " + mainApp + " WHERE " + Cols.REPO_ID + " = ? AND " + Cols.ROW_ID + " NOT IN (" + unchangedIds + ")";
+            db.execSQL("INSERT OR IGNORE INTO " + touchedPackages + " (" + COL_PACKAGE_ID + ") " +
+                    "SELECT " + Cols.PACKAGE_ID + " FROM " + mainApp + " WHERE " + Cols.ROW_ID + " IN (" + staleApps + ")", repoArgs);
+            db.execSQL("INSERT OR IGNORE INTO " + touchedPackages + " (" + COL_PACKAGE_ID + ") " +
+                    "SELECT t." + Cols.PACKAGE_ID + " FROM " + tempApp + " AS t JOIN " + changedApps("t." + Cols.ROW_ID));
+
+            final String staleApks = "SELECT " + ApkTable.Cols.ROW_ID + " FROM " + mainApk + " WHERE " + ApkTable.Cols.APP_ID + " IN (" + staleApps + ")";
+            db.execSQL("DELETE FROM " + ApkAntiFeatureJoinTable.NAME + " WHERE " + ApkAntiFeatureJoinTable.Cols.APK_ID + " IN (" + staleApks + ")", repoArgs);
+            db.execSQL("DELETE FROM " + mainApk + " WHERE " + ApkTable.Cols.ROW_ID + " IN (" + staleApks + ")", repoArgs);
+            db.execSQL("DELETE FROM " + CatJoinTable.NAME + " WHERE " + CatJoinTable.Cols.APP_METADATA_ID + " IN (" + staleApps + ")", repoArgs);
+            db.execSQL("DELETE FROM " + mainApp + " WHERE " + Cols.ROW_ID + " IN (" + staleApps + ")", repoArgs);
 
-            db.execSQL("DELETE FROM " + ApkTable.NAME + " WHERE " + ApkTable.Cols.REPO_ID + " = ?", repoArgs);
-            db.execSQL(copyData(ApkTable.Cols.ALL_COLS, tempApk, ApkTable.NAME, ApkTable.Cols.REPO_ID + " = ?"), repoArgs);
+            db.execSQL(
+                    "INSERT INTO " + mainApp + " (" + Cols.ROW_ID + ", " + columns(Cols.ALL_COLS, Cols.ROW_ID, null) + ") " +
+                            "SELECT map." + COL_MAIN_ID + ", " + columns(Cols.ALL_COLS, Cols.ROW_ID, "t") + " " +
+                            "FROM " + tempApp + " AS t JOIN " + changedApps("t." + Cols.ROW_ID));
 
-            db.execSQL("DELETE FROM " + CatJoinTable.NAME + " WHERE " + getCatRepoWhere(CatJoinTable.NAME), repoArgs);
-            db.execSQL(copyData(CatJoinTable.Cols.ALL_COLS, tempCatJoin, CatJoinTable.NAME, getCatRepoWhere(tempCatJoin)), repoArgs);
+            db.execSQL(
+                    "INSERT INTO " + CatJoinTable.NAME + " (" + CatJoinTable.Cols.APP_METADATA_ID + ", " + CatJoinTable.Cols.CATEGORY_ID + ") " +
+                            "SELECT map." + COL_MAIN_ID + ", c." + CatJoinTable.Cols.CATEGORY_ID + " " +
+                            "FROM " + tempCatJoin + " AS c JOIN " + changedApps("c." + CatJoinTable.Cols.APP_METADATA_ID));
+
+            // Likewise for apks, which are then joined to their anti-features by the same offset.
+            long newApkOffset = DatabaseUtils.longForQuery(db,
+                    "SELECT (SELECT COALESCE(MAX(" + ApkTable.Cols.ROW_ID + "), 0) FROM " + mainApk + ") - " +
+                            "(SELECT COALESCE(MIN(" + ApkTable.Cols.ROW_ID + "), 1) FROM " + tempApk + " WHERE " + ApkTable.Cols.REPO_ID + " = ?) + 1", repoArgs);
+            db.execSQL(
+                    "INSERT INTO " + mainApk + " (" + ApkTable.Cols.ROW_ID + ", " + ApkTable.Cols.APP_ID + ", " + columns(ApkTable.Cols.ALL_COLS, ApkTable.Cols.APP_ID, null) + ") " +
+                            "SELECT a." + ApkTable.Cols.ROW_ID + " + ?, map." + COL_MAIN_ID + ", " + columns(ApkTable.Cols.ALL_COLS, ApkTable.Cols.APP_ID, "a") + " " +
+                            "FROM " + tempApk + " AS a JOIN " + changedApps("a." + ApkTable.Cols.APP_ID), new Object[]{newApkOffset});
 
             db.execSQL(
-                    "DELETE FROM " + Schema.ApkAntiFeatureJoinTable.NAME + " " +
-                            "WHERE " + getAntiFeatureRepoWhere(Schema.ApkAntiFeatureJoinTable.NAME), repoArgs);
+                    "INSERT INTO " + ApkAntiFeatureJoinTable.NAME + " (" + ApkAntiFeatureJoinTable.Cols.APK_ID + ", " + ApkAntiFeatureJoinTable.Cols.ANTI_FEATURE_ID + ") " +
+                            "SELECT j." + ApkAntiFeatureJoinTable.Cols.APK_ID + " + ?, j." + ApkAntiFeatureJoinTable.Cols.ANTI_FEATURE_ID + " " +
+                            "FROM " + tempAntiFeatureJoin + " AS j " +
+                            "JOIN " + tempApk + " AS a ON (a." + ApkTable.Cols.ROW_ID + " = j." + ApkAntiFeatureJoinTable.Cols.APK_ID + ") " +
+                            "JOIN " + changedApps("a." + ApkTable.Cols.APP_ID), new Object[]{newApkOffset});
+
+            if (inBatch) {
+                db.execSQL("INSERT OR IGNORE INTO " + TABLE_BATCH_TOUCHED_PACKAGE + " (" + COL_PACKAGE_ID + ") " +
+                        "SELECT " + COL_PACKAGE_ID + " FROM " + touchedPackages);
+            } else {
+                updatePackageDetails(touchedPackages);
+            }
+
+            Utils.debugLog(TAG, "Committed " + DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + idMap + " WHERE " + COL_UNCHANGED + " = 0", null)
+                    + " new or changed apps, " + DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + idMap + " WHERE " + COL_UNCHANGED + " = 1", null)
+                    + " were unchanged.");
 
-            db.execSQL(copyData(
-                    Schema.ApkAntiFeatureJoinTable.Cols.ALL_COLS,
-                    tempAntiFeatureJoin,
-                    Schema.ApkAntiFeatureJoinTable.NAME,
-                    getAntiFeatureRepoWhere(tempAntiFeatureJoin)), repoArgs);
+            updateLocalized(mainApp, null);
 
             db.setTransactionSuccessful();
-            Log.d(TAG, "delete: notifying" + ApkProvider.getContentUri() + ", " + AppProvider.getContentUri() + ", " + CategoryProvider.getContentUri());
-            getContext().getContentResolver().notifyChange(AppProvider.getContentUri(), null);
-            getContext().getContentResolver().notifyChange(ApkProvider.getContentUri(), null);
-            getContext().getContentResolver().notifyChange(CategoryProvider.getContentUri(), null);
+            if (!inBatch) {
+                notifyCommitted();
+            }
         } finally {
             db.endTransaction();
             db.execSQL("DETACH DATABASE " + DB); // Can't be done in a transaction.
         }
     }
 
-    private String getCatRepoWhere(String categoryTable) {
-        String catRepoSubquery =
-                "SELECT DISTINCT innerCatJoin." + CatJoinTable.Cols.ROW_ID + " " +
-                        "FROM " + categoryTable + " AS innerCatJoin " +
-                        "JOIN " + getTableName() + " AS app ON (app." + Cols.ROW_ID + " = innerCatJoin." + CatJoinTable.Cols.APP_METADATA_ID + ") " +
-                        "WHERE app." + Cols.REPO_ID + " = ?";
+    private void notifyCommitted() {
+        Log.d(TAG, "delete: notifying" + ApkProvider.getContentUri() + ", " + AppProvider.getContentUri() + ", " + CategoryProvider.getContentUri());
+        getContext().getContentResolver().notifyChange(AppProvider.getContentUri(), null);
+        getContext().getContentResolver().notifyChange(ApkProvider.getContentUri(), null);
+        getContext().getContentResolver().notifyChange(CategoryProvider.getContentUri(), null);
+    }
 
-        return CatJoinTable.Cols.ROW_ID + " IN (" + catRepoSubquery + ")";
+    private void beginBatch() {
+        db().execSQL("CREATE TEMP TABLE IF NOT EXISTS " + TABLE_BATCH_TOUCHED_PACKAGE + " (" + COL_PACKAGE_ID + " INTEGER PRIMARY KEY)");
+        db().execSQL("DELETE FROM " + TABLE_BATCH_TOUCHED_PACKAGE);
+        inBatch = true;
     }
 
-    private String getAntiFeatureRepoWhere(String antiFeatureTable) {
-        String subquery =
-                "SELECT innerApk." + ApkTable.Cols.ROW_ID + " " +
-                        "FROM " + ApkTable.NAME + " AS innerApk " +
-                        "WHERE innerApk." + ApkTable.Cols.REPO_ID + " = ?";
+    private void endBatch() {
+        if (!inBatch) {
+            return;
+        }
+        inBatch = false;
 
-        return antiFeatureTable + "." + Schema.ApkAntiFeatureJoinTable.Cols.APK_ID + " IN (" + subquery + ")";
+        final SQLiteDatabase db = db();
+        boolean changed;
+        try {
+            db.beginTransaction();
+            changed = DatabaseUtils.queryNumEntries(db, TABLE_BATCH_TOUCHED_PACKAGE) > 0;
+            updatePackageDetails(TABLE_BATCH_TOUCHED_PACKAGE);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_BATCH_TOUCHED_PACKAGE);
+
+        if (changed) {
+            notifyCommitted();
+            getContext().getContentResolver().notifyChange(AppProvider.getCanUpdateUri(), null);
+        }
     }
 }
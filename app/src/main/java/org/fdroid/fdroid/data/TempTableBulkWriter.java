@@ -0,0 +1,494 @@
+package org.fdroid.fdroid.data;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.data.Schema.ApkAntiFeatureJoinTable;
+import org.fdroid.fdroid.data.Schema.ApkTable;
+import org.fdroid.fdroid.data.Schema.AppMetadataTable;
+import org.fdroid.fdroid.data.Schema.CatJoinTable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes the apps and apks of an index straight into the temp tables set up by
+ * {@link TempAppProvider.Helper#init(Context, long)}.  This stores exactly what
+ * inserting through {@link TempAppProvider} and {@link TempApkProvider} would, but
+ * uses one precompiled {@link SQLiteStatement} per table, bound positionally and
+ * reused for every row, and runs each flush in a single transaction.  That skips
+ * building a {@link android.content.ContentValues} and a
+ * {@link android.content.ContentProviderOperation} per row, as well as
+ * {@link FDroidProvider#validateFields(String[], android.content.ContentValues)}
+ * and the URI parsing for every insert.
+ * <p>
+ * The IDs of packages, categories and anti-features come from {@link IngestIds}, and the
+ * rows of the join tables are written per flush, see {@link JoinRows}.
+ * <p>
+ * Everything bound for an app, and for all apks of a package, is also fed into a
+ * {@link Hasher}.  The app digest is stored in {@link AppMetadataTable.Cols#CONTENT_HASH}
+ * and the package digest in {@link TempApkProvider#TABLE_TEMP_PACKAGE_HASH}, so that
+ * committing can tell which apps are exactly the same as what is already stored.
+ * <p>
+ * The statements are only valid while the temp database is attached, so
+ * {@link #close()} must be called before the temp tables are committed.
+ */
+class TempTableBulkWriter {
+
+    private static final String[] APP_COLS = {
+            AppMetadataTable.Cols.PACKAGE_ID,
+            AppMetadataTable.Cols.REPO_ID,
+            AppMetadataTable.Cols.NAME,
+            AppMetadataTable.Cols.SUMMARY,
+            AppMetadataTable.Cols.ICON,
+            AppMetadataTable.Cols.ICON_URL,
+            AppMetadataTable.Cols.DESCRIPTION,
+            AppMetadataTable.Cols.WHATSNEW,
+            AppMetadataTable.Cols.LICENSE,
+            AppMetadataTable.Cols.AUTHOR_NAME,
+            AppMetadataTable.Cols.AUTHOR_EMAIL,
+            AppMetadataTable.Cols.WEBSITE,
+            AppMetadataTable.Cols.ISSUE_TRACKER,
+            AppMetadataTable.Cols.TRANSLATION,
+            AppMetadataTable.Cols.SOURCE_CODE,
+            AppMetadataTable.Cols.VIDEO,
+            AppMetadataTable.Cols.CHANGELOG,
+            AppMetadataTable.Cols.DONATE,
+            AppMetadataTable.Cols.BITCOIN,
+            AppMetadataTable.Cols.LITECOIN,
+            AppMetadataTable.Cols.FLATTR_ID,
+            AppMetadataTable.Cols.LIBERAPAY,
+            AppMetadataTable.Cols.OPEN_COLLECTIVE,
+            AppMetadataTable.Cols.ADDED,
+            AppMetadataTable.Cols.LAST_UPDATED,
+            AppMetadataTable.Cols.PREFERRED_SIGNER,
+            AppMetadataTable.Cols.SUGGESTED_VERSION_CODE,
+            AppMetadataTable.Cols.UPSTREAM_VERSION_NAME,
+            AppMetadataTable.Cols.UPSTREAM_VERSION_CODE,
+            AppMetadataTable.Cols.ANTI_FEATURES,
+            AppMetadataTable.Cols.REQUIREMENTS,
+            AppMetadataTable.Cols.FEATURE_GRAPHIC,
+            AppMetadataTable.Cols.PROMO_GRAPHIC,
+            AppMetadataTable.Cols.TV_BANNER,
+            AppMetadataTable.Cols.PHONE_SCREENSHOTS,
+            AppMetadataTable.Cols.SEVEN_INCH_SCREENSHOTS,
+            AppMetadataTable.Cols.TEN_INCH_SCREENSHOTS,
+            AppMetadataTable.Cols.TV_SCREENSHOTS,
+            AppMetadataTable.Cols.WEAR_SCREENSHOTS,
+            AppMetadataTable.Cols.IS_COMPATIBLE,
+            AppMetadataTable.Cols.IS_APK,
+            AppMetadataTable.Cols.LOCALIZED,
+            AppMetadataTable.Cols.CONTENT_HASH,
+    };
+
+    private static final String[] APK_COLS = {
+            ApkTable.Cols.APP_ID,
+            ApkTable.Cols.VERSION_NAME,
+            ApkTable.Cols.REPO_ID,
+            ApkTable.Cols.HASH,
+            ApkTable.Cols.VERSION_CODE,
+            ApkTable.Cols.NAME,
+            ApkTable.Cols.SIZE,
+            ApkTable.Cols.SIGNATURE,
+            ApkTable.Cols.SOURCE_NAME,
+            ApkTable.Cols.MIN_SDK_VERSION,
+            ApkTable.Cols.TARGET_SDK_VERSION,
+            ApkTable.Cols.MAX_SDK_VERSION,
+            ApkTable.Cols.OBB_MAIN_FILE,
+            ApkTable.Cols.OBB_MAIN_FILE_SHA256,
+            ApkTable.Cols.OBB_PATCH_FILE,
+            ApkTable.Cols.OBB_PATCH_FILE_SHA256,
+            ApkTable.Cols.REQUESTED_PERMISSIONS,
+            ApkTable.Cols.FEATURES,
+            ApkTable.Cols.NATIVE_CODE,
+            ApkTable.Cols.HASH_TYPE,
+            ApkTable.Cols.ADDED_DATE,
+            ApkTable.Cols.IS_COMPATIBLE,
+            ApkTable.Cols.INCOMPATIBLE_REASONS,
+            TempApkProvider.COL_PENDING_PACKAGE_NAME,
+    };
+
+    private final SQLiteDatabase db;
+    private final IngestIds ids;
+
+    private final SQLiteStatement insertApp;
+    private final JoinRows catJoins;
+
+    private final SQLiteStatement insertApk;
+    private final JoinRows antiFeatureJoins;
+    private final SQLiteStatement insertPackageHash;
+
+    /**
+     * Collects the values bound for the app or package currently being written.
+     */
+    private Hasher contentHasher;
+
+    TempTableBulkWriter(Context context) {
+        db = DBHelper.getInstance(context).getWritableDatabase();
+        ids = new IngestIds(db);
+
+        insertApp = db.compileStatement(insertSql(TempAppProvider.TABLE_TEMP_APP, APP_COLS));
+        catJoins = new JoinRows(db, TempAppProvider.TABLE_TEMP_CAT_JOIN,
+                CatJoinTable.Cols.APP_METADATA_ID, CatJoinTable.Cols.CATEGORY_ID);
+
+        insertApk = db.compileStatement(insertSql(TempApkProvider.TABLE_TEMP_APK, APK_COLS));
+        antiFeatureJoins = new JoinRows(db, TempAppProvider.TABLE_TEMP_APK_ANTI_FEATURE_JOIN,
+                ApkAntiFeatureJoinTable.Cols.APK_ID, ApkAntiFeatureJoinTable.Cols.ANTI_FEATURE_ID);
+        insertPackageHash = db.compileStatement("INSERT OR REPLACE INTO " + TempApkProvider.TABLE_TEMP_PACKAGE_HASH
+                + " (" + TempApkProvider.COL_PACKAGE_NAME + ", " + TempApkProvider.COL_HASH + ") VALUES (?, ?)");
+    }
+
+    private static String insertSql(String table, String[] cols) {
+        return insertSql(table, cols, 1);
+    }
+
+    /**
+     * @return an insert of {@code rows} rows at once
+     */
+    private static String insertSql(String table, String[] cols, int rows) {
+        String[] placeholders = new String[cols.length];
+        for (int i = 0; i < cols.length; i++) {
+            placeholders[i] = "?";
+        }
+        String[] values = new String[rows];
+        for (int i = 0; i < rows; i++) {
+            values[i] = "(" + TextUtils.join(", ", placeholders) + ")";
+        }
+        return "INSERT INTO " + table + " (" + TextUtils.join(", ", cols) + ") "
+                + "VALUES " + TextUtils.join(", ", values);
+    }
+
+    /**
+     * @return the rowid each app was inserted with, keyed by package name, so that
+     * their apks can be linked to them without having to look them up again.
+     */
+    Map<String, Long> insertApps(List<App> apps) {
+        Map<String, Long> appIds = new HashMap<>(apps.size());
+        Set<String> packageNames = new LinkedHashSet<>();
+        Set<String> categoryNames = new LinkedHashSet<>();
+        for (App app : apps) {
+            packageNames.add(app.packageName);
+            if (app.categories != null) {
+                Collections.addAll(categoryNames, app.categories);
+            }
+        }
+        db.beginTransaction();
+        try {
+            ids.ensurePackages(packageNames);
+            ids.ensureCategories(categoryNames);
+            for (App app : apps) {
+                appIds.put(app.packageName, insertApp(app));
+            }
+            catJoins.write();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return appIds;
+    }
+
+    /**
+     * @param apksByPackage all of the apks of each package, as a package is always
+     *                      hashed as a whole.
+     */
+    void insertApks(Map<String, List<Apk>> apksByPackage) {
+        Set<String> antiFeatureNames = new LinkedHashSet<>();
+        for (List<Apk> apks : apksByPackage.values()) {
+            for (Apk apk : apks) {
+                if (apk.antiFeatures != null) {
+                    Collections.addAll(antiFeatureNames, apk.antiFeatures);
+                }
+            }
+        }
+        db.beginTransaction();
+        try {
+            ids.ensureAntiFeatures(antiFeatureNames);
+            for (Map.Entry<String, List<Apk>> entry : apksByPackage.entrySet()) {
+                contentHasher = Hashing.murmur3_128().newHasher();
+                for (Apk apk : entry.getValue()) {
+                    insertApk(apk);
+                }
+                insertPackageHash.bindString(1, entry.getKey());
+                insertPackageHash.bindString(2, contentHasher.hash().toString());
+                insertPackageHash.executeInsert();
+            }
+            antiFeatureJoins.write();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * @see AppProvider#insert(android.net.Uri, android.content.ContentValues)
+     */
+    private long insertApp(App app) {
+        SQLiteStatement s = insertApp;
+        s.clearBindings();
+        contentHasher = Hashing.murmur3_128().newHasher();
+        int i = 1;
+        s.bindLong(i++, ids.getPackageId(app.packageName));
+        s.bindLong(i++, app.repoId);
+        bind(s, i++, app.name.trim());
+        bind(s, i++, app.summary.trim());
+        bind(s, i++, app.iconFromApk);
+        bind(s, i++, app.iconUrl);
+        bind(s, i++, app.description == null ? "" : app.description);
+        bind(s, i++, app.whatsNew);
+        bind(s, i++, app.license);
+        bind(s, i++, app.authorName);
+        bind(s, i++, app.authorEmail);
+        bind(s, i++, app.webSite);
+        bind(s, i++, app.issueTracker);
+        bind(s, i++, app.translation);
+        bind(s, i++, app.sourceCode);
+        bind(s, i++, app.video);
+        bind(s, i++, app.changelog);
+        bind(s, i++, app.donate);
+        bind(s, i++, app.bitcoin);
+        bind(s, i++, app.litecoin);
+        bind(s, i++, app.flattrID);
+        bind(s, i++, app.liberapay);
+        bind(s, i++, app.openCollective);
+        bind(s, i++, Utils.formatDate(app.added, ""));
+        bind(s, i++, Utils.formatDate(app.lastUpdated, ""));
+        bind(s, i++, app.preferredSigner);
+        bind(s, i++, app.suggestedVersionCode);
+        bind(s, i++, app.upstreamVersionName);
+        bind(s, i++, app.upstreamVersionCode);
+        bind(s, i++, app.antiFeatures);
+        bind(s, i++, app.requirements);
+        bind(s, i++, app.featureGraphic);
+        bind(s, i++, app.promoGraphic);
+        bind(s, i++, app.tvBanner);
+        bind(s, i++, app.phoneScreenshots);
+        bind(s, i++, app.sevenInchScreenshots);
+        bind(s, i++, app.tenInchScreenshots);
+        bind(s, i++, app.tvScreenshots);
+        bind(s, i++, app.wearScreenshots);
+        bind(s, i++, app.compatible);
+        bind(s, i++, app.isApk);
+        bind(s, i++, app.getLocalizedForStorage());
+        hash(Utils.serializeCommaSeparatedString(app.categories));
+        s.bindString(i, contentHasher.hash().toString());
+        long appId = s.executeInsert();
+        if (appId == -1) {
+            throw new IllegalStateException("Could not insert " + app.packageName + " into the temp app table");
+        }
+
+        catJoins.replace(appId);
+        if (app.categories != null) {
+            Set<Long> categoryIds = new HashSet<>();
+            for (String categoryName : app.categories) {
+                // There is nothing stopping a server repeating a category name in the metadata of
+                // an app. In order to prevent unique constraint violations, only insert once into
+                // the join table.
+                long categoryId = ids.getCategoryId(categoryName);
+                if (categoryIds.add(categoryId)) {
+                    catJoins.add(appId, categoryId);
+                }
+            }
+        }
+        return appId;
+    }
+
+    /**
+     * @see ApkProvider#insert(android.net.Uri, android.content.ContentValues)
+     */
+    private long insertApk(Apk apk) {
+        SQLiteStatement s = insertApk;
+        s.clearBindings();
+        int i = 1;
+        // not hashed: it is the rowid the app got in the temp table, or 0, so it depends on
+        // how many apps came before it in the index rather than on anything in this package
+        s.bindLong(i++, apk.appId);
+        bind(s, i++, apk.versionName);
+        s.bindLong(i++, apk.repoId);
+        bind(s, i++, apk.hash);
+        bind(s, i++, apk.versionCode);
+        bind(s, i++, apk.apkName);
+        bind(s, i++, apk.size);
+        bind(s, i++, apk.sig);
+        bind(s, i++, apk.srcname);
+        bind(s, i++, apk.minSdkVersion);
+        bind(s, i++, apk.targetSdkVersion);
+        bind(s, i++, apk.maxSdkVersion);
+        bind(s, i++, apk.obbMainFile);
+        bind(s, i++, apk.obbMainFileSha256);
+        bind(s, i++, apk.obbPatchFile);
+        bind(s, i++, apk.obbPatchFileSha256);
+        bind(s, i++, apk.requestedPermissions);
+        bind(s, i++, apk.features);
+        bind(s, i++, apk.nativecode);
+        bind(s, i++, apk.hashType);
+        bind(s, i++, Utils.formatDate(apk.added, ""));
+        bind(s, i++, apk.compatible);
+        bind(s, i++, apk.incompatibleReasons);
+        hash(Utils.serializeCommaSeparatedString(apk.antiFeatures));
+        // only needed to link it to its app later, if that has not been written yet
+        if (apk.appId == 0) {
+            s.bindString(i, apk.packageName);
+        } else {
+            s.bindNull(i);
+        }
+        long apkId = s.executeInsert();
+        if (apkId == -1) {
+            throw new IllegalStateException("Could not insert " + apk.packageName + " into the temp apk table");
+        }
+
+        antiFeatureJoins.replace(apkId);
+        if (apk.antiFeatures != null) {
+            Set<String> antiFeatureSet = new HashSet<>();
+            for (String antiFeatureName : apk.antiFeatures) {
+                if (antiFeatureSet.add(antiFeatureName)) {
+                    antiFeatureJoins.add(apkId, ids.getAntiFeatureId(antiFeatureName));
+                }
+            }
+        }
+        return apkId;
+    }
+
+    private void bind(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+        hash(value);
+    }
+
+    private void bind(SQLiteStatement statement, int index, String[] values) {
+        bind(statement, index, Utils.serializeCommaSeparatedString(values));
+    }
+
+    private void bind(SQLiteStatement statement, int index, long value) {
+        statement.bindLong(index, value);
+        contentHasher.putLong(value);
+    }
+
+    private void bind(SQLiteStatement statement, int index, boolean value) {
+        bind(statement, index, value ? 1 : 0);
+    }
+
+    /**
+     * Prefixes each value with its length, so that moving text from one field
+     * into the next changes the digest.
+     */
+    private void hash(String value) {
+        if (value == null) {
+            contentHasher.putInt(-1);
+        } else {
+            contentHasher.putInt(value.length()).putString(value, StandardCharsets.UTF_8);
+        }
+    }
+
+    void close() {
+        ids.close();
+        insertApp.close();
+        catJoins.close();
+        insertApk.close();
+        antiFeatureJoins.close();
+        insertPackageHash.close();
+    }
+
+    /**
+     * Collects the rows of a join table for a whole flush, and writes them with one
+     * statement per {@link #ROWS_PER_STATEMENT} rows.  Rowids of the repo being updated
+     * may have been reused, so there can be stale join rows, those are deleted first.
+     */
+    private static final class JoinRows {
+        /**
+         * Keeps the number of variables in a statement well below SQLite's limit of 999.
+         */
+        private static final int ROWS_PER_STATEMENT = 100;
+
+        private final SQLiteStatement deleteOne;
+        private final SQLiteStatement deleteMany;
+        private final SQLiteStatement insertOne;
+        private final SQLiteStatement insertMany;
+
+        private long[] ids = new long[ROWS_PER_STATEMENT];
+        private int idCount;
+        private long[] rows = new long[ROWS_PER_STATEMENT * 2];
+        private int rowCount;
+
+        JoinRows(SQLiteDatabase db, String table, String idCol, String otherIdCol) {
+            String[] placeholders = new String[ROWS_PER_STATEMENT];
+            Arrays.fill(placeholders, "?");
+            deleteOne = db.compileStatement("DELETE FROM " + table + " WHERE " + idCol + " = ?");
+            deleteMany = db.compileStatement("DELETE FROM " + table + " WHERE " + idCol
+                    + " IN (" + TextUtils.join(", ", placeholders) + ")");
+            String[] cols = {idCol, otherIdCol};
+            insertOne = db.compileStatement(insertSql(table, cols));
+            insertMany = db.compileStatement(insertSql(table, cols, ROWS_PER_STATEMENT));
+        }
+
+        /**
+         * Replace all rows for {@code id} with those passed to {@link #add(long, long)}.
+         */
+        void replace(long id) {
+            if (idCount == ids.length) {
+                ids = Arrays.copyOf(ids, ids.length * 2);
+            }
+            ids[idCount++] = id;
+        }
+
+        void add(long id, long otherId) {
+            if (rowCount * 2 == rows.length) {
+                rows = Arrays.copyOf(rows, rows.length * 2);
+            }
+            rows[rowCount * 2] = id;
+            rows[rowCount * 2 + 1] = otherId;
+            rowCount++;
+        }
+
+        void write() {
+            int i = 0;
+            for (; i + ROWS_PER_STATEMENT <= idCount; i += ROWS_PER_STATEMENT) {
+                for (int j = 0; j < ROWS_PER_STATEMENT; j++) {
+                    deleteMany.bindLong(j + 1, ids[i + j]);
+                }
+                deleteMany.executeUpdateDelete();
+            }
+            for (; i < idCount; i++) {
+                deleteOne.bindLong(1, ids[i]);
+                deleteOne.executeUpdateDelete();
+            }
+
+            i = 0;
+            for (; i + ROWS_PER_STATEMENT <= rowCount; i += ROWS_PER_STATEMENT) {
+                for (int j = 0; j < ROWS_PER_STATEMENT * 2; j++) {
+                    insertMany.bindLong(j + 1, rows[i * 2 + j]);
+                }
+                insertMany.executeInsert();
+            }
+            for (; i < rowCount; i++) {
+                insertOne.bindLong(1, rows[i * 2]);
+                insertOne.bindLong(2, rows[i * 2 + 1]);
+                insertOne.executeInsert();
+            }
+            idCount = 0;
+            rowCount = 0;
+        }
+
+        void close() {
+            deleteOne.close();
+            deleteMany.close();
+            insertOne.close();
+            insertMany.close();
+        }
+    }
+}
@@ -28,7 +28,6 @@ import com.google.common.io.Files;
 
 import org.fdroid.fdroid.views.appdetails.AppDetails;
 import org.fdroid.fdroid.AppUpdateStatusManager;
-import org.fdroid.fdroid.FDroidApp;
 import org.fdroid.fdroid.HashingUtils;
 import org.fdroid.fdroid.R;
 import org.fdroid.fdroid.Utils;
@@ -36,6 +35,7 @@ import org.fdroid.fdroid.compat.PackageManagerCompat;
 import org.fdroid.fdroid.data.Apk;
 import org.fdroid.fdroid.data.App;
 import org.fdroid.fdroid.data.AppProvider;
+import org.fdroid.fdroid.data.MirrorHealth;
 import org.fdroid.fdroid.data.Schema;
 import org.fdroid.fdroid.net.Downloader;
 import org.fdroid.fdroid.net.DownloaderService;
@@ -105,6 +105,7 @@ public class InstallManagerService extends Service {
 
     private static final String EXTRA_APP = "org.fdroid.fdroid.installer.extra.APP";
     private static final String EXTRA_APK = "org.fdroid.fdroid.installer.extra.APK";
+    private static final String EXTRA_PRIORITY = "org.fdroid.fdroid.installer.extra.PRIORITY";
 
     private static SharedPreferences pendingInstalls;
 
@@ -238,14 +239,15 @@ public class InstallManagerService extends Service {
         NotificationCompat.Builder builder = createNotificationBuilder(urlString, apk);
         notificationManager.notify(urlString.hashCode(), builder.build());
 
-        FDroidApp.resetMirrorVars();
-        DownloaderService.setTimeout(FDroidApp.getTimeout());
-
         appUpdateStatusManager.addApk(apk, AppUpdateStatusManager.Status.Downloading, null);
 
-        registerPackageDownloaderReceivers(urlString, builder);
-        getObb(urlString, apk.getMainObbUrl(), apk.getMainObbFile(), apk.obbMainFileSha256, builder);
-        getObb(urlString, apk.getPatchObbUrl(), apk.getPatchObbFile(), apk.obbPatchFileSha256, builder);
+        int priority = intent.getIntExtra(EXTRA_PRIORITY, DownloaderService.PRIORITY_USER);
+        // F-Droid itself has to be updated last, so it does not get to jump ahead for being small
+        long size = TextUtils.equals(apk.packageName, getPackageName()) ? 0 : apk.size;
+        MirrorHealth.Failover failover = MirrorHealth.getFailover(this, apk.repoId, urlString, false);
+        registerPackageDownloaderReceivers(urlString, builder, priority, size, failover);
+        getObb(urlString, apk.repoId, apk.getMainObbUrl(), apk.getMainObbFile(), apk.obbMainFileSha256, builder);
+        getObb(urlString, apk.repoId, apk.getPatchObbUrl(), apk.getPatchObbFile(), apk.obbPatchFileSha256, builder);
 
         File apkFilePath = ApkCache.getApkDownloadPath(this, intent.getData());
         if (apkFilePath == null) {
@@ -255,7 +257,7 @@ public class InstallManagerService extends Service {
         long apkFileSize = apkFilePath.length();
         if (!apkFilePath.exists() || apkFileSize < apk.size) {
             Utils.debugLog(TAG, "download " + urlString + " " + apkFilePath);
-            DownloaderService.queue(this, urlString, apk.repoId, urlString);
+            queue(urlString, apk.repoId, priority, size, failover);
         } else if (ApkCache.apkIsCached(apkFilePath, apk)) {
             Utils.debugLog(TAG, "skip download, we have it, straight to install " + urlString + " " + apkFilePath);
             sendBroadcast(intent.getData(), Downloader.ACTION_STARTED, apkFilePath);
@@ -263,12 +265,28 @@ public class InstallManagerService extends Service {
         } else {
             Utils.debugLog(TAG, "delete and download again " + urlString + " " + apkFilePath);
             apkFilePath.delete();
-            DownloaderService.queue(this, urlString, apk.repoId, urlString);
+            queue(urlString, apk.repoId, priority, size, failover);
         }
 
         return START_REDELIVER_INTENT; // if killed before completion, retry Intent
     }
 
+    /**
+     * Queues the download from the next mirror of {@code failover}.
+     *
+     * @return {@code false} if there is no mirror left to try
+     */
+    private boolean queue(String urlString, long repoId, int priority, long size,
+                          MirrorHealth.Failover failover) {
+        try {
+            DownloaderService.queue(this, failover.next(), repoId, urlString, priority, size,
+                    failover.getTimeout());
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
     private void sendBroadcast(Uri uri, String action, File file) {
         Intent intent = new Intent(action);
         intent.setData(uri);
@@ -283,7 +301,7 @@ public class InstallManagerService extends Service {
      *
      * @see <a href="https://developer.android.com/google/play/expansion-files.html">APK Expansion Files</a>
      */
-    private void getObb(final String urlString, String obbUrlString,
+    private void getObb(final String urlString, final long repoId, String obbUrlString,
                         final File obbDestFile, final String hash,
                         final NotificationCompat.Builder builder) {
         if (obbDestFile == null || obbDestFile.exists() || TextUtils.isEmpty(obbUrlString)) {
@@ -338,13 +356,13 @@ public class InstallManagerService extends Service {
                 } else if (Downloader.ACTION_INTERRUPTED.equals(action)) {
                     localBroadcastManager.unregisterReceiver(this);
                 } else if (Downloader.ACTION_CONNECTION_FAILED.equals(action)) {
-                    DownloaderService.queue(context, urlString, 0, urlString);
+                    DownloaderService.queue(context, urlString, repoId, urlString, DownloaderService.PRIORITY_OBB, 0);
                 } else {
                     throw new RuntimeException("intent action not handled!");
                 }
             }
         };
-        DownloaderService.queue(this, obbUrlString, 0, obbUrlString);
+        DownloaderService.queue(this, obbUrlString, repoId, obbUrlString, DownloaderService.PRIORITY_OBB, 0);
         localBroadcastManager.registerReceiver(downloadReceiver,
                 DownloaderService.getIntentFilter(obbUrlString));
     }
@@ -353,7 +371,9 @@ public class InstallManagerService extends Service {
      * Register a {@link BroadcastReceiver} for tracking download progress for a
      * give {@code urlString}.  There can be multiple of these registered at a time.
      */
-    private void registerPackageDownloaderReceivers(String urlString, final NotificationCompat.Builder builder) {
+    private void registerPackageDownloaderReceivers(String urlString, final NotificationCompat.Builder builder,
+                                                    final int priority, final long size,
+                                                    final MirrorHealth.Failover failover) {
 
         BroadcastReceiver downloadReceiver = new BroadcastReceiver() {
             @Override
@@ -404,10 +424,7 @@ public class InstallManagerService extends Service {
                         cancelNotification(urlString);
                         break;
                     case Downloader.ACTION_CONNECTION_FAILED:
-                        try {
-                            DownloaderService.queue(context, FDroidApp.getMirror(mirrorUrlString, repoId), repoId, urlString);
-                            DownloaderService.setTimeout(FDroidApp.getTimeout());
-                        } catch (IOException e) {
+                        if (!queue(urlString, repoId, priority, size, failover)) {
                             Toast.makeText(context, "Ran out of mirrors", Toast.LENGTH_SHORT).show();
                             appUpdateStatusManager.setDownloadError(urlString, intent.getStringExtra(Downloader.EXTRA_ERROR_MESSAGE));
                             localBroadcastManager.unregisterReceiver(this);
@@ -514,6 +531,13 @@ public class InstallManagerService extends Service {
      * @param context this app's {@link Context}
      */
     public static void queue(Context context, App app, @NonNull Apk apk) {
+        queue(context, app, apk, DownloaderService.PRIORITY_USER);
+    }
+
+    /**
+     * @param priority the {@link DownloaderService} priority to download {@code apk} with
+     */
+    public static void queue(Context context, App app, @NonNull Apk apk, int priority) {
         String urlString = apk.getCanonicalUrl();
         AppUpdateStatusManager.getInstance(context).addApk(apk, AppUpdateStatusManager.Status.PendingInstall, null);
         putPendingInstall(context, urlString, apk.packageName);
@@ -523,6 +547,7 @@ public class InstallManagerService extends Service {
         intent.setData(Uri.parse(urlString));
         intent.putExtra(EXTRA_APP, app);
         intent.putExtra(EXTRA_APK, apk);
+        intent.putExtra(EXTRA_PRIORITY, priority);
         context.startService(intent);
     }
 
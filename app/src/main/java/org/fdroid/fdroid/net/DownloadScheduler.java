@@ -0,0 +1,277 @@
+package org.fdroid.fdroid.net;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Decides which of the queued downloads run next, for {@link DownloaderService}.  Up to
+ * {@code maxDownloads} run at the same time, but no more than {@code maxDownloadsPerHost}
+ * from the same host, so that one slow mirror does not take up all of them.
+ * <p>
+ * Queued downloads go by {@link Task#priority} first, so what the user asked for comes
+ * before automatic updates, and those before OBB files.  With the same priority, smaller
+ * files come first, so that a few big ones cannot hold up all the small ones.  Downloads
+ * of unknown size are sorted last, and otherwise it is first come, first served.
+ * Tasks with the same {@link Task#key} never run at the same time, since they
+ * download to the same file.
+ * <p>
+ * A download which also fetches from other hosts, like {@link SegmentedDownloader},
+ * asks for each of those connections with {@link #acquireConnection(String)}, so they
+ * count against {@code maxDownloadsPerHost} as well.
+ * <p>
+ * This does not know anything about Android, so that it can be tested on the JVM.
+ */
+final class DownloadScheduler {
+
+    /**
+     * A single download.  {@link #cancel()} may be called from any thread,
+     * whether it is still queued or already running.
+     */
+    abstract static class Task implements Runnable {
+        final String key;
+        final String host;
+        final int priority;
+        final long size;
+        private long sequence;
+
+        /**
+         * @param key      identifies the download for {@link #contains(String)} and
+         *                 {@link #cancel(String)}, more than one task may have the same
+         * @param host     downloads are limited per host, use {@code null} for no limit
+         * @param priority lower numbers go first
+         * @param size     the expected number of bytes, or {@code 0} if not known
+         */
+        Task(String key, String host, int priority, long size) {
+            this.key = key;
+            this.host = host;
+            this.priority = priority;
+            this.size = size > 0 ? size : Long.MAX_VALUE;
+        }
+
+        /**
+         * Called instead of {@link #run()} when the task is removed from the queue.
+         */
+        abstract void onRemoved();
+
+        /**
+         * Stops the task while it is running.
+         */
+        abstract void cancel();
+
+        boolean goesBefore(Task other) {
+            if (priority != other.priority) {
+                return priority < other.priority;
+            }
+            if (size != other.size) {
+                return size < other.size;
+            }
+            return sequence < other.sequence;
+        }
+    }
+
+    private final int maxDownloads;
+    private final int maxDownloadsPerHost;
+    private final ThreadFactory threadFactory;
+    private final ExecutorService executor;
+    private final Runnable onIdle;
+
+    private final List<Task> queued = new ArrayList<>();
+    private final List<Task> running = new ArrayList<>();
+    private final Map<String, Integer> extraConnections = new HashMap<>();
+    private long nextSequence;
+
+    /**
+     * @param onIdle called on the thread of the last download, once nothing is left to do
+     */
+    DownloadScheduler(int maxDownloads, int maxDownloadsPerHost, ThreadFactory threadFactory, Runnable onIdle) {
+        this.maxDownloads = maxDownloads;
+        this.maxDownloadsPerHost = maxDownloadsPerHost;
+        this.threadFactory = threadFactory;
+        this.executor = Executors.newCachedThreadPool(threadFactory);
+        this.onIdle = onIdle;
+    }
+
+    synchronized void queue(Task task) {
+        if (executor.isShutdown()) {
+            return;
+        }
+        task.sequence = nextSequence++;
+        queued.add(task);
+        startNext();
+    }
+
+    /**
+     * Removes all queued tasks with this {@code key}, or else cancels the running ones.
+     *
+     * @return whether there was any task with this {@code key}
+     */
+    boolean cancel(String key) {
+        List<Task> removed = new ArrayList<>();
+        List<Task> cancelled = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Task> iterator = queued.iterator();
+            while (iterator.hasNext()) {
+                Task task = iterator.next();
+                if (task.key.equals(key)) {
+                    iterator.remove();
+                    removed.add(task);
+                }
+            }
+            if (removed.isEmpty()) {
+                for (Task task : running) {
+                    if (task.key.equals(key)) {
+                        cancelled.add(task);
+                    }
+                }
+            }
+        }
+        for (Task task : removed) {
+            task.onRemoved();
+        }
+        for (Task task : cancelled) {
+            task.cancel();
+        }
+        return !removed.isEmpty() || !cancelled.isEmpty();
+    }
+
+    synchronized boolean contains(String key) {
+        for (Task task : queued) {
+            if (task.key.equals(key)) {
+                return true;
+            }
+        }
+        return isRunning(key);
+    }
+
+    synchronized boolean isRunning(String key) {
+        for (Task task : running) {
+            if (task.key.equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized boolean isIdle() {
+        return queued.isEmpty() && running.isEmpty();
+    }
+
+    /**
+     * Takes one more connection to {@code host} for a running task, if that is still
+     * below {@code maxDownloadsPerHost}.  It has to be given back with
+     * {@link #releaseConnection(String)}.
+     *
+     * @return whether the connection may be made
+     */
+    synchronized boolean acquireConnection(String host) {
+        if (host == null) {
+            return true;
+        }
+        if (executor.isShutdown() || countRunning(host) >= maxDownloadsPerHost) {
+            return false;
+        }
+        Integer count = extraConnections.get(host);
+        extraConnections.put(host, count == null ? 1 : count + 1);
+        return true;
+    }
+
+    synchronized void releaseConnection(String host) {
+        Integer count = extraConnections.get(host);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            extraConnections.put(host, count - 1);
+        } else {
+            extraConnections.remove(host);
+        }
+        if (!executor.isShutdown()) {
+            startNext();
+        }
+    }
+
+    /**
+     * A thread from the same {@link ThreadFactory} as the tasks run on, for a task
+     * which does some of its work on more than one thread.
+     */
+    Thread newThread(Runnable runnable) {
+        return threadFactory.newThread(runnable);
+    }
+
+    /**
+     * Drops all queued tasks without calling {@link Task#onRemoved()}, and cancels the running ones.
+     */
+    void shutdown() {
+        List<Task> cancelled;
+        synchronized (this) {
+            queued.clear();
+            cancelled = new ArrayList<>(running);
+        }
+        for (Task task : cancelled) {
+            task.cancel();
+        }
+        executor.shutdown();
+    }
+
+    private void startNext() {
+        while (running.size() < maxDownloads) {
+            Task next = null;
+            for (Task task : queued) {
+                if ((next == null || task.goesBefore(next)) && countRunning(task.host) < maxDownloadsPerHost
+                        && !isRunning(task.key)) {
+                    next = task;
+                }
+            }
+            if (next == null) {
+                return;
+            }
+            queued.remove(next);
+            running.add(next);
+            final Task task = next;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        finish(task);
+                    }
+                }
+            });
+        }
+    }
+
+    private void finish(Task task) {
+        boolean idle;
+        synchronized (this) {
+            running.remove(task);
+            if (!executor.isShutdown()) {
+                startNext();
+            }
+            idle = queued.isEmpty() && running.isEmpty();
+        }
+        if (idle) {
+            onIdle.run();
+        }
+    }
+
+    private int countRunning(String host) {
+        if (host == null) {
+            return 0;
+        }
+        Integer extra = extraConnections.get(host);
+        int count = extra == null ? 0 : extra;
+        for (Task task : running) {
+            if (host.equals(task.host)) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
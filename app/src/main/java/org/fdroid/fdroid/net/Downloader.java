@@ -9,6 +9,7 @@ import org.fdroid.fdroid.Utils;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -46,6 +47,17 @@ public abstract class Downloader {
 
     private volatile int timeout = 10000;
 
+    /**
+     * How long the server took to answer, or {@code -1} if it was not asked.
+     */
+    long connectMillis = -1;
+    private long bytesPerSecond = -1;
+
+    /**
+     * Downloads smaller than this say more about the latency than about the speed.
+     */
+    static final int MIN_BYTES_FOR_SPEED = 64 * 1024;
+
     /**
      * For sending download progress, should only be called in {@link #progressTask}
      */
@@ -77,6 +89,21 @@ public abstract class Downloader {
         return timeout;
     }
 
+    /**
+     * @return how long the server took to answer, or {@code -1} if it was not asked
+     */
+    public long getConnectMillis() {
+        return connectMillis;
+    }
+
+    /**
+     * @return the average speed of {@link #download()}, or {@code -1} if too little
+     * was downloaded to tell
+     */
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
     /**
      * If you ask for the cacheTag before calling download(), you will get the
      * same one you passed in (if any). If you call it after download(), you
@@ -100,6 +127,32 @@ public abstract class Downloader {
 
     public abstract void download() throws ConnectException, IOException, InterruptedException;
 
+    /**
+     * Does the same checks as {@link #download()}, then connects, but instead of saving
+     * anything to {@link #outputFile}, it is up to the caller to read the data from the
+     * returned stream while it arrives.  Progress is reported as it is read.
+     *
+     * @return the stream to read and close, or {@code null} if the file was not found,
+     * or has not changed since {@link #setCacheTag(String)}
+     */
+    public final InputStream downloadAsStream() throws ConnectException, IOException, InterruptedException {
+        if (!connectForStream()) {
+            return null;
+        }
+        throwExceptionIfInterrupted();
+        bytesRead = 0;
+        totalBytes = totalDownloadSize();
+        return new ProgressInputStream(getInputStream());
+    }
+
+    /**
+     * Connects for {@link #downloadAsStream()}, after updating {@link #isNotFound()},
+     * {@link #hasChanged()} and {@link #getCacheTag()}.
+     *
+     * @return whether there is anything to download
+     */
+    protected abstract boolean connectForStream() throws ConnectException, IOException;
+
     /**
      * @return whether the requested file was not found in the repo (e.g. HTTP 404 Not Found)
      */
@@ -137,7 +190,7 @@ public abstract class Downloader {
      *
      * @throws InterruptedException
      */
-    private void throwExceptionIfInterrupted() throws InterruptedException {
+    void throwExceptionIfInterrupted() throws InterruptedException {
         if (cancelled) {
             Utils.debugLog(TAG, "Received interrupt, cancelling download");
             throw new InterruptedException();
@@ -170,6 +223,8 @@ public abstract class Downloader {
             // it is implemented, so we may as well check this before we proceed.
             throwExceptionIfInterrupted();
 
+            long start = System.currentTimeMillis();
+
             while (true) {
 
                 int count;
@@ -184,6 +239,9 @@ public abstract class Downloader {
 
                 if (count == -1) {
                     Utils.debugLog(TAG, "Finished downloading from stream");
+                    if (bytesRead >= MIN_BYTES_FOR_SPEED) {
+                        bytesPerSecond = bytesRead * 1000 / Math.max(1, System.currentTimeMillis() - start);
+                    }
                     break;
                 }
                 bytesRead += count;
@@ -200,6 +258,19 @@ public abstract class Downloader {
         }
     }
 
+    /**
+     * For downloads which do not go through {@link #downloadFromStream(int, boolean)},
+     * and so have to report their progress themselves, at most every 100ms.
+     */
+    void reportProgress(long bytesRead, long totalBytes) {
+        this.bytesRead = bytesRead;
+        this.totalBytes = totalBytes;
+        ProgressListener listener = downloaderProgressListener;
+        if (listener != null) {
+            listener.onProgress(urlString, bytesRead, totalBytes);
+        }
+    }
+
     /**
      * Send progress updates on a timer to avoid flooding receivers with pointless events.
      */
@@ -214,6 +285,46 @@ public abstract class Downloader {
         }
     };
 
+    /**
+     * Counts the bytes read by the caller of {@link #downloadAsStream()}, and reports
+     * them to the listener at most every 100ms, like {@link #progressTask} does.
+     */
+    private class ProgressInputStream extends FilterInputStream {
+        private long lastReported;
+
+        ProgressInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                onRead(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(@NonNull byte[] buffer, int byteOffset, int byteCount) throws IOException {
+            int count = super.read(buffer, byteOffset, byteCount);
+            if (count > 0) {
+                onRead(count);
+            }
+            return count;
+        }
+
+        private void onRead(int count) {
+            bytesRead += count;
+            long now = System.currentTimeMillis();
+            ProgressListener listener = downloaderProgressListener;
+            if (listener != null && now - lastReported >= 100) {
+                lastReported = now;
+                listener.onProgress(urlString, bytesRead, totalBytes);
+            }
+        }
+    }
+
     /**
      * Overrides every method in {@link InputStream} and delegates to the wrapped stream.
      * The only difference is that when we call the {@link WrappedInputStream#close()} method,
@@ -2,12 +2,15 @@ package org.fdroid.fdroid.net;
 
 import android.content.Context;
 import android.net.Uri;
+import org.fdroid.fdroid.data.MirrorHealth;
 import org.fdroid.fdroid.data.Repo;
 import org.fdroid.fdroid.data.RepoProvider;
 import org.fdroid.fdroid.data.Schema;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 public class DownloaderFactory {
 
@@ -24,18 +27,77 @@ public class DownloaderFactory {
         return create(context, uri, destFile);
     }
 
-    public static Downloader create(Context context, Uri uri, File destFile)
+    /**
+     * For reading straight from {@link Downloader#getInputStream()}, so no file is
+     * created, and {@link Downloader#outputFile} is {@code null}.
+     */
+    public static Downloader createForStream(Context context, String urlString)
             throws IOException {
-        Downloader downloader;
+        return create(context, Uri.parse(urlString), null);
+    }
+
+    /**
+     * Like {@link #create(Context, Uri, File)}, but a big file from a repo with mirrors
+     * is fetched from the repo and some of its mirrors at the same time, see
+     * {@link SegmentedDownloader}.  The mirrors which {@link MirrorHealth} ranks best are
+     * used.  A partial download is still resumed from {@code uri}.
+     *
+     * @param repoId the repo {@code uri} is from, or {@code 0} if it is not known
+     * @param size   the expected size in bytes, or {@code 0} if it is not known
+     */
+    public static Downloader create(Context context, Uri uri, File destFile, long repoId, long size)
+            throws IOException {
+        Downloader downloader = create(context, uri, destFile);
+        if (!(downloader instanceof HttpDownloader) || repoId <= 0 || destFile.length() > 0
+                || (size > 0 && size < SegmentedDownloader.MIN_SIZE)) {
+            return downloader;
+        }
+        Repo repo = RepoProvider.Helper.findById(context, repoId);
+        if (repo == null || !repo.hasMirrors()) {
+            return downloader;
+        }
 
-        String scheme = uri.getScheme();
-            final String[] projection = {Schema.RepoTable.Cols.USERNAME, Schema.RepoTable.Cols.PASSWORD};
-            Repo repo = RepoProvider.Helper.findByUrl(context, uri, projection);
-            if (repo == null) {
-                downloader = new HttpDownloader(uri, destFile);
-            } else {
-                downloader = new HttpDownloader(uri, destFile, repo.username, repo.password);
+        String urlString = uri.toString();
+        String base = repo.findMirror(urlString);
+        if (base == null) {
+            return downloader;
+        }
+
+        List<HttpDownloader> sources = new ArrayList<>();
+        sources.add((HttpDownloader) downloader);
+        List<String> mirrorUrls = new ArrayList<>();
+        mirrorUrls.add(urlString);
+        for (String mirror : MirrorHealth.getRankedMirrors(context, repo)) {
+            String mirrorUrl = urlString.replace(base, mirror);
+            if (sources.size() >= SegmentedDownloader.MAX_SOURCES || mirrorUrls.contains(mirrorUrl)) {
+                continue;
+            }
+            Downloader source = create(context, Uri.parse(mirrorUrl), null);
+            if (source instanceof HttpDownloader) {
+                sources.add((HttpDownloader) source);
+                mirrorUrls.add(mirrorUrl);
             }
+        }
+        if (sources.size() < 2) {
+            return downloader;
+        }
+        return new SegmentedDownloader(context, uri, destFile, repoId, sources);
+    }
+
+    public static Downloader create(Context context, Uri uri, File destFile)
+            throws IOException {
+        if ("file".equals(uri.getScheme())) {
+            return new LocalFileDownloader(uri, destFile);
+        }
+
+        Downloader downloader;
+        final String[] projection = {Schema.RepoTable.Cols.USERNAME, Schema.RepoTable.Cols.PASSWORD};
+        Repo repo = RepoProvider.Helper.findByUrl(context, uri, projection);
+        if (repo == null) {
+            downloader = new HttpDownloader(uri, destFile);
+        } else {
+            downloader = new HttpDownloader(uri, destFile, repo.username, repo.password);
+        }
         return downloader;
     }
 }
@@ -22,21 +22,19 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.net.Uri;
-import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.Looper;
-import android.os.Message;
 import android.os.PatternMatcher;
 import android.os.Process;
 import android.text.TextUtils;
 import android.util.Log;
 
+import androidx.annotation.NonNull;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import org.fdroid.fdroid.ProgressListener;
 import org.fdroid.fdroid.R;
 import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.data.MirrorHealth;
 import org.fdroid.fdroid.data.SanitizedFile;
 import org.fdroid.fdroid.installer.ApkCache;
 
@@ -48,6 +46,7 @@ import java.net.NoRouteToHostException;
 import java.net.ProtocolException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.util.concurrent.ThreadFactory;
 
 import javax.net.ssl.SSLHandshakeException;
 import javax.net.ssl.SSLKeyException;
@@ -72,14 +71,25 @@ import javax.net.ssl.SSLProtocolException;
  * will receive the Intents, launch a worker thread, and stop the service as
  * appropriate.
  * <p>
- * All requests are handled on a single worker thread -- they may take as
- * long as necessary (and will not block the application's main loop), but
- * only one request will be processed at a time.
+ * Requests are handled on worker threads -- they may take as long as necessary
+ * (and will not block the application's main loop).  {@link DownloadScheduler}
+ * runs up to {@link #MAX_DOWNLOADS} of them at a time, at most
+ * {@link #MAX_DOWNLOADS_PER_HOST} from the same host.  What the user asked for
+ * ({@link #PRIORITY_USER}) goes before automatic updates
+ * ({@link #PRIORITY_AUTO_UPDATE}), and those go before OBB files
+ * ({@link #PRIORITY_OBB}).  Small files go before big ones of the same priority.
+ * <p>
+ * How long each mirror took is recorded in {@link MirrorHealth}.  When a mirror cannot
+ * be reached, or does not have the file, {@link Downloader#ACTION_CONNECTION_FAILED}
+ * is sent, so that the sender can queue the next mirror from its
+ * {@link MirrorHealth.Failover}.
  * <p>
  * The full URL for the file to download is also used as the unique ID to
  * represent the download itself throughout F-Droid.  This follows the model
  * of {@link Intent#setData(Uri)}, where the core data of an {@code Intent} is
- * a {@code Uri}.  For places that need an {@code int} ID,
+ * a {@code Uri}.  When the file comes from a mirror, it is still the URL of the
+ * file on the repo itself, see {@link Downloader#EXTRA_CANONICAL_URL}.  For places
+ * that need an {@code int} ID,
  * {@link String#hashCode()} should be used to get a reproducible, unique {@code int}
  * from any {@code urlString}.  The full URL is guaranteed to be unique since
  * it points to a file on a filesystem.  This is more important with media files
@@ -94,22 +104,71 @@ public class DownloaderService extends Service {
     private static final String ACTION_QUEUE = "org.fdroid.fdroid.net.DownloaderService.action.QUEUE";
     private static final String ACTION_CANCEL = "org.fdroid.fdroid.net.DownloaderService.action.CANCEL";
 
-    private volatile Looper serviceLooper;
-    private static volatile ServiceHandler serviceHandler;
-    private static volatile Downloader downloader;
+    private static final String EXTRA_PRIORITY = "org.fdroid.fdroid.net.DownloaderService.extra.PRIORITY";
+    private static final String EXTRA_SIZE = "org.fdroid.fdroid.net.DownloaderService.extra.SIZE";
+    private static final String EXTRA_TIMEOUT = "org.fdroid.fdroid.net.DownloaderService.extra.TIMEOUT";
+
+    public static final int PRIORITY_USER = 0;
+    public static final int PRIORITY_AUTO_UPDATE = 1;
+    public static final int PRIORITY_OBB = 2;
+
+    static final int MAX_DOWNLOADS = 3;
+    static final int MAX_DOWNLOADS_PER_HOST = 2;
+
+    private static volatile DownloadScheduler scheduler;
     private LocalBroadcastManager localBroadcastManager;
-    private static volatile int timeout;
 
-    private final class ServiceHandler extends Handler {
-        ServiceHandler(Looper looper) {
-            super(looper);
+    /**
+     * The most recent {@code startId}, guarded by {@code this}.
+     */
+    private int lastStartId;
+
+    /**
+     * The download of a single {@link Intent} sent by
+     * {@link #queue(Context, String, long, String, int, long, int)}.
+     */
+    private final class DownloadTask extends DownloadScheduler.Task {
+        private final Intent intent;
+        private volatile boolean cancelled;
+        private volatile Downloader downloader;
+
+        DownloadTask(Intent intent) {
+            super(getCanonicalUrl(intent), getHost(intent.getData()),
+                    intent.getIntExtra(EXTRA_PRIORITY, PRIORITY_USER), intent.getLongExtra(EXTRA_SIZE, 0));
+            this.intent = intent;
+        }
+
+        @Override
+        public void run() {
+            Utils.debugLog(TAG, "Handling download of " + key);
+            handleIntent(intent, this);
+        }
+
+        @Override
+        void onRemoved() {
+            Utils.debugLog(TAG, "Removed download of " + key + " from the queue, sending interrupted event.");
+            sendBroadcast(intent.getData(), Downloader.ACTION_INTERRUPTED, null, null,
+                    intent.getLongExtra(Downloader.EXTRA_REPO_ID, 0), key);
         }
 
         @Override
-        public void handleMessage(Message msg) {
-            Utils.debugLog(TAG, "Handling download message with ID of " + msg.what);
-            handleIntent((Intent) msg.obj);
-            stopSelf(msg.arg1);
+        void cancel() {
+            cancelled = true;
+            Downloader downloader = this.downloader;
+            if (downloader != null) {
+                downloader.cancelDownload();
+            }
+        }
+
+        /**
+         * Makes {@code downloader} the one {@link #cancel()} stops, and stops it right
+         * away if the task was already cancelled before it got here.
+         */
+        void setDownloader(Downloader downloader) {
+            this.downloader = downloader;
+            if (cancelled) {
+                downloader.cancelDownload();
+            }
         }
     }
 
@@ -118,12 +177,37 @@ public class DownloaderService extends Service {
         super.onCreate();
         Utils.debugLog(TAG, "Creating downloader service.");
 
-        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
-
-        serviceLooper = thread.getLooper();
-        serviceHandler = new ServiceHandler(serviceLooper);
         localBroadcastManager = LocalBroadcastManager.getInstance(this);
+        scheduler = new DownloadScheduler(MAX_DOWNLOADS, MAX_DOWNLOADS_PER_HOST, new ThreadFactory() {
+            private int count;
+
+            @Override
+            public Thread newThread(@NonNull final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, TAG + "-" + ++count);
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                stopIfIdle();
+            }
+        });
+    }
+
+    /**
+     * Like {@link android.app.IntentService}, this only stops once all the work is done,
+     * but with downloads running in parallel, the last one to finish may not be the one
+     * that was started last.
+     */
+    private synchronized void stopIfIdle() {
+        if (scheduler.isIdle()) {
+            stopSelf(lastStartId);
+        }
     }
 
     @Override
@@ -140,29 +224,21 @@ public class DownloaderService extends Service {
             return START_NOT_STICKY;
         }
 
+        synchronized (this) {
+            lastStartId = startId;
+        }
         if (ACTION_CANCEL.equals(intent.getAction())) {
             Utils.debugLog(TAG, "Cancelling download of " + uriString);
-            int whatToRemove = uriString.hashCode();
-            if (serviceHandler.hasMessages(whatToRemove)) {
-                Utils.debugLog(TAG, "Removing download with ID of " + whatToRemove
-                        + " from service handler, then sending interrupted event.");
-                serviceHandler.removeMessages(whatToRemove);
-                sendBroadcast(intent.getData(), Downloader.ACTION_INTERRUPTED);
-            } else if (isActive(uriString)) {
-                downloader.cancelDownload();
-            } else {
-                Utils.debugLog(TAG, "ACTION_CANCEL called on something not queued or running"
-                        + " (expected to find message with ID of " + whatToRemove + " in queue).");
+            if (!scheduler.cancel(uriString)) {
+                Utils.debugLog(TAG, "ACTION_CANCEL called on something not queued or running: " + uriString);
             }
+            stopIfIdle();
         } else if (ACTION_QUEUE.equals(intent.getAction())) {
-            Message msg = serviceHandler.obtainMessage();
-            msg.arg1 = startId;
-            msg.obj = intent;
-            msg.what = uriString.hashCode();
-            serviceHandler.sendMessage(msg);
+            scheduler.queue(new DownloadTask(intent));
             Utils.debugLog(TAG, "Queued download of " + uriString);
         } else {
             Utils.debugLog(TAG, "Received Intent with unknown action: " + intent);
+            stopIfIdle();
         }
 
         return START_REDELIVER_INTENT; // if killed before completion, retry Intent
@@ -170,8 +246,8 @@ public class DownloaderService extends Service {
 
     @Override
     public void onDestroy() {
-        Utils.debugLog(TAG, "Destroying downloader service. Will move to background and stop our Looper.");
-        serviceLooper.quit(); //NOPMD - this is copied from IntentService, no super call needed
+        Utils.debugLog(TAG, "Destroying downloader service, cancelling any downloads left.");
+        scheduler.shutdown(); //NOPMD - no super call needed
     }
 
     /**
@@ -183,47 +259,67 @@ public class DownloaderService extends Service {
     }
 
     /**
-     * This method is invoked on the worker thread with a request to process.
-     * Only one Intent is processed at a time, but the processing happens on a
-     * worker thread that runs independently from other application logic.
-     * So, if this code takes a long time, it will hold up other requests to
-     * the same DownloaderService, but it will not hold up anything else.
+     * This method is invoked on a worker thread with a request to process.
+     * A few Intents are processed at a time, each on its own worker thread that
+     * runs independently from other application logic.  So, if this code takes
+     * a long time, it will hold up the requests queued after it, once all worker
+     * threads are busy, but it will not hold up anything else.
      * When all requests have been handled, the DownloaderService stops itself,
      * so you should not ever call {@link #stopSelf}.
      * <p/>
      * Downloads are put into subdirectories based on hostname/port of each repo
      * to prevent files with the same names from conflicting.  Each repo enforces
-     * unique APK file names on the server side.
+     * unique APK file names on the server side.  This goes by the URL on the repo
+     * itself, so that a download ends up in the same place whichever mirror it
+     * came from.
      *
      * @param intent The {@link Intent} passed via {@link
      *               android.content.Context#startService(Intent)}.
      * @see org.fdroid.fdroid.IndexV1Updater#update()
      */
-    private void handleIntent(Intent intent) {
+    private void handleIntent(Intent intent, DownloadTask task) {
         final Uri uri = intent.getData();
-        final SanitizedFile localFile = ApkCache.getApkDownloadPath(this, uri);
+        final String originalUrlString = getCanonicalUrl(intent);
+        final SanitizedFile localFile = ApkCache.getApkDownloadPath(this, Uri.parse(originalUrlString));
         long repoId = intent.getLongExtra(Downloader.EXTRA_REPO_ID, 0);
-        String originalUrlString = intent.getStringExtra(Downloader.EXTRA_CANONICAL_URL);
         sendBroadcast(uri, Downloader.ACTION_STARTED, localFile, repoId, originalUrlString);
 
+        Downloader downloader = null;
         try {
-            downloader = DownloaderFactory.create(this, uri, localFile);
+            downloader = DownloaderFactory.create(this, uri, localFile, repoId,
+                    intent.getLongExtra(EXTRA_SIZE, 0));
+            if (downloader instanceof SegmentedDownloader) {
+                ((SegmentedDownloader) downloader).setScheduler(scheduler);
+            }
+            task.setDownloader(downloader);
             downloader.setListener(new ProgressListener() {
                 @Override
                 public void onProgress(String urlString, long bytesRead, long totalBytes) {
                     Intent intent = new Intent(Downloader.ACTION_PROGRESS);
-                    intent.setData(uri);
+                    intent.setData(Uri.parse(originalUrlString));
                     intent.putExtra(Downloader.EXTRA_BYTES_READ, bytesRead);
                     intent.putExtra(Downloader.EXTRA_TOTAL_BYTES, totalBytes);
                     localBroadcastManager.sendBroadcast(intent);
                 }
             });
-            downloader.setTimeout(timeout);
+            int timeout = intent.getIntExtra(EXTRA_TIMEOUT, 0);
+            if (timeout > 0) {
+                downloader.setTimeout(timeout);
+            }
             downloader.download();
-            if (downloader.isNotFound()) {
+            if (downloader.isNotFound() && !originalUrlString.equals(uri.toString())) {
+                // the mirror is missing the file, maybe it is not up to date yet
+                MirrorHealth.onFailure(this, repoId, uri.toString());
+                sendBroadcast(uri, Downloader.ACTION_CONNECTION_FAILED, localFile, repoId, originalUrlString);
+            } else if (downloader.isNotFound()) {
                 sendBroadcast(uri, Downloader.ACTION_INTERRUPTED, localFile, getString(R.string.download_404),
                         repoId, originalUrlString);
             } else {
+                if (!(downloader instanceof SegmentedDownloader)) {
+                    // a SegmentedDownloader records each of its sources itself
+                    MirrorHealth.onSuccess(this, repoId, uri.toString(),
+                            downloader.getConnectMillis(), downloader.getBytesPerSecond());
+                }
                 sendBroadcast(uri, Downloader.ACTION_COMPLETE, localFile, repoId, originalUrlString);
             }
         } catch (InterruptedException e) {
@@ -233,6 +329,9 @@ public class DownloaderService extends Service {
                 | ProtocolException | UnknownHostException e) {
             // if the above list of exceptions changes, also change it in IndexV1Updater.update()
             Log.e(TAG, e.getLocalizedMessage());
+            if (!(downloader instanceof SegmentedDownloader)) {
+                MirrorHealth.onFailure(this, repoId, uri.toString());
+            }
             sendBroadcast(uri, Downloader.ACTION_CONNECTION_FAILED, localFile, repoId, originalUrlString);
         } catch (IOException e) {
             e.printStackTrace();
@@ -243,21 +342,12 @@ public class DownloaderService extends Service {
                 downloader.close();
             }
         }
-        downloader = null;
-    }
-
-    private void sendBroadcast(Uri uri, String action) {
-        sendBroadcast(uri, action, null, null);
     }
 
     private void sendBroadcast(Uri uri, String action, File file, long repoId, String originalUrlString) {
         sendBroadcast(uri, action, file, null, repoId, originalUrlString);
     }
 
-    private void sendBroadcast(Uri uri, String action, File file, String errorMessage) {
-        sendBroadcast(uri, action, file, errorMessage, 0, null);
-    }
-
     private void sendBroadcast(Uri uri, String action, File file, String errorMessage, long repoId,
                                String originalUrlString) {
         Intent intent = new Intent(action);
@@ -287,6 +377,31 @@ public class DownloaderService extends Service {
      * @see #cancel(Context, String)
      */
     public static void queue(Context context, String mirrorUrlString, long repoId, String urlString) {
+        queue(context, mirrorUrlString, repoId, urlString, PRIORITY_USER, 0);
+    }
+
+    /**
+     * Add a URL to the download queue, to be downloaded in the order given by
+     * {@code priority} and {@code size}.
+     *
+     * @param priority {@link #PRIORITY_USER}, {@link #PRIORITY_AUTO_UPDATE} or {@link #PRIORITY_OBB}
+     * @param size     the expected size in bytes, or {@code 0} if it is not known
+     * @see #queue(Context, String, long, String)
+     */
+    public static void queue(Context context, String mirrorUrlString, long repoId, String urlString,
+                             int priority, long size) {
+        queue(context, mirrorUrlString, repoId, urlString, priority, size, 0);
+    }
+
+    /**
+     * Add a URL to the download queue, with its own connect timeout, as given by
+     * {@link MirrorHealth.Failover#getTimeout()}.
+     *
+     * @param timeout the connect timeout in milliseconds, or {@code 0} for the default
+     * @see #queue(Context, String, long, String, int, long)
+     */
+    public static void queue(Context context, String mirrorUrlString, long repoId, String urlString,
+                             int priority, long size, int timeout) {
         if (TextUtils.isEmpty(mirrorUrlString)) {
             return;
         }
@@ -296,6 +411,9 @@ public class DownloaderService extends Service {
         intent.setData(Uri.parse(mirrorUrlString));
         intent.putExtra(Downloader.EXTRA_REPO_ID, repoId);
         intent.putExtra(Downloader.EXTRA_CANONICAL_URL, urlString);
+        intent.putExtra(EXTRA_PRIORITY, priority);
+        intent.putExtra(EXTRA_SIZE, size);
+        intent.putExtra(EXTRA_TIMEOUT, timeout);
         context.startService(intent);
     }
 
@@ -328,21 +446,23 @@ public class DownloaderService extends Service {
         if (TextUtils.isEmpty(urlString)) { //NOPMD - suggests unreadable format
             return false;
         }
-        if (serviceHandler == null) {
+        DownloadScheduler scheduler = DownloaderService.scheduler;
+        if (scheduler == null) {
             return false; // this service is not even running
         }
-        return serviceHandler.hasMessages(urlString.hashCode()) || isActive(urlString);
+        return scheduler.contains(urlString);
     }
 
-    /**
-     * Check if a URL is actively being downloaded.
-     */
-    private static boolean isActive(String urlString) {
-        return downloader != null && TextUtils.equals(urlString, downloader.urlString);
+    static String getHost(Uri uri) {
+        return uri.getHost() + ":" + uri.getPort();
     }
 
-    public static void setTimeout(int ms) {
-        timeout = ms;
+    /**
+     * @return the URL on the repo itself, which the download goes by, even when it comes from a mirror
+     */
+    private static String getCanonicalUrl(Intent intent) {
+        String urlString = intent.getStringExtra(Downloader.EXTRA_CANONICAL_URL);
+        return TextUtils.isEmpty(urlString) ? intent.getDataString() : urlString;
     }
 
     /**
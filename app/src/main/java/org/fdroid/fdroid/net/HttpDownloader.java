@@ -27,6 +27,8 @@ import android.os.Build;
 import android.text.TextUtils;
 import android.util.Base64;
 
+import androidx.annotation.NonNull;
+
 import org.fdroid.fdroid.BuildConfig;
 import org.fdroid.fdroid.FDroidApp;
 import org.fdroid.fdroid.Utils;
@@ -34,12 +36,16 @@ import org.fdroid.fdroid.Utils;
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
 import info.guardianproject.netcipher.NetCipher;
 
 /**
@@ -54,12 +60,30 @@ public class HttpDownloader extends Downloader {
 
     static final String HEADER_FIELD_ETAG = "ETag";
 
+    /**
+     * Error pages longer than this are not worth reading just to keep the connection.
+     */
+    private static final int MAX_ERROR_PAGE_SIZE = 64 * 1024;
+
     private final String username;
     private final String password;
     private final URL sourceUrl;
+    private static SSLSocketFactory sslSocketFactory;
+
     private HttpURLConnection connection;
     private boolean newFileAvailableOnServer;
 
+    /**
+     * Whether the body of {@link #connection} was read to the end, only then can
+     * {@link #close()} leave it in the pool of idle connections.
+     */
+    private volatile boolean bodyRead;
+
+    /**
+     * The size the {@code HEAD} or {@code GET} request reported, or {@code -1} if there was none.
+     */
+    private int contentLength = -1;
+
     /**
      * String to append to all HTTP downloads, created in {@link FDroidApp#onCreate()}
      */
@@ -91,64 +115,182 @@ public class HttpDownloader extends Downloader {
     @Override
     protected InputStream getDownloadersInputStream() throws IOException {
         setupConnection(false);
-        return new BufferedInputStream(connection.getInputStream());
+        return new BufferedInputStream(new BodyInputStream(connection.getInputStream()));
     }
 
     /**
      * Get a remote file, checking the HTTP response code and the {@code etag}.
      * In order to prevent the {@code etag} from being used as a form of tracking
      * cookie, this code never sends the {@code etag} to the server.  Instead, it
-     * uses a {@code HEAD} request to get the {@code etag} from the server, then
-     * only issues a {@code GET} if the {@code etag} has changed.
+     * issues a {@code GET} and looks at the {@code etag} in the response headers,
+     * and closes the connection without reading the body if it has not changed.
+     * <p>
+     * Only when there is a partial download to resume, a {@code HEAD} request is
+     * sent first, to find out whether the rest of it can be requested.
      *
      * @see <a href="http://lucb1e.com/rp/cookielesscookies">Cookieless cookies</a>
      */
     @Override
     public void download() throws IOException, InterruptedException {
-        // get the file size from the server
+        if (outputFile.length() == 0) {
+            if (!requestGet()) {
+                return;
+            }
+            Utils.debugLog(TAG, "downloading " + urlString);
+            downloadFromStream(8192, false);
+            cacheTag = connection.getHeaderField(HEADER_FIELD_ETAG);
+            return;
+        }
+
+        if (!requestHead()) {
+            return;
+        }
+
+        boolean resumable = false;
+        long fileLength = outputFile.length();
+        if (fileLength > contentLength) {
+            outputFile.delete();
+        } else if (fileLength == contentLength && outputFile.isFile()) {
+            return; // already have it!
+        } else if (fileLength > 0) {
+            resumable = true;
+        }
+        setupConnection(resumable);
+        Utils.debugLog(TAG, "downloading " + urlString + " (is resumable: " + resumable + ")");
+        downloadFromStream(8192, resumable);
+        cacheTag = connection.getHeaderField(HEADER_FIELD_ETAG);
+    }
+
+    @Override
+    protected boolean connectForStream() throws IOException {
+        if (!requestGet()) {
+            return false;
+        }
+        Utils.debugLog(TAG, "streaming " + urlString);
+        cacheTag = connection.getHeaderField(HEADER_FIELD_ETAG);
+        return true;
+    }
+
+    /**
+     * Gets the file size and {@code etag} from the server.
+     *
+     * @return whether the file should be downloaded, which is not the case if it
+     * was not found, or if the {@code etag} matches the {@link #cacheTag}
+     */
+    private boolean requestHead() throws IOException {
         HttpURLConnection tmpConn = getConnection();
         tmpConn.setRequestMethod("HEAD");
+        long start = System.currentTimeMillis();
+        int statusCode = tmpConn.getResponseCode();
+        connectMillis = System.currentTimeMillis() - start;
         String etag = tmpConn.getHeaderField(HEADER_FIELD_ETAG);
 
-        int contentLength = -1;
-        int statusCode = tmpConn.getResponseCode();
-        tmpConn.disconnect();
+        contentLength = -1;
         newFileAvailableOnServer = false;
         switch (statusCode) {
             case 200:
                 contentLength = tmpConn.getContentLength();
                 if (!TextUtils.isEmpty(etag) && etag.equals(cacheTag)) {
                     Utils.debugLog(TAG, urlString + " is cached, not downloading");
-                    return;
+                    return false;
                 }
                 newFileAvailableOnServer = true;
                 break;
             case 404:
                 notFound = true;
-                return;
+                return false;
             default:
                 Utils.debugLog(TAG, "HEAD check of " + urlString + " returned " + statusCode + ": "
                         + tmpConn.getResponseMessage());
         }
+        return true;
+    }
 
-        boolean resumable = false;
-        long fileLength = outputFile.length();
-        if (fileLength > contentLength) {
-            outputFile.delete();
-        } else if (fileLength == contentLength && outputFile.isFile()) {
-            return; // already have it!
-        } else if (fileLength > 0) {
-            resumable = true;
+    /**
+     * Sends the {@code GET} request and checks the response headers, like
+     * {@link #requestHead()} does.  If there is nothing to download, the connection
+     * is closed right away, before the body is read.
+     *
+     * @return whether the body of {@link #connection} should be read
+     */
+    private boolean requestGet() throws IOException {
+        setupConnection(false);
+        long start = System.currentTimeMillis();
+        int statusCode = connection.getResponseCode();
+        connectMillis = System.currentTimeMillis() - start;
+        String etag = connection.getHeaderField(HEADER_FIELD_ETAG);
+
+        contentLength = -1;
+        newFileAvailableOnServer = false;
+        switch (statusCode) {
+            case 200:
+                contentLength = connection.getContentLength();
+                if (!TextUtils.isEmpty(etag) && etag.equals(cacheTag)) {
+                    Utils.debugLog(TAG, urlString + " is cached, not downloading");
+                    abortConnection();
+                    return false;
+                }
+                newFileAvailableOnServer = true;
+                break;
+            case 404:
+                notFound = true;
+                drainErrorStream(connection);
+                connection = null;
+                return false;
+            default:
+                Utils.debugLog(TAG, "GET of " + urlString + " returned " + statusCode + ": "
+                        + connection.getResponseMessage());
+        }
+        return true;
+    }
+
+    /**
+     * Closes the connection without reading the body, which would take longer
+     * than connecting again.
+     */
+    private void abortConnection() {
+        connection.disconnect();
+        connection = null;
+    }
+
+    /**
+     * Reads the error page to the end, so that the connection can be reused.  It is
+     * usually short, so that is faster than connecting again, but if it is not, or
+     * reading it fails, the connection is closed instead.
+     */
+    static void drainErrorStream(HttpURLConnection connection) {
+        InputStream errorStream = connection.getErrorStream();
+        if (errorStream == null) {
+            return;
+        }
+        try {
+            byte[] buffer = new byte[4096];
+            int total = 0;
+            int count;
+            while ((count = errorStream.read(buffer)) != -1) {
+                total += count;
+                if (total > MAX_ERROR_PAGE_SIZE) {
+                    connection.disconnect();
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            connection.disconnect();
+        } finally {
+            Utils.closeQuietly(errorStream);
         }
-        setupConnection(resumable);
-        Utils.debugLog(TAG, "downloading " + urlString + " (is resumable: " + resumable + ")");
-        downloadFromStream(8192, resumable);
-        cacheTag = connection.getHeaderField(HEADER_FIELD_ETAG);
     }
 
-    private HttpURLConnection getConnection() throws IOException {
+    /**
+     * A new connection to {@link #sourceUrl}, with all the headers F-Droid sends, for
+     * callers which make their own requests, like {@link SegmentedDownloader}.
+     */
+    HttpURLConnection getConnection() throws IOException {
         HttpURLConnection connection;
         connection = NetCipher.getHttpURLConnection(sourceUrl);
+        if (connection instanceof HttpsURLConnection) {
+            shareSslSocketFactory((HttpsURLConnection) connection);
+        }
 
         connection.setRequestProperty("User-Agent", "F-Droid Classic " + BuildConfig.VERSION_NAME);
         connection.setConnectTimeout(getTimeout());
@@ -162,11 +304,28 @@ public class HttpDownloader extends Downloader {
         return connection;
     }
 
+    /**
+     * NetCipher gives each connection a new TLS-only {@link SSLSocketFactory}.  Idle
+     * connections in the pool of {@link HttpURLConnection} are only reused for one with
+     * the same factory, and TLS sessions are cached per factory, so the first one is used
+     * for all connections.  That way, index, APK, icon and screenshot downloads from the
+     * same host share their connections and skip the full TLS handshake.  The proxy is
+     * still set up per connection, so switching to Tor does not reuse direct connections.
+     */
+    private static synchronized void shareSslSocketFactory(HttpsURLConnection connection) {
+        if (sslSocketFactory == null) {
+            sslSocketFactory = connection.getSSLSocketFactory();
+        } else {
+            connection.setSSLSocketFactory(sslSocketFactory);
+        }
+    }
+
     private void setupConnection(boolean resumable) throws IOException {
         if (connection != null) {
             return;
         }
         connection = getConnection();
+        bodyRead = false;
 
         if (resumable) {
             // partial file exists, resume the download
@@ -197,10 +356,44 @@ public class HttpDownloader extends Downloader {
         return newFileAvailableOnServer;
     }
 
+    /**
+     * Once the body was read to the end, closing the stream already handed the
+     * connection back to the pool of idle connections, and
+     * {@link HttpURLConnection#disconnect()} would close it.  Otherwise, e.g. when
+     * the download was cancelled, or the server answered with an error, the rest of
+     * the response is still waiting on it, so it cannot be reused and is closed.
+     */
     @Override
     public void close() {
-        if (connection != null) {
+        if (connection != null && !bodyRead) {
             connection.disconnect();
         }
     }
+
+    /**
+     * Sets {@link #bodyRead} once the end of the body was reached.
+     */
+    private class BodyInputStream extends FilterInputStream {
+        BodyInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) {
+                bodyRead = true;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(@NonNull byte[] buffer, int byteOffset, int byteCount) throws IOException {
+            int count = super.read(buffer, byteOffset, byteCount);
+            if (count == -1) {
+                bodyRead = true;
+            }
+            return count;
+        }
+    }
 }
@@ -28,7 +28,7 @@ public class ImageLoaderForUIL implements com.nostra13.universalimageloader.core
         switch (Scheme.ofUri(imageUri)) {
             case HTTP:
             case HTTPS:
-                return DownloaderFactory.create(context, imageUri).getInputStream();
+                return DownloaderFactory.createForStream(context, imageUri).getInputStream();
         }
         return new BaseImageDownloader(context).getStream(imageUri, extra);
     }
@@ -0,0 +1,88 @@
+package org.fdroid.fdroid.net;
+
+import android.net.Uri;
+
+import org.fdroid.fdroid.Utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * "Downloads" files from {@code file:///} URLs, e.g. a repo on an SD card or in a
+ * local directory.  Instead of an HTTP {@code ETag}, the cache tag is made up of
+ * the size and modification time of the file.
+ */
+public class LocalFileDownloader extends Downloader {
+    private static final String TAG = "LocalFileDownloader";
+
+    private final File sourceFile;
+    private InputStream inputStream;
+    private boolean hasChanged;
+
+    LocalFileDownloader(Uri uri, File destFile) {
+        super(uri, destFile);
+        sourceFile = new File(uri.getPath());
+    }
+
+    @Override
+    protected InputStream getDownloadersInputStream() throws IOException {
+        inputStream = new FileInputStream(sourceFile);
+        return inputStream;
+    }
+
+    @Override
+    protected void close() {
+        Utils.closeQuietly(inputStream);
+    }
+
+    @Override
+    public boolean hasChanged() {
+        return hasChanged;
+    }
+
+    @Override
+    protected long totalDownloadSize() {
+        return sourceFile.length();
+    }
+
+    @Override
+    public void download() throws IOException, InterruptedException {
+        String fileTag = checkForNewFile();
+        if (fileTag == null) {
+            return;
+        }
+        downloadFromStream(8192, false);
+        cacheTag = fileTag;
+    }
+
+    @Override
+    protected boolean connectForStream() {
+        String fileTag = checkForNewFile();
+        if (fileTag == null) {
+            return false;
+        }
+        cacheTag = fileTag;
+        return true;
+    }
+
+    /**
+     * @return the cache tag of the file, or {@code null} if it does not exist or is
+     * unchanged, in which case there is nothing to copy
+     */
+    private String checkForNewFile() {
+        hasChanged = false;
+        if (!sourceFile.isFile()) {
+            notFound = true;
+            return null;
+        }
+        String fileTag = sourceFile.length() + "-" + sourceFile.lastModified();
+        if (fileTag.equals(cacheTag)) {
+            Utils.debugLog(TAG, urlString + " is cached, not copying");
+            return null;
+        }
+        hasChanged = true;
+        return fileTag;
+    }
+}
@@ -0,0 +1,631 @@
+package org.fdroid.fdroid.net;
+
+import android.content.Context;
+import android.net.Uri;
+import android.text.TextUtils;
+
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.data.MirrorHealth;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Downloads a big file in pieces from the repo and some of its mirrors at the same time,
+ * using {@code Range} requests, so that a congested repo does not limit the download to
+ * its own speed.
+ * <p>
+ * The first source is asked for the first {@link #SEGMENT_SIZE} bytes, which also tells
+ * the size of the whole file.  The rest is queued in segments of that size, and each
+ * source fetches the next queued segment as soon as it is done with the one before, so
+ * faster sources end up doing more of the work.  Once nothing is queued, an idle source
+ * takes over the second half of the segment which would take the longest to finish.  A
+ * source which fails, or which sends something else than what was asked for, is dropped,
+ * and its segment is queued again for the others.  If the first source does not support
+ * {@code Range} requests at all, it downloads the whole file, while the others can still
+ * take parts of it over.
+ * <p>
+ * Each source is sent its own {@code ETag} or {@code Last-Modified} back in an
+ * {@code If-Range} header, since mirrors do not have the same {@code ETag}s as the repo.
+ * That only makes sure that a file does not change on one server while it is being
+ * downloaded.  That all servers sent the same file is checked by the caller, against
+ * the hash from the signed index, as for any other download.
+ * <p>
+ * The pieces are written to a separate file, which is only renamed to {@link #outputFile}
+ * once it is complete, so that a partial download never looks like it can be resumed.
+ * Only {@link #download()} is split up, streaming is left to the first source.
+ * <p>
+ * With a {@link #setScheduler(DownloadScheduler) scheduler}, the sources run on its
+ * threads, and each source other than the first only starts if its host has a
+ * connection to spare.  The first one goes to the same host as the download it was
+ * queued as, so it is already counted.
+ * <p>
+ * How each source did is recorded in {@link MirrorHealth} once it is done or dropped,
+ * so the caller must not record the whole download on top of that.
+ *
+ * @see DownloaderFactory#create(android.content.Context, Uri, File, long, long)
+ */
+class SegmentedDownloader extends Downloader {
+    private static final String TAG = "SegmentedDownloader";
+
+    static final int SEGMENT_SIZE = 1024 * 1024;
+
+    /**
+     * Files smaller than this are not worth the extra requests.
+     */
+    static final int MIN_SIZE = 2 * SEGMENT_SIZE;
+
+    /**
+     * The most sources, including the repo itself, used for one download.
+     */
+    static final int MAX_SOURCES = 4;
+
+    /**
+     * A running segment with less than this left is not split up anymore.
+     */
+    private static final int MIN_SPLIT_SIZE = 128 * 1024;
+
+    private final Context context;
+    private final long repoId;
+    private final List<Source> sources = new ArrayList<>();
+    private final File partFile;
+
+    private final Object lock = new Object();
+    private final LinkedList<Segment> queued = new LinkedList<>();
+    private final List<Segment> running = new ArrayList<>();
+    private int activeSources;
+    private long bytesDone;
+    private IOException lastFailure;
+    private volatile boolean stopped;
+    private DownloadScheduler scheduler;
+
+    private long contentLength = -1;
+    private FileChannel channel;
+    private boolean hasChanged;
+
+    /**
+     * @param repoId  the repo the sources are mirrors of, for {@link MirrorHealth}
+     * @param sources the downloaders for the same file on the repo and its mirrors,
+     *                the first one is used most
+     */
+    SegmentedDownloader(Context context, Uri uri, File destFile, long repoId, List<HttpDownloader> sources) {
+        super(uri, destFile);
+        this.context = context;
+        this.repoId = repoId;
+        for (HttpDownloader downloader : sources) {
+            this.sources.add(new Source(downloader));
+        }
+        partFile = new File(destFile.getPath() + ".part");
+    }
+
+    /**
+     * A range of bytes to download, up to but not including {@code end}.  All
+     * fields are guarded by {@link #lock}, since {@code end} is moved back when
+     * another source takes over the rest of it.
+     */
+    private static final class Segment {
+        long position;
+        long end;
+        long startPosition;
+        long startTime;
+
+        Segment(long position, long end) {
+            this.position = position;
+            this.end = end;
+        }
+
+        /**
+         * The milliseconds it would take to finish at the speed so far.
+         */
+        long estimateMillisLeft(long now) {
+            long read = position - startPosition;
+            if (read <= 0) {
+                return Long.MAX_VALUE;
+            }
+            return (end - position) * (now - startTime) / read;
+        }
+    }
+
+    private final class Source implements Runnable {
+        final HttpDownloader downloader;
+        final String host;
+
+        /**
+         * Whether this source took a connection from {@link #scheduler}, which it has to give back.
+         */
+        boolean hasExtraConnection;
+
+        /**
+         * Guarded by {@link #lock}, like {@link #connection}, which is the one being read from.
+         */
+        Thread thread;
+        HttpURLConnection connection;
+
+        /**
+         * What this server sent as {@code ETag} or {@code Last-Modified} the first time,
+         * to be sent back as {@code If-Range}.
+         */
+        String validator;
+
+        /**
+         * The response to the first request, which was already made by {@link #download()}.
+         */
+        HttpURLConnection firstConnection;
+        Segment firstSegment;
+
+        /**
+         * How long this server took to answer the first time, or {@code -1} if it was
+         * not asked anything, and how much it sent since {@link #startTime}.
+         */
+        long connectMillis = -1;
+        long bytesRead;
+        long startTime;
+
+        Source(HttpDownloader downloader) {
+            this.downloader = downloader;
+            this.host = DownloaderService.getHost(Uri.parse(downloader.urlString));
+        }
+
+        @Override
+        public void run() {
+            if (startTime == 0) {
+                startTime = System.currentTimeMillis();
+            }
+            boolean failed = false;
+            try {
+                if (firstConnection != null) {
+                    try {
+                        copy(this, firstConnection, firstSegment, firstSegment.end);
+                    } finally {
+                        finishSegment(firstSegment);
+                    }
+                }
+                Segment segment;
+                while ((segment = takeSegment()) != null) {
+                    try {
+                        fetch(this, segment);
+                    } finally {
+                        finishSegment(segment);
+                    }
+                }
+            } catch (IOException e) {
+                if (!stopped) {
+                    Utils.debugLog(TAG, "Dropping " + downloader.urlString + ": " + e.getLocalizedMessage());
+                    failed = true;
+                }
+                synchronized (lock) {
+                    lastFailure = e;
+                }
+            } finally {
+                recordHealth(failed);
+                synchronized (lock) {
+                    connection = null;
+                    activeSources--;
+                    lock.notifyAll();
+                }
+                if (hasExtraConnection) {
+                    scheduler.releaseConnection(host);
+                }
+            }
+        }
+
+        /**
+         * Tells {@link MirrorHealth} how this source did, unless the download was
+         * cancelled, which says nothing about the server.
+         */
+        void recordHealth(boolean failed) {
+            if (failed) {
+                MirrorHealth.onFailure(context, repoId, downloader.urlString);
+            } else if (!stopped && connectMillis >= 0) {
+                long bytesPerSecond = -1;
+                if (bytesRead >= MIN_BYTES_FOR_SPEED) {
+                    bytesPerSecond = bytesRead * 1000 / Math.max(1, System.currentTimeMillis() - startTime);
+                }
+                MirrorHealth.onSuccess(context, repoId, downloader.urlString, connectMillis, bytesPerSecond);
+            }
+        }
+
+        void saveValidator(HttpURLConnection connection) {
+            if (validator != null) {
+                return;
+            }
+            String etag = connection.getHeaderField(HttpDownloader.HEADER_FIELD_ETAG);
+            if (!TextUtils.isEmpty(etag) && !etag.startsWith("W/")) {
+                validator = etag;
+            } else {
+                validator = connection.getHeaderField("Last-Modified");
+            }
+        }
+    }
+
+    /**
+     * Makes the sources run on the threads of {@code scheduler}, and stick to its limit
+     * of connections per host.
+     */
+    void setScheduler(DownloadScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public void setTimeout(int ms) {
+        super.setTimeout(ms);
+        for (Source source : sources) {
+            source.downloader.setTimeout(ms);
+        }
+    }
+
+    @Override
+    public void download() throws IOException, InterruptedException {
+        partFile.delete();
+        RandomAccessFile file = new RandomAccessFile(partFile, "rw");
+        channel = file.getChannel();
+        try {
+            Source first = sources.get(0);
+            try {
+                if (!requestFirstSegment(first)) {
+                    return;
+                }
+            } catch (IOException e) {
+                first.recordHealth(true);
+                throw e;
+            }
+            throwExceptionIfInterrupted();
+            List<Source> started = new ArrayList<>();
+            for (Source source : contentLength > 0 ? sources : sources.subList(0, 1)) {
+                if (source == sources.get(0) || acquireConnection(source)) {
+                    started.add(source);
+                }
+            }
+            synchronized (lock) {
+                activeSources = started.size();
+                for (Source source : started) {
+                    source.thread = newThread(source);
+                    source.thread.start();
+                }
+            }
+            waitForSources();
+        } finally {
+            stopSources();
+            Utils.closeQuietly(file);
+            partFile.delete();
+        }
+    }
+
+    private boolean acquireConnection(Source source) {
+        if (scheduler == null) {
+            return true;
+        }
+        if (!scheduler.acquireConnection(source.host)) {
+            Utils.debugLog(TAG, "Not using " + source.downloader.urlString + ", its host is busy");
+            return false;
+        }
+        source.hasExtraConnection = true;
+        return true;
+    }
+
+    private Thread newThread(Source source) {
+        if (scheduler != null) {
+            return scheduler.newThread(source);
+        }
+        return new Thread(source, TAG + "-" + sources.indexOf(source));
+    }
+
+    /**
+     * Wakes up all sources, and closes the connections they are still reading from,
+     * since a blocking read does not return when its thread is interrupted.  Once the
+     * download is complete, all sources are done already, so this does nothing.
+     */
+    private void stopSources() {
+        List<HttpURLConnection> connections = new ArrayList<>();
+        synchronized (lock) {
+            stopped = true;
+            for (Source source : sources) {
+                if (source.thread != null) {
+                    source.thread.interrupt();
+                }
+                if (source.connection != null) {
+                    connections.add(source.connection);
+                }
+            }
+            lock.notifyAll();
+        }
+        for (HttpURLConnection connection : connections) {
+            connection.disconnect();
+        }
+    }
+
+    @Override
+    public void cancelDownload() {
+        super.cancelDownload();
+        stopSources();
+    }
+
+    /**
+     * Sends the request for the first segment, and leaves reading the response to the
+     * thread of the first {@link Source}.
+     *
+     * @return whether there is anything to download
+     */
+    private boolean requestFirstSegment(Source source) throws IOException {
+        HttpURLConnection connection = source.downloader.getConnection();
+        connection.setReadTimeout(getTimeout());
+        connection.setRequestProperty("Range", "bytes=0-" + (SEGMENT_SIZE - 1));
+        long requestStart = System.currentTimeMillis();
+        int statusCode = connection.getResponseCode();
+        connectMillis = System.currentTimeMillis() - requestStart;
+        source.startTime = requestStart;
+        Segment first;
+        switch (statusCode) {
+            case 206:
+                contentLength = getContentRangeLength(connection, 0);
+                first = new Segment(0, Math.min(SEGMENT_SIZE, contentLength));
+                for (long start = first.end; start < contentLength; start += SEGMENT_SIZE) {
+                    queued.add(new Segment(start, Math.min(start + SEGMENT_SIZE, contentLength)));
+                }
+                break;
+            case 200:
+                Utils.debugLog(TAG, source.downloader.urlString + " does not support ranges");
+                contentLength = connection.getContentLength();
+                first = new Segment(0, contentLength > 0 ? contentLength : Long.MAX_VALUE);
+                break;
+            case 404:
+                notFound = true;
+                HttpDownloader.drainErrorStream(connection);
+                return false;
+            default:
+                connection.disconnect();
+                throw new IOException(source.downloader.urlString + " returned " + statusCode + ": "
+                        + connection.getResponseMessage());
+        }
+        Utils.debugLog(TAG, "downloading " + urlString + " (" + contentLength + " bytes) from "
+                + sources.size() + " sources");
+        cacheTag = connection.getHeaderField(HttpDownloader.HEADER_FIELD_ETAG);
+        source.connectMillis = connectMillis;
+        source.saveValidator(connection);
+        source.firstConnection = connection;
+        source.firstSegment = first;
+        first.startTime = System.currentTimeMillis();
+        synchronized (lock) {
+            source.connection = connection;
+            running.add(first);
+        }
+        return true;
+    }
+
+    private void waitForSources() throws IOException, InterruptedException {
+        while (true) {
+            synchronized (lock) {
+                if (activeSources == 0) {
+                    break;
+                }
+                lock.wait(100);
+            }
+            throwExceptionIfInterrupted();
+            reportProgress(bytesDone, contentLength);
+        }
+        throwExceptionIfInterrupted(); // the sources may have stopped because of it
+        synchronized (lock) {
+            if (!queued.isEmpty() || !running.isEmpty()) {
+                throw lastFailure != null ? lastFailure : new IOException("Ran out of mirrors");
+            }
+            if (contentLength > 0 && bytesDone != contentLength) {
+                throw new IOException("Downloaded " + bytesDone + " of " + contentLength + " bytes");
+            }
+        }
+        reportProgress(bytesDone, contentLength);
+        throwExceptionIfInterrupted();
+        outputFile.delete();
+        if (!partFile.renameTo(outputFile)) {
+            throw new IOException("Could not move " + partFile + " to " + outputFile);
+        }
+        hasChanged = true;
+    }
+
+    /**
+     * @return the next segment to download, or {@code null} once there is nothing left
+     */
+    private Segment takeSegment() {
+        synchronized (lock) {
+            while (!stopped) {
+                Segment segment = queued.poll();
+                if (segment == null) {
+                    segment = splitSlowest();
+                }
+                if (segment != null) {
+                    segment.startPosition = segment.position;
+                    segment.startTime = System.currentTimeMillis();
+                    running.add(segment);
+                    return segment;
+                }
+                if (running.isEmpty()) {
+                    return null;
+                }
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    return null;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Takes the second half of the running segment which would take the longest to
+     * finish.  Its source stops once it gets to where the new segment starts.
+     */
+    private Segment splitSlowest() {
+        long now = System.currentTimeMillis();
+        Segment slowest = null;
+        long slowestMillisLeft = 0;
+        for (Segment segment : running) {
+            if (segment.end == Long.MAX_VALUE || segment.end - segment.position < 2 * MIN_SPLIT_SIZE) {
+                continue;
+            }
+            long millisLeft = segment.estimateMillisLeft(now);
+            if (slowest == null || millisLeft > slowestMillisLeft) {
+                slowest = segment;
+                slowestMillisLeft = millisLeft;
+            }
+        }
+        if (slowest == null) {
+            return null;
+        }
+        long middle = slowest.position + (slowest.end - slowest.position) / 2;
+        Segment segment = new Segment(middle, slowest.end);
+        slowest.end = middle;
+        return segment;
+    }
+
+    /**
+     * Queues what is left of {@code segment} again, if its source did not finish it.
+     */
+    private void finishSegment(Segment segment) {
+        synchronized (lock) {
+            running.remove(segment);
+            if (segment.position < segment.end) {
+                queued.addFirst(segment);
+            }
+            lock.notifyAll();
+        }
+    }
+
+    private void fetch(Source source, Segment segment) throws IOException {
+        long start;
+        long end;
+        synchronized (lock) {
+            start = segment.position;
+            end = segment.end;
+        }
+        HttpURLConnection connection = source.downloader.getConnection();
+        synchronized (lock) {
+            if (stopped) {
+                return;
+            }
+            source.connection = connection;
+        }
+        connection.setReadTimeout(getTimeout());
+        connection.setRequestProperty("Range", "bytes=" + start + "-" + (end - 1));
+        if (source.validator != null) {
+            connection.setRequestProperty("If-Range", source.validator);
+        }
+        long requestStart = System.currentTimeMillis();
+        int statusCode = connection.getResponseCode();
+        if (source.connectMillis < 0) {
+            source.connectMillis = System.currentTimeMillis() - requestStart;
+        }
+        if (statusCode != 206) {
+            connection.disconnect();
+            throw new IOException("returned " + statusCode + " instead of a range");
+        }
+        if (getContentRangeLength(connection, start) != contentLength) {
+            connection.disconnect();
+            throw new IOException("has a file of another size");
+        }
+        source.saveValidator(connection);
+        copy(source, connection, segment, end);
+    }
+
+    /**
+     * Writes the response to {@code segment}, until it gets to its end, which may be
+     * before {@code requestedEnd} if another source took over the rest of it.  The
+     * connection is only reused if the whole response was read.
+     */
+    private void copy(Source source, HttpURLConnection connection, Segment segment, long requestedEnd)
+            throws IOException {
+        InputStream input = connection.getInputStream();
+        boolean readAll = false;
+        try {
+            byte[] buffer = new byte[8192];
+            while (!stopped) {
+                int count = input.read(buffer);
+                long position;
+                int length;
+                boolean done;
+                synchronized (lock) {
+                    if (count == -1) {
+                        if (segment.end != Long.MAX_VALUE) {
+                            throw new IOException("ended " + (segment.end - segment.position) + " bytes early");
+                        }
+                        segment.end = segment.position;
+                        readAll = true;
+                        return;
+                    }
+                    position = segment.position;
+                    length = (int) Math.min(count, segment.end - position);
+                    segment.position += length;
+                    bytesDone += length;
+                    done = segment.position >= segment.end;
+                    readAll = done && segment.end == requestedEnd && length == count;
+                }
+                source.bytesRead += length;
+                ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, length);
+                while (byteBuffer.hasRemaining()) {
+                    position += channel.write(byteBuffer, position);
+                }
+                if (done) {
+                    return;
+                }
+            }
+        } finally {
+            if (readAll) {
+                input.close();
+            } else {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Checks that a {@code Content-Range} like {@code bytes 0-1023/4096} starts at
+     * {@code start}, and returns the size of the whole file.
+     */
+    private static long getContentRangeLength(HttpURLConnection connection, long start) throws IOException {
+        String contentRange = connection.getHeaderField("Content-Range");
+        if (contentRange != null && contentRange.startsWith("bytes " + start + "-")) {
+            try {
+                return Long.parseLong(contentRange.substring(contentRange.indexOf('/') + 1));
+            } catch (NumberFormatException e) {
+                // handled below
+            }
+        }
+        connection.disconnect();
+        throw new IOException("Unexpected Content-Range: " + contentRange);
+    }
+
+    @Override
+    protected InputStream getDownloadersInputStream() throws IOException {
+        return sources.get(0).downloader.getDownloadersInputStream();
+    }
+
+    @Override
+    protected boolean connectForStream() throws IOException {
+        HttpDownloader downloader = sources.get(0).downloader;
+        boolean connected = downloader.connectForStream();
+        notFound = downloader.notFound;
+        cacheTag = downloader.cacheTag;
+        return connected;
+    }
+
+    @Override
+    protected long totalDownloadSize() {
+        return contentLength > 0 ? contentLength : sources.get(0).downloader.totalDownloadSize();
+    }
+
+    @Override
+    public boolean hasChanged() {
+        return hasChanged;
+    }
+
+    @Override
+    protected void close() {
+    }
+}
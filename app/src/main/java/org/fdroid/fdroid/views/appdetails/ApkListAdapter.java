@@ -12,6 +12,7 @@ import android.widget.ArrayAdapter;
 
 import androidx.annotation.NonNull;
 
+import org.fdroid.fdroid.CompatibilityChecker;
 import org.fdroid.fdroid.Preferences;
 import org.fdroid.fdroid.R;
 import org.fdroid.fdroid.Utils;
@@ -161,7 +162,7 @@ class ApkListAdapter extends ArrayAdapter<Apk> {
             holder.incompatibleReasons.setText(
                     context.getResources().getString(
                             R.string.requires_features,
-                            TextUtils.join(", ", apk.incompatibleReasons)));
+                            TextUtils.join(", ", CompatibilityChecker.describeIncompatibleReasons(context, apk))));
             holder.incompatibleReasons.setVisibility(View.VISIBLE);
         } else {
             holder.incompatibleReasons.setVisibility(View.GONE);
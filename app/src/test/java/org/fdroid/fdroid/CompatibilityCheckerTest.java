@@ -0,0 +1,69 @@
+package org.fdroid.fdroid;
+
+import static android.os.Build.VERSION_CODES.LOLLIPOP_MR1;
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.fdroid.fdroid.data.Apk;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {LOLLIPOP_MR1})
+public class CompatibilityCheckerTest {
+
+    @Test
+    public void encodesReasonsAndDescribesThem() {
+        Context context = ApplicationProvider.getApplicationContext();
+        CompatibilityChecker checker = CompatibilityChecker.getInstance(context);
+        assertThat(CompatibilityChecker.getInstance(context)).isSameInstanceAs(checker);
+
+        Apk compatible = createApk(14, null);
+        assertThat(checker.getIncompatibleReasons(compatible)).isNull();
+
+        Apk wrongAbi = createApk(14, new String[]{"mips"});
+        wrongAbi.incompatibleReasons = checker.getIncompatibleReasons(wrongAbi);
+        assertThat(wrongAbi.incompatibleReasons).isEqualTo("8");
+        assertThat(CompatibilityChecker.describeIncompatibleReasons(context, wrongAbi)).containsExactly("mips");
+
+        Apk newerSdk = createApk(LOLLIPOP_MR1 + 1, new String[]{"mips"});
+        newerSdk.incompatibleReasons = checker.getIncompatibleReasons(newerSdk);
+        assertThat(newerSdk.incompatibleReasons).isEqualTo("9");
+        List<String> descriptions = CompatibilityChecker.describeIncompatibleReasons(context, newerSdk);
+        assertThat(descriptions).hasSize(2);
+        assertThat(descriptions.get(0)).contains("6.0");
+        assertThat(descriptions.get(1)).isEqualTo("mips");
+
+        Apk missingFeature = createApk(14, null);
+        missingFeature.features = new String[]{"android.hardware.not.there"};
+        missingFeature.incompatibleReasons = checker.getIncompatibleReasons(missingFeature);
+        assertThat(missingFeature.incompatibleReasons).isEqualTo("4,android.hardware.not.there");
+        assertThat(CompatibilityChecker.describeIncompatibleReasons(context, missingFeature))
+                .containsExactly("android.hardware.not.there");
+
+        Apk sameAsWrongAbi = createApk(14, new String[]{"mips"});
+        sameAsWrongAbi.versionCode = 2;
+        assertThat(checker.getIncompatibleReasons(sameAsWrongAbi)).isSameInstanceAs(wrongAbi.incompatibleReasons);
+
+        Apk storedAsText = createApk(14, null);
+        storedAsText.incompatibleReasons = "Android 9.0 or later,mips";
+        assertThat(CompatibilityChecker.describeIncompatibleReasons(context, storedAsText))
+                .containsExactly("Android 9.0 or later", "mips");
+    }
+
+    private static Apk createApk(int minSdkVersion, String[] nativecode) {
+        Apk apk = new Apk();
+        apk.packageName = "org.example";
+        apk.versionCode = 1;
+        apk.minSdkVersion = minSdkVersion;
+        apk.nativecode = nativecode;
+        return apk;
+    }
+}
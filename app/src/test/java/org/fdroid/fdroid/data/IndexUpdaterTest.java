@@ -2,32 +2,49 @@ package org.fdroid.fdroid.data;
 
 import static android.os.Build.VERSION_CODES.LOLLIPOP_MR1;
 import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
 
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.ContextWrapper;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 
 import androidx.test.core.app.ApplicationProvider;
 
 import org.fdroid.fdroid.IndexUpdater;
 import org.fdroid.fdroid.IndexV1Updater;
 import org.fdroid.fdroid.TestUtils;
+import org.fdroid.fdroid.Utils;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
 
 @RunWith(RobolectricTestRunner.class)
 @Config(sdk = {LOLLIPOP_MR1})
 public class IndexUpdaterTest {
     private static final String FDROID_CERT = "3082035e30820246a00302010202044c49cd00300d06092a864886f70d01010505003071310b300906035504061302554b3110300e06035504081307556e6b6e6f776e3111300f0603550407130857657468657262793110300e060355040a1307556e6b6e6f776e3110300e060355040b1307556e6b6e6f776e311930170603550403131043696172616e2047756c746e69656b73301e170d3130303732333137313032345a170d3337313230383137313032345a3071310b300906035504061302554b3110300e06035504081307556e6b6e6f776e3111300f0603550407130857657468657262793110300e060355040a1307556e6b6e6f776e3110300e060355040b1307556e6b6e6f776e311930170603550403131043696172616e2047756c746e69656b7330820122300d06092a864886f70d01010105000382010f003082010a028201010096d075e47c014e7822c89fd67f795d23203e2a8843f53ba4e6b1bf5f2fd0e225938267cfcae7fbf4fe596346afbaf4070fdb91f66fbcdf2348a3d92430502824f80517b156fab00809bdc8e631bfa9afd42d9045ab5fd6d28d9e140afc1300917b19b7c6c4df4a494cf1f7cb4a63c80d734265d735af9e4f09455f427aa65a53563f87b336ca2c19d244fcbba617ba0b19e56ed34afe0b253ab91e2fdb1271f1b9e3c3232027ed8862a112f0706e234cf236914b939bcf959821ecb2a6c18057e070de3428046d94b175e1d89bd795e535499a091f5bc65a79d539a8d43891ec504058acb28c08393b5718b57600a211e803f4a634e5c57f25b9b8c4422c6fd90203010001300d06092a864886f70d0101050500038201010008e4ef699e9807677ff56753da73efb2390d5ae2c17e4db691d5df7a7b60fc071ae509c5414be7d5da74df2811e83d3668c4a0b1abc84b9fa7d96b4cdf30bba68517ad2a93e233b042972ac0553a4801c9ebe07bf57ebe9a3b3d6d663965260e50f3b8f46db0531761e60340a2bddc3426098397fda54044a17e5244549f9869b460ca5e6e216b6f6a2db0580b480ca2afe6ec6b46eedacfa4aa45038809ece0c5978653d6c85f678e7f5a2156d1bedd8117751e64a4b0dcd140f3040b021821a8d93aed8d01ba36db6c82372211fed714d9a32607038cdfd565bd529ffc637212aaa2c224ef22b603eccefb5bf1e085c191d4b24fe742b17ab3f55d4e6f05ef";
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     protected ContentResolver contentResolver;
     protected ContextWrapper context;
 
@@ -51,10 +68,292 @@ public class IndexUpdaterTest {
         assertThat(AppProvider.Helper.all(context.getContentResolver()).size()).isEqualTo(3120);
     }
 
+    /**
+     * fdroidserver writes {@code apps} before {@code packages}, but nothing requires that.
+     * This index has {@code packages} first, plus a package without any app entry.
+     */
+    @Test
+    public void processIndexWithPackagesBeforeApps() throws IOException, IndexUpdater.UpdateException {
+        File index = TestUtils.copyResourceToTempFile("index-v1_packages-first.jar");
+        Repo repo = createRepo("Packages First", "https://example.com/fdroid/repo", context, null);
+        IndexV1Updater updater = new IndexV1Updater(context, repo);
+        updater.processDownloadedIndex(index, "");
+
+        assertThat(AppProvider.Helper.count(context, AppProvider.getRepoUri(repo))).isEqualTo(2);
+
+        App app = AppProvider.Helper.findSpecificApp(context.getContentResolver(), "org.fdroid.fdroid", repo.getId());
+        assertThat(app.preferredSigner).isEqualTo("9063aaadfff9cfd811a9c72fb5012f28");
+        assertThat(app.isApk).isTrue();
+        assertThat(ApkProvider.Helper.findByPackageName(context, "org.fdroid.fdroid")).hasSize(3);
+        assertThat(ApkProvider.Helper.findByPackageName(context, "An.stop")).isEmpty();
+    }
+
+    /**
+     * Only one app changed in the index, so the other one must be kept as it is stored,
+     * while the changed one is written again, which gives its apks new rowids.
+     */
+    @Test
+    public void processChangedIndexKeepsUnchangedApps() throws IOException, IndexUpdater.UpdateException {
+        Repo repo = createRepo("Unchanged", "https://example.com/fdroid/repo", context, null);
+        new IndexV1Updater(context, repo).processDownloadedIndex(
+                TestUtils.copyResourceToTempFile("index-v1_packages-first.jar"), "");
+        App before = AppProvider.Helper.findSpecificApp(context.getContentResolver(), "org.fdroid.fdroid", repo.getId());
+        Map<String, String> hashesBefore = getContentHashes(repo);
+        Map<String, Long> apkIdsBefore = getApkRowIds(repo);
+
+        repo = RepoProvider.Helper.findById(context, repo.getId());
+        new IndexV1Updater(context, repo).processDownloadedIndex(
+                TestUtils.copyResourceToTempFile("index-v1_app-changed.jar"), "");
+        App after = AppProvider.Helper.findSpecificApp(context.getContentResolver(), "org.fdroid.fdroid", repo.getId());
+        Map<String, String> hashesAfter = getContentHashes(repo);
+        Map<String, Long> apkIdsAfter = getApkRowIds(repo);
+
+        assertThat(AppProvider.Helper.count(context, AppProvider.getRepoUri(repo))).isEqualTo(2);
+        assertThat(after.getId()).isEqualTo(before.getId());
+        assertThat(after.preferredSigner).isEqualTo(before.preferredSigner);
+        assertThat(hashesAfter.get("org.fdroid.fdroid")).isEqualTo(hashesBefore.get("org.fdroid.fdroid"));
+        assertThat(hashesAfter.get("org.torproject.android")).isNotEqualTo(hashesBefore.get("org.torproject.android"));
+
+        App changed = AppProvider.Helper.findSpecificApp(context.getContentResolver(), "org.torproject.android", repo.getId());
+        assertThat(changed.summary).isEqualTo("Tor for Android, with a changed summary");
+
+        assertThat(apkIdsAfter.keySet()).isEqualTo(apkIdsBefore.keySet());
+        List<Apk> apks = ApkProvider.Helper.findByPackageName(context, "org.fdroid.fdroid");
+        assertThat(apks).hasSize(3);
+        for (Apk apk : apks) {
+            assertThat(apk.appId).isEqualTo(after.getId());
+            assertThat(apkIdsAfter.get(apk.apkName)).isEqualTo(apkIdsBefore.get(apk.apkName));
+        }
+        apks = ApkProvider.Helper.findByPackageName(context, "org.torproject.android");
+        assertThat(apks).hasSize(3);
+        for (Apk apk : apks) {
+            assertThat(apk.appId).isEqualTo(changed.getId());
+            assertThat(apkIdsAfter.get(apk.apkName)).isNotEqualTo(apkIdsBefore.get(apk.apkName));
+        }
+    }
+
+    /**
+     * An app added in front of the others must not change the content hash of any of them,
+     * so their rows are kept rather than written again, which would give their apks new rowids.
+     */
+    @Test
+    public void appAddedInFrontKeepsOtherApps() throws IOException, IndexUpdater.UpdateException {
+        Repo repo = createRepo("Added", "https://example.com/fdroid/repo", context, null);
+        new IndexV1Updater(context, repo).processDownloadedIndex(
+                TestUtils.copyResourceToTempFile("index-v1_packages-first.jar"), "");
+        Map<String, String> hashesBefore = getContentHashes(repo);
+        Map<String, Long> apkIdsBefore = getApkRowIds(repo);
+
+        repo = RepoProvider.Helper.findById(context, repo.getId());
+        new IndexV1Updater(context, repo).processDownloadedIndex(
+                TestUtils.copyResourceToTempFile("index-v1_app-added.jar"), "");
+        Map<String, String> hashesAfter = getContentHashes(repo);
+        Map<String, Long> apkIdsAfter = getApkRowIds(repo);
+
+        assertThat(hashesBefore).hasSize(2);
+        assertThat(hashesAfter).hasSize(3);
+        assertThat(hashesAfter).containsAtLeastEntriesIn(hashesBefore);
+        assertThat(apkIdsAfter).hasSize(apkIdsBefore.size() + 1);
+        assertThat(apkIdsAfter).containsAtLeastEntriesIn(apkIdsBefore);
+    }
+
+    /**
+     * A new etag for an index which was already processed only needs the etag to be saved,
+     * whether that is noticed by the digest in the signed jar or by the timestamp in the index.
+     */
+    @Test
+    public void unchangedIndexOnlySavesEtag() throws IOException, IndexUpdater.UpdateException {
+        Repo repo = createRepo("Same Index", "https://example.com/fdroid/repo", context, null);
+        new IndexV1Updater(context, repo).processDownloadedIndex(
+                TestUtils.copyResourceToTempFile("index-v1_packages-first.jar"), "first");
+        repo = RepoProvider.Helper.findById(context, repo.getId());
+        String digest = repo.indexDigest;
+        assertThat(digest).startsWith("SHA-256-Digest: ");
+
+        new IndexV1Updater(context, repo).processDownloadedIndex(
+                TestUtils.copyResourceToTempFile("index-v1_packages-first.jar"), "second");
+        repo = RepoProvider.Helper.findById(context, repo.getId());
+        assertThat(repo.lastetag).isEqualTo("second");
+        assertThat(repo.indexDigest).isEqualTo(digest);
+
+        ContentValues values = new ContentValues(1);
+        values.put(Schema.RepoTable.Cols.INDEX_DIGEST, "SHA-256-Digest: resigned");
+        RepoProvider.Helper.update(context, repo, values);
+        new IndexV1Updater(context, repo).processDownloadedIndex(
+                TestUtils.copyResourceToTempFile("index-v1_packages-first.jar"), "third");
+        repo = RepoProvider.Helper.findById(context, repo.getId());
+        assertThat(repo.lastetag).isEqualTo("third");
+        assertThat(repo.indexDigest).isEqualTo(digest);
+
+        assertThat(AppProvider.Helper.count(context, AppProvider.getRepoUri(repo))).isEqualTo(2);
+        assertThat(ApkProvider.Helper.findByPackageName(context, "org.fdroid.fdroid")).hasSize(3);
+    }
+
+    /**
+     * The manifest is not signed by itself, so one which repeats the digest of the last
+     * index must not be enough to skip the index, or to save anything about it.
+     */
+    @Test
+    public void unsignedJarWithUnchangedDigestIsRejected() throws IOException, IndexUpdater.UpdateException {
+        Repo repo = createRepo("Same Index", "https://example.com/fdroid/repo", context, null);
+        File signed = TestUtils.copyResourceToTempFile("index-v1_packages-first.jar");
+        new IndexV1Updater(context, repo).processDownloadedIndex(signed, "first");
+        repo = RepoProvider.Helper.findById(context, repo.getId());
+
+        File unsigned = folder.newFile();
+        JarFile jarFile = new JarFile(signed);
+        JarOutputStream output = new JarOutputStream(new FileOutputStream(unsigned), jarFile.getManifest());
+        try {
+            JarEntry entry = jarFile.getJarEntry(IndexV1Updater.DATA_FILE_NAME);
+            output.putNextEntry(new JarEntry(entry.getName()));
+            InputStream input = jarFile.getInputStream(entry);
+            try {
+                Utils.copy(input, output);
+            } finally {
+                input.close();
+            }
+        } finally {
+            output.close();
+            jarFile.close();
+        }
+
+        try {
+            new IndexV1Updater(context, repo).processDownloadedIndex(unsigned, "attacker");
+            fail("an unsigned index must not be accepted");
+        } catch (IndexUpdater.SigningException e) {
+            // expected
+        }
+        repo = RepoProvider.Helper.findById(context, repo.getId());
+        assertThat(repo.lastetag).isEqualTo("first");
+    }
+
+    /**
+     * Only the repo being updated goes into the temp tables, so the apps of other repos
+     * must survive the commit, and share the suggested version worked out across all repos.
+     */
+    @Test
+    public void processIndexKeepsOtherRepos() throws IOException, IndexUpdater.UpdateException {
+        Repo first = createRepo("First", "https://example.com/first/repo", context, null);
+        new IndexV1Updater(context, first).processDownloadedIndex(
+                TestUtils.copyResourceToTempFile("index-v1_packages-first.jar"), "");
+        Repo second = createRepo("Second", "https://example.com/second/repo", context, null);
+        new IndexV1Updater(context, second).processDownloadedIndex(
+                TestUtils.copyResourceToTempFile("index-v1_packages-first.jar"), "");
+
+        assertThat(AppProvider.Helper.count(context, AppProvider.getRepoUri(first))).isEqualTo(2);
+        assertThat(AppProvider.Helper.count(context, AppProvider.getRepoUri(second))).isEqualTo(2);
+        assertThat(ApkProvider.Helper.findByPackageName(context, "org.fdroid.fdroid")).hasSize(6);
+
+        App fromFirst = AppProvider.Helper.findSpecificApp(context.getContentResolver(), "org.fdroid.fdroid", first.getId());
+        App fromSecond = AppProvider.Helper.findSpecificApp(context.getContentResolver(), "org.fdroid.fdroid", second.getId());
+        assertThat(fromFirst.suggestedVersionCode).isGreaterThan(0);
+        assertThat(fromSecond.suggestedVersionCode).isEqualTo(fromFirst.suggestedVersionCode);
+    }
+
+    /**
+     * In a batch, the suggested versions are only worked out once all repos are committed.
+     */
+    @Test
+    public void processIndexesInBatch() throws IOException, IndexUpdater.UpdateException {
+        Repo first = createRepo("First", "https://example.com/first/repo", context, null);
+        Repo second = createRepo("Second", "https://example.com/second/repo", context, null);
+
+        TempAppProvider.Helper.beginBatch(context);
+        new IndexV1Updater(context, first).processDownloadedIndex(
+                TestUtils.copyResourceToTempFile("index-v1_packages-first.jar"), "");
+        new IndexV1Updater(context, second).processDownloadedIndex(
+                TestUtils.copyResourceToTempFile("index-v1_packages-first.jar"), "");
+        TempAppProvider.Helper.endBatch(context);
+
+        App fromFirst = AppProvider.Helper.findSpecificApp(context.getContentResolver(), "org.fdroid.fdroid", first.getId());
+        App fromSecond = AppProvider.Helper.findSpecificApp(context.getContentResolver(), "org.fdroid.fdroid", second.getId());
+        assertThat(fromFirst.suggestedVersionCode).isGreaterThan(0);
+        assertThat(fromSecond.suggestedVersionCode).isEqualTo(fromFirst.suggestedVersionCode);
+    }
+
+    /**
+     * Going through {@link IndexV1Updater#update()} parses the index while it is read
+     * from the repo, rather than from a downloaded file.
+     */
+    @Test
+    public void processStreamedIndex() throws IOException, IndexUpdater.UpdateException {
+        File repoDir = folder.newFolder();
+        File index = TestUtils.copyResourceToTempFile("index-v1_packages-first.jar");
+        assertThat(index.renameTo(new File(repoDir, IndexV1Updater.SIGNED_FILE_NAME))).isTrue();
+        Repo repo = createRepo("Streamed", "file://" + repoDir.getAbsolutePath(), context, null);
+
+        assertThat(new IndexV1Updater(context, repo).update()).isTrue();
+
+        assertThat(AppProvider.Helper.count(context, AppProvider.getRepoUri(repo))).isEqualTo(2);
+        assertThat(ApkProvider.Helper.findByPackageName(context, "org.fdroid.fdroid")).hasSize(3);
+        repo = RepoProvider.Helper.findById(context, repo.getId());
+        assertThat(repo.signingCertificate).isNotEmpty();
+    }
+
+    /**
+     * All translations are stored, so a different language only needs the localized fields
+     * to be picked again, which is what happens in the background when the locales change.
+     */
+    @Test
+    public void localizedFieldsFollowLocale() throws IOException, IndexUpdater.UpdateException {
+        Locale defaultLocale = Locale.getDefault();
+        try {
+            Locale.setDefault(Locale.US);
+            Repo repo = createRepo("Localized", "https://example.com/fdroid/repo", context, null);
+            new IndexV1Updater(context, repo).processDownloadedIndex(
+                    TestUtils.copyResourceToTempFile("index-v1_packages-first.jar"), "");
+            App app = AppProvider.Helper.findSpecificApp(context.getContentResolver(), "org.fdroid.fdroid", repo.getId());
+            assertThat(app.summary).isEqualTo("The app store that respects freedom and privacy");
+
+            Locale.setDefault(Locale.GERMANY);
+            app = AppProvider.Helper.findSpecificApp(context.getContentResolver(), "org.fdroid.fdroid", repo.getId());
+            assertThat(app.summary).isEqualTo("The app store that respects freedom and privacy");
+
+            AppProvider.Helper.updateLocalized(context);
+            app = AppProvider.Helper.findSpecificApp(context.getContentResolver(), "org.fdroid.fdroid", repo.getId());
+            assertThat(app.summary).isEqualTo("Der App-Store, der Freiheit und Privatsphäre respektiert");
+        } finally {
+            Locale.setDefault(defaultLocale);
+        }
+    }
+
     /**
      * Creates a real instance of {@code Repo} by loading it from the database,
      * that ensures it includes the primary key from the database.
      */
+    /**
+     * The content hash of each app of {@code repo}, keyed by package name.
+     */
+    private Map<String, String> getContentHashes(Repo repo) {
+        SQLiteDatabase db = DBHelper.getInstance(context).getWritableDatabase();
+        Cursor cursor = db.rawQuery("SELECT pkg." + Schema.PackageTable.Cols.PACKAGE_NAME + ", app." + Schema.AppMetadataTable.Cols.CONTENT_HASH
+                + " FROM " + Schema.AppMetadataTable.NAME + " AS app JOIN " + Schema.PackageTable.NAME + " AS pkg ON (pkg.rowid = app."
+                + Schema.AppMetadataTable.Cols.PACKAGE_ID + ") WHERE app." + Schema.AppMetadataTable.Cols.REPO_ID + " = ?",
+                new String[]{Long.toString(repo.getId())});
+        Map<String, String> hashes = new HashMap<>();
+        while (cursor.moveToNext()) {
+            hashes.put(cursor.getString(0), cursor.getString(1));
+        }
+        cursor.close();
+        return hashes;
+    }
+
+    /**
+     * The rowid of each apk of {@code repo}, keyed by file name.  Apks of apps which are
+     * written again when committing always get new rowids.
+     */
+    private Map<String, Long> getApkRowIds(Repo repo) {
+        SQLiteDatabase db = DBHelper.getInstance(context).getWritableDatabase();
+        Cursor cursor = db.rawQuery("SELECT " + Schema.ApkTable.Cols.NAME + ", rowid FROM " + Schema.ApkTable.NAME
+                + " WHERE " + Schema.ApkTable.Cols.REPO_ID + " = ?", new String[]{Long.toString(repo.getId())});
+        Map<String, Long> ids = new HashMap<>();
+        while (cursor.moveToNext()) {
+            ids.put(cursor.getString(0), cursor.getLong(1));
+        }
+        cursor.close();
+        return ids;
+    }
+
     static Repo createRepo(String name, String uri, Context context, String signingCert) {
         ContentValues values = new ContentValues(3);
         values.put(Schema.RepoTable.Cols.SIGNING_CERT, signingCert);
@@ -0,0 +1,151 @@
+package org.fdroid.fdroid.data;
+
+import static android.os.Build.VERSION_CODES.LOLLIPOP_MR1;
+import static com.google.common.truth.Truth.assertThat;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.fdroid.fdroid.IndexV1Updater;
+import org.fdroid.fdroid.TestUtils;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.JarFile;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {LOLLIPOP_MR1})
+public class IndexV1ReaderTest {
+    private static final long REPO_ID = 3;
+
+    /**
+     * The hand-written reader has to come up with exactly what Jackson's databinding
+     * makes of the annotations on {@link App} and {@link Apk}.
+     */
+    @Test
+    public void readsLikeDatabinding() throws IOException {
+        File index = TestUtils.copyResourceToTempFile("index-v1_packages-first.jar");
+        JarFile jarFile = new JarFile(index);
+        ObjectMapper mapper = IndexV1Updater.getObjectMapperInstance(REPO_ID);
+        IndexV1Reader reader = new IndexV1Reader(REPO_ID);
+        List<App> apps = new ArrayList<>();
+        List<App> databoundApps = new ArrayList<>();
+        List<Apk> apks = new ArrayList<>();
+        List<Apk> databoundApks = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            JsonParser parser = mapper.getFactory().createParser(
+                    jarFile.getInputStream(jarFile.getEntry(IndexV1Updater.DATA_FILE_NAME)));
+            parser.nextToken();
+            String fieldName;
+            while ((fieldName = parser.nextFieldName()) != null) {
+                parser.nextToken();
+                if ("apps".equals(fieldName)) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        if (i == 0) {
+                            apps.add(reader.readApp(parser));
+                        } else {
+                            databoundApps.add(mapper.readValue(parser, App.class));
+                        }
+                    }
+                } else if ("packages".equals(fieldName)) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String packageName = parser.getCurrentName();
+                        parser.nextToken();
+                        if (i == 0) {
+                            apks.addAll(reader.readApks(parser, packageName));
+                        } else {
+                            List<Apk> list = mapper.readValue(parser, new TypeReference<List<Apk>>() {
+                            });
+                            for (Apk apk : list) {
+                                if (apk.packageName == null) {
+                                    apk.packageName = packageName;
+                                }
+                            }
+                            databoundApks.addAll(list);
+                        }
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            parser.close();
+        }
+        jarFile.close();
+        index.delete();
+
+        assertThat(apps).hasSize(2);
+        assertThat(apps).hasSize(databoundApps.size());
+        for (int i = 0; i < apps.size(); i++) {
+            assertThat(apps.get(i).toContentValues()).isEqualTo(databoundApps.get(i).toContentValues());
+        }
+        assertThat(apks).isNotEmpty();
+        assertThat(apks).hasSize(databoundApks.size());
+        for (int i = 0; i < apks.size(); i++) {
+            assertThat(apks.get(i).toContentValues()).isEqualTo(databoundApks.get(i).toContentValues());
+            assertThat(apks.get(i).requestedPermissions)
+                    .asList().containsExactlyElementsIn(databoundApks.get(i).requestedPermissions);
+        }
+    }
+
+    @Test
+    public void ignoresInternalFields() throws IOException {
+        String json = "{\"packageName\": \"org.example\", \"compatible\": true, \"id\": 5,"
+                + " \"preferredSigner\": \"abc\", \"isApk\": true, \"repoId\": 99,"
+                + " \"suggestedVersionCode\": \"12\", \"unknown\": {\"nested\": [1, 2]}}";
+        JsonParser parser = new ObjectMapper().getFactory().createParser(json);
+        parser.nextToken();
+        App app = new IndexV1Reader(REPO_ID).readApp(parser);
+        assertThat(app.packageName).isEqualTo("org.example");
+        assertThat(app.compatible).isFalse();
+        assertThat(app.getId()).isEqualTo(0);
+        assertThat(app.preferredSigner).isNull();
+        assertThat(app.isApk).isFalse();
+        assertThat(app.repoId).isEqualTo(REPO_ID);
+        assertThat(app.upstreamVersionCode).isEqualTo(12);
+
+        json = "[{\"versionCode\": 2, \"appId\": 7, \"compatible\": true,"
+                + " \"incompatibleReasons\": [\"none\"], \"repoAddress\": \"https://evil\"}]";
+        parser = new ObjectMapper().getFactory().createParser(json);
+        parser.nextToken();
+        Apk apk = new IndexV1Reader(REPO_ID).readApks(parser, "org.example").get(0);
+        assertThat(apk.packageName).isEqualTo("org.example");
+        assertThat(apk.versionCode).isEqualTo(2);
+        assertThat(apk.appId).isEqualTo(0);
+        assertThat(apk.compatible).isFalse();
+        assertThat(apk.incompatibleReasons).isNull();
+        assertThat(apk.repoAddress).isNull();
+    }
+
+    @Test
+    public void sharesRepeatedTokens() throws IOException {
+        String json = "[{\"versionCode\": 1, \"nativecode\": [\"arm64-v8a\", \"x86\"],"
+                + " \"uses-permission\": [[\"android.permission.INTERNET\", null]]},"
+                + " {\"versionCode\": 2, \"nativecode\": [\"arm64-v8a\", \"x86\"],"
+                + " \"uses-permission\": [[\"android.permission.INTERNET\", null]]},"
+                + " {\"versionCode\": 3, \"nativecode\": [\"x86\"], \"uses-permission\": []}]";
+        JsonParser parser = new ObjectMapper().getFactory().createParser(json);
+        parser.nextToken();
+        List<Apk> apks = new IndexV1Reader(REPO_ID).readApks(parser, "org.example");
+        assertThat(apks).hasSize(3);
+        assertThat(apks.get(1).nativecode).isSameInstanceAs(apks.get(0).nativecode);
+        assertThat(apks.get(1).requestedPermissions).isSameInstanceAs(apks.get(0).requestedPermissions);
+        assertThat(apks.get(1).requestedPermissions).asList().containsExactly("android.permission.INTERNET");
+        assertThat(apks.get(2).nativecode).asList().containsExactly("x86");
+        assertThat(apks.get(2).nativecode[0]).isSameInstanceAs(apks.get(0).nativecode[1]);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnsafePackageName() throws IOException {
+        JsonParser parser = new ObjectMapper().getFactory().createParser("{\"packageName\": \"../evil\"}");
+        parser.nextToken();
+        new IndexV1Reader(REPO_ID).readApp(parser);
+    }
+}
@@ -44,38 +44,38 @@ public class LocaleSelectionTest {
         // Easy mode. en-US metadata with an en-US locale
         Locale.setDefault(new Locale("en", "US"));
         app = new App();
-        app.setLocalized(localized);
+        app.resolveLocalized(localized);
         assertThat(app.summary).matches("summary-en_US");
 
         // Fall back to en-US locale, when we have a different en locale
         Locale.setDefault(new Locale("en", "UK"));
         app = new App();
-        app.setLocalized(localized);
+        app.resolveLocalized(localized);
         assertThat(app.summary).matches("summary-en_US");
 
         // Fall back to language only
         Locale.setDefault(new Locale("en", "UK"));
         app = new App();
-        app.setLocalized(localized);
+        app.resolveLocalized(localized);
         assertThat(app.summary).matches("summary-en_US");
 
         // select the correct one out of multiple language locales
         Locale.setDefault(new Locale("de", "DE"));
         app = new App();
-        app.setLocalized(localized);
+        app.resolveLocalized(localized);
         assertThat(app.summary).matches("summary-de_DE");
 
         // Even when we have a non-exact matching locale, we should fall back to the same language
         // TODO: We really should be falling back to de-DE herem but we currently don't
         Locale.setDefault(new Locale("de", "CH"));
         app = new App();
-        app.setLocalized(localized);
+        app.resolveLocalized(localized);
         assertThat(app.summary).matches("summary-de_..");
 
         // Test fallback to base lang with not exact matching locale
         Locale.setDefault(new Locale("sv", "SE"));
         app = new App();
-        app.setLocalized(localized);
+        app.resolveLocalized(localized);
         assertThat(app.summary).matches("summary-sv");
     }
 
@@ -94,7 +94,7 @@ public class LocaleSelectionTest {
 
         //no metadata present
         Map<String, Map<String, Object>> localized = new HashMap<>();
-        app.setLocalized(localized);
+        app.resolveLocalized(localized);
         assertThat(app.summary).matches("Unknown application");
 
         HashMap<String, Object> en_US = new HashMap<>();
@@ -110,13 +110,13 @@ public class LocaleSelectionTest {
         localized.put("de-AT", de_AT);
         localized.put("de-DE", de_DE);
         localized.put("en-US", en_US);
-        app.setLocalized(localized);
+        app.resolveLocalized(localized);
         // just select the matching en-US locale, nothing special here
         assertThat(app.summary).matches("summary-en_US");
 
         Locale.setDefault(new Locale("en", "SE"));
         doReturn("en-SE,de-DE").when(app).getLocales();
-        app.setLocalized(localized);
+        app.resolveLocalized(localized);
         // Fall back to another en locale before de
         assertThat(app.summary).matches("summary-en_US");
 
@@ -129,7 +129,7 @@ public class LocaleSelectionTest {
 
         Locale.setDefault(new Locale("de", "AT"));
         doReturn("de-AT,de-DE").when(app).getLocales();
-        app.setLocalized(localized);
+        app.resolveLocalized(localized);
         // full match against a non-default locale
         assertThat(app.summary).matches("summary-de_AT");
 
@@ -142,7 +142,7 @@ public class LocaleSelectionTest {
 
         Locale.setDefault(new Locale("de", "CH"));
         doReturn("de-CH,en-US").when(app).getLocales();
-        app.setLocalized(localized);
+        app.resolveLocalized(localized);
         // TODO: We should fall back to `de` and not another de-XX locale
         assertThat(app.summary).matches("summary-de_..");
 
@@ -153,7 +153,7 @@ public class LocaleSelectionTest {
 
         Locale.setDefault(new Locale("en", "AU"));
         doReturn("en-AU").when(app).getLocales();
-        app.setLocalized(localized);
+        app.resolveLocalized(localized);
         // TODO: Hard mode: en_AU is closer to en_GB than en_US...
         assertThat(app.summary).matches("summary-en_..");
 
@@ -163,7 +163,7 @@ public class LocaleSelectionTest {
         localized.clear();
         localized.put("en", en_GB);
         localized.put("en-US", en_US);
-        app.setLocalized(localized);
+        app.resolveLocalized(localized);
         //No match at all, fall back to an english locale
         assertThat(app.summary).matches("summary-en_..");
 
@@ -177,7 +177,7 @@ public class LocaleSelectionTest {
         localized.put("en-US", en_US);
         localized.put("zh-CN", zh_CN);
         localized.put("zh-TW", zh_TW);
-        app.setLocalized(localized);
+        app.resolveLocalized(localized);
         //TODO: We should match a chinese locale here...
         //assertThat(app.summary).matches("summary-zh_TW");
 
@@ -185,7 +185,7 @@ public class LocaleSelectionTest {
         localized.clear();
         localized.put("en-US", en_US);
         localized.put("zh-CN", zh_CN);
-        app.setLocalized(localized);
+        app.resolveLocalized(localized);
         //TODO: We should match a chinese locale here...
         //assertThat(app.summary).matches("summary-zh_CN");
     }
@@ -0,0 +1,127 @@
+package org.fdroid.fdroid.data;
+
+import static android.os.Build.VERSION_CODES.LOLLIPOP_MR1;
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.ContextWrapper;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.fdroid.fdroid.TestUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {LOLLIPOP_MR1})
+public class MirrorHealthTest {
+
+    private static final String ADDRESS = "https://example.com/fdroid/repo";
+    private static final String FAST = "https://fast.example.org/fdroid/repo";
+    private static final String SLOW = "https://slow.example.net/fdroid/repo";
+    private static final String APK = "/org.example_1.apk";
+
+    private ContextWrapper context;
+    private Repo repo;
+
+    @Before
+    public void setUp() {
+        ContentResolver contentResolver = ApplicationProvider.getApplicationContext().getContentResolver();
+        context = TestUtils.createContextWithContentResolver(contentResolver);
+        ContentValues values = new ContentValues(3);
+        values.put(Schema.RepoTable.Cols.ADDRESS, ADDRESS);
+        values.put(Schema.RepoTable.Cols.NAME, "Mirrored");
+        values.put(Schema.RepoTable.Cols.MIRRORS, ADDRESS + "," + FAST + "," + SLOW);
+        RepoProvider.Helper.insert(context, values);
+        repo = RepoProvider.Helper.findByAddress(context, ADDRESS);
+        MirrorHealth.clearCache();
+    }
+
+    /**
+     * @return how often each mirror came first
+     */
+    private Map<String, Integer> countFirstMirrors() throws IOException {
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 200; i++) {
+            String urlString = MirrorHealth.getFailover(context, repo.getId(), ADDRESS + APK, false).next();
+            String mirror = urlString.substring(0, urlString.length() - APK.length());
+            Integer count = counts.get(mirror);
+            counts.put(mirror, count == null ? 1 : count + 1);
+        }
+        return counts;
+    }
+
+    @Test
+    public void fastAndReliableMirrorGoesFirst() throws IOException {
+        MirrorHealth.onSuccess(context, repo.getId(), SLOW + APK, 2000, 50 * 1024);
+        MirrorHealth.onSuccess(context, repo.getId(), FAST + APK, 100, 2 * 1024 * 1024);
+        MirrorHealth.onFailure(context, repo.getId(), ADDRESS + APK);
+        MirrorHealth.onFailure(context, repo.getId(), ADDRESS + APK);
+
+        Map<String, Integer> counts = countFirstMirrors();
+        assertThat(counts.get(FAST)).isGreaterThan(150);
+        // the others are still tried first once in a while
+        assertThat(counts.keySet()).containsExactly(ADDRESS, FAST, SLOW);
+
+        MirrorHealth.clearCache();
+        assertThat(countFirstMirrors().get(FAST)).isGreaterThan(150);
+    }
+
+    @Test
+    public void failingMirrorLosesItsPlace() throws IOException {
+        MirrorHealth.onSuccess(context, repo.getId(), FAST + APK, 100, 2 * 1024 * 1024);
+        for (int i = 0; i < 10; i++) {
+            MirrorHealth.onFailure(context, repo.getId(), FAST + APK);
+        }
+        assertThat(countFirstMirrors().get(FAST)).isLessThan(50);
+    }
+
+    @Test
+    public void failoverTriesEveryMirrorWithLongerTimeouts() throws IOException {
+        MirrorHealth.onSuccess(context, repo.getId(), SLOW + APK, 20000, -1);
+        MirrorHealth.Failover failover = MirrorHealth.getFailover(context, repo.getId(), ADDRESS + APK, true);
+        List<String> urls = new ArrayList<>();
+        List<Integer> timeouts = new ArrayList<>();
+        for (int i = 0; i < 9; i++) {
+            urls.add(failover.next());
+            timeouts.add(failover.getTimeout());
+            if (urls.get(i).startsWith(SLOW)) {
+                assertThat(timeouts.get(i)).isEqualTo(60000);
+            } else {
+                assertThat(timeouts.get(i)).isEqualTo(MirrorHealth.TIMEOUTS[i / 3]);
+            }
+        }
+        assertThat(urls.get(0)).isEqualTo(ADDRESS + APK);
+        assertThat(urls.subList(0, 3)).containsExactly(ADDRESS + APK, FAST + APK, SLOW + APK);
+        assertThat(urls.subList(3, 6)).isEqualTo(urls.subList(0, 3));
+        try {
+            failover.next();
+            throw new AssertionError("there should be no mirror left to try");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void urlFromElsewhereIsTriedOnce() throws IOException {
+        String urlString = "https://elsewhere.example.com/file.obb";
+        MirrorHealth.Failover failover = MirrorHealth.getFailover(context, repo.getId(), urlString, false);
+        assertThat(failover.next()).isEqualTo(urlString);
+        try {
+            failover.next();
+            throw new AssertionError("there should be no mirror left to try");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package org.fdroid.fdroid.data;
+
+import static android.os.Build.VERSION_CODES.LOLLIPOP_MR1;
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContextWrapper;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.fdroid.fdroid.TestUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks that {@link TempTableBulkWriter} stores exactly what inserting through
+ * {@link TempAppProvider} and {@link TempApkProvider} does.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {LOLLIPOP_MR1})
+public class TempTableBulkWriterTest {
+
+    private static final int APP_COUNT = 1000;
+    private static final int APKS_PER_APP = 5;
+
+    private ContextWrapper context;
+    private Repo repo;
+
+    @Before
+    public void setUp() {
+        ContentResolver contentResolver = ApplicationProvider.getApplicationContext().getContentResolver();
+        context = TestUtils.createContextWithContentResolver(contentResolver);
+        TestUtils.registerContentProvider(AppProvider.getAuthority(), AppProvider.class);
+        repo = IndexUpdaterTest.createRepo("Bulk", "https://example.com/bulk/repo", context, null);
+    }
+
+    @Test
+    public void writesSameRowsAsContentProviders() throws Exception {
+        TempAppProvider.Helper.init(context, repo.getId());
+        writeThroughContentProviders();
+        Map<String, List<String>> fromProviders = dumpTempTables();
+
+        TempAppProvider.Helper.init(context, repo.getId());
+        TempTableBulkWriter writer = new TempTableBulkWriter(context);
+        Map<String, Long> appIds = writer.insertApps(createApps());
+        writer.insertApks(createApks(appIds));
+        writer.close();
+        Map<String, List<String>> fromBulkWriter = dumpTempTables();
+        List<String> hashes = getContentHashes();
+
+        assertThat(fromProviders.get(TempAppProvider.TABLE_TEMP_APP)).hasSize(APP_COUNT);
+        assertThat(fromProviders.get(TempApkProvider.TABLE_TEMP_APK)).hasSize(APP_COUNT * APKS_PER_APP);
+        assertThat(appIds).isEqualTo(getAppIds());
+        assertThat(fromBulkWriter).isEqualTo(fromProviders);
+        assertThat(hashes).hasSize(APP_COUNT);
+        assertThat(hashes).containsNoDuplicates();
+    }
+
+    private void writeThroughContentProviders() throws Exception {
+        ArrayList<ContentProviderOperation> appOperations = new ArrayList<>();
+        for (App app : createApps()) {
+            appOperations.add(ContentProviderOperation.newInsert(TempAppProvider.getContentUri())
+                    .withValues(app.toContentValues()).build());
+        }
+        context.getContentResolver().applyBatch(TempAppProvider.getAuthority(), appOperations);
+
+        ArrayList<ContentProviderOperation> apkOperations = new ArrayList<>();
+        for (List<Apk> apks : createApks(getAppIds()).values()) {
+            for (Apk apk : apks) {
+                apkOperations.add(ContentProviderOperation.newInsert(TempApkProvider.getContentUri())
+                        .withValues(apk.toContentValues()).build());
+            }
+        }
+        context.getContentResolver().applyBatch(TempApkProvider.getAuthority(), apkOperations);
+    }
+
+    private List<App> createApps() {
+        List<App> apps = new ArrayList<>(APP_COUNT);
+        for (int i = 0; i < APP_COUNT; i++) {
+            App app = new App();
+            app.packageName = "org.example.app" + i;
+            app.repoId = repo.getId();
+            app.name = "App " + i + "\n";
+            app.summary = " Summary of app " + i;
+            app.license = "GPL-3.0-or-later";
+            app.webSite = "https://example.com/" + i;
+            app.added = new Date(1600000000000L);
+            app.lastUpdated = new Date(1600000000000L + i);
+            app.upstreamVersionCode = i;
+            app.categories = new String[]{"Development", i % 2 == 0 ? "Games" : "Internet", "Development"};
+            app.phoneScreenshots = new String[]{"1.png", "2.png"};
+            apps.add(app);
+        }
+        return apps;
+    }
+
+    private Map<String, List<Apk>> createApks(Map<String, Long> appIds) {
+        Map<String, List<Apk>> apksByPackage = new LinkedHashMap<>(APP_COUNT);
+        for (int i = 0; i < APP_COUNT; i++) {
+            List<Apk> apks = new ArrayList<>(APKS_PER_APP);
+            for (int versionCode = 1; versionCode <= APKS_PER_APP; versionCode++) {
+                Apk apk = new Apk();
+                apk.packageName = "org.example.app" + i;
+                apk.appId = appIds.get(apk.packageName);
+                apk.repoId = repo.getId();
+                apk.versionCode = versionCode;
+                apk.versionName = "1." + versionCode;
+                apk.apkName = apk.packageName + "_" + versionCode + ".apk";
+                apk.hash = "abcdef" + i + versionCode;
+                apk.hashType = "sha256";
+                apk.sig = "0123456789abcdef";
+                apk.size = 1024 * i;
+                apk.minSdkVersion = 14;
+                apk.added = new Date(1600000000000L);
+                apk.requestedPermissions = new String[]{"android.permission.INTERNET"};
+                apk.nativecode = versionCode % 2 == 0 ? new String[]{"arm64-v8a", "x86_64"} : null;
+                apk.antiFeatures = versionCode == 1 ? new String[]{"Ads", "Tracking"} : null;
+                apk.compatible = versionCode % 2 != 0;
+                apks.add(apk);
+            }
+            apksByPackage.put("org.example.app" + i, apks);
+        }
+        return apksByPackage;
+    }
+
+    private Map<String, Long> getAppIds() {
+        SQLiteDatabase db = DBHelper.getInstance(context).getWritableDatabase();
+        Map<String, Long> ids = new HashMap<>();
+        Cursor cursor = db.rawQuery("SELECT app.rowid, pkg.packageName FROM " + TempAppProvider.TABLE_TEMP_APP
+                + " AS app JOIN " + Schema.PackageTable.NAME + " AS pkg ON (pkg.rowid = app.packageId)", null);
+        while (cursor.moveToNext()) {
+            ids.put(cursor.getString(1), cursor.getLong(0));
+        }
+        cursor.close();
+        return ids;
+    }
+
+    private List<String> getContentHashes() {
+        SQLiteDatabase db = DBHelper.getInstance(context).getWritableDatabase();
+        Cursor cursor = db.rawQuery("SELECT " + Schema.AppMetadataTable.Cols.CONTENT_HASH
+                + " FROM " + TempAppProvider.TABLE_TEMP_APP + " WHERE " + Schema.AppMetadataTable.Cols.CONTENT_HASH + " IS NOT NULL", null);
+        List<String> hashes = new ArrayList<>(cursor.getCount());
+        while (cursor.moveToNext()) {
+            hashes.add(cursor.getString(0));
+        }
+        cursor.close();
+        return hashes;
+    }
+
+    /**
+     * Leaves out {@link Schema.AppMetadataTable.Cols#CONTENT_HASH}, which is only
+     * written by {@link TempTableBulkWriter}.
+     */
+    private Map<String, List<String>> dumpTempTables() {
+        Map<String, List<String>> tables = new HashMap<>();
+        for (String table : new String[]{
+                TempAppProvider.TABLE_TEMP_APP,
+                TempAppProvider.TABLE_TEMP_CAT_JOIN,
+                TempApkProvider.TABLE_TEMP_APK,
+                TempAppProvider.TABLE_TEMP_APK_ANTI_FEATURE_JOIN,
+        }) {
+            tables.put(table, dumpTable(table));
+        }
+        return tables;
+    }
+
+    private List<String> dumpTable(String table) {
+        SQLiteDatabase db = DBHelper.getInstance(context).getWritableDatabase();
+        Cursor cursor = db.rawQuery("SELECT rowid, * FROM " + table + " ORDER BY rowid", null);
+        List<String> rows = new ArrayList<>(cursor.getCount());
+        while (cursor.moveToNext()) {
+            StringBuilder row = new StringBuilder();
+            for (int i = 0; i < cursor.getColumnCount(); i++) {
+                if (Schema.AppMetadataTable.Cols.CONTENT_HASH.equals(cursor.getColumnName(i))) {
+                    continue;
+                }
+                row.append(cursor.getColumnName(i)).append('=').append(cursor.getString(i)).append(' ');
+            }
+            rows.add(row.toString());
+        }
+        cursor.close();
+        return rows;
+    }
+}
@@ -0,0 +1,178 @@
+package org.fdroid.fdroid.net;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class DownloadSchedulerTest {
+
+    private final List<String> started = new CopyOnWriteArrayList<>();
+    private final List<String> removed = new CopyOnWriteArrayList<>();
+    private CountDownLatch idle;
+    private DownloadScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        idle = new CountDownLatch(1);
+        scheduler = new DownloadScheduler(2, 1, Executors.defaultThreadFactory(), new Runnable() {
+            @Override
+            public void run() {
+                idle.countDown();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    /**
+     * Runs until it is {@link #release()}d or cancelled.
+     */
+    private class BlockingTask extends DownloadScheduler.Task {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final CountDownLatch running = new CountDownLatch(1);
+
+        BlockingTask(String key, String host, int priority, long size) {
+            super(key, host, priority, size);
+        }
+
+        @Override
+        public void run() {
+            started.add(key);
+            running.countDown();
+            try {
+                done.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        void onRemoved() {
+            removed.add(key);
+        }
+
+        @Override
+        void cancel() {
+            release();
+        }
+
+        void release() {
+            done.countDown();
+        }
+
+        void awaitRunning() throws InterruptedException {
+            assertThat(running.await(10, TimeUnit.SECONDS)).isTrue();
+        }
+    }
+
+    private void awaitIdle() throws InterruptedException {
+        assertThat(idle.await(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(scheduler.isIdle()).isTrue();
+    }
+
+    @Test
+    public void higherPriorityAndSmallerFilesGoFirst() throws InterruptedException {
+        BlockingTask blockA = new BlockingTask("blockA", "a", DownloaderService.PRIORITY_USER, 1);
+        BlockingTask blockB = new BlockingTask("blockB", "b", DownloaderService.PRIORITY_USER, 1);
+        scheduler.queue(blockA);
+        blockA.awaitRunning();
+        scheduler.queue(blockB);
+        blockB.awaitRunning();
+
+        BlockingTask obb = new BlockingTask("obb", "a", DownloaderService.PRIORITY_OBB, 1);
+        BlockingTask unknownSize = new BlockingTask("unknownSize", "a", DownloaderService.PRIORITY_AUTO_UPDATE, 0);
+        BlockingTask big = new BlockingTask("big", "a", DownloaderService.PRIORITY_AUTO_UPDATE, 50000000);
+        BlockingTask small = new BlockingTask("small", "a", DownloaderService.PRIORITY_AUTO_UPDATE, 100000);
+        BlockingTask user = new BlockingTask("user", "a", DownloaderService.PRIORITY_USER, 50000000);
+        for (BlockingTask task : new BlockingTask[]{obb, unknownSize, big, small, user}) {
+            scheduler.queue(task);
+            task.release();
+        }
+        blockB.release();
+        assertThat(scheduler.contains("obb")).isTrue();
+        blockA.release();
+
+        awaitIdle();
+        assertThat(started).containsExactly("blockA", "blockB", "user", "small", "big", "unknownSize", "obb")
+                .inOrder();
+    }
+
+    @Test
+    public void limitsDownloadsPerHostAndKey() throws InterruptedException {
+        BlockingTask first = new BlockingTask("first", "a", DownloaderService.PRIORITY_USER, 0);
+        BlockingTask sameKey = new BlockingTask("first", "b", DownloaderService.PRIORITY_USER, 0);
+        BlockingTask sameHost = new BlockingTask("sameHost", "a", DownloaderService.PRIORITY_USER, 0);
+        BlockingTask otherHost = new BlockingTask("otherHost", "c", DownloaderService.PRIORITY_USER, 0);
+        scheduler.queue(first);
+        first.awaitRunning();
+        scheduler.queue(sameKey);
+        scheduler.queue(sameHost);
+        scheduler.queue(otherHost);
+        otherHost.awaitRunning();
+        assertThat(started).containsExactly("first", "otherHost").inOrder();
+        assertThat(scheduler.isRunning("sameHost")).isFalse();
+
+        otherHost.release();
+        first.release();
+        sameKey.awaitRunning();
+        sameHost.awaitRunning();
+        sameKey.release();
+        sameHost.release();
+
+        awaitIdle();
+        assertThat(started).hasSize(4);
+    }
+
+    @Test
+    public void extraConnectionsCountPerHost() throws InterruptedException {
+        BlockingTask first = new BlockingTask("first", "a", DownloaderService.PRIORITY_USER, 0);
+        BlockingTask sameHost = new BlockingTask("sameHost", "b", DownloaderService.PRIORITY_USER, 0);
+        scheduler.queue(first);
+        first.awaitRunning();
+        assertThat(scheduler.acquireConnection("a")).isFalse();
+        assertThat(scheduler.acquireConnection("b")).isTrue();
+        assertThat(scheduler.acquireConnection("b")).isFalse();
+
+        scheduler.queue(sameHost);
+        assertThat(scheduler.isRunning("sameHost")).isFalse();
+        scheduler.releaseConnection("b");
+        sameHost.awaitRunning();
+
+        first.release();
+        sameHost.release();
+        awaitIdle();
+        assertThat(started).containsExactly("first", "sameHost").inOrder();
+    }
+
+    @Test
+    public void cancelRemovesQueuedOrStopsRunning() throws InterruptedException {
+        BlockingTask running = new BlockingTask("running", "a", DownloaderService.PRIORITY_USER, 0);
+        BlockingTask queued = new BlockingTask("queued", "a", DownloaderService.PRIORITY_USER, 0);
+        scheduler.queue(running);
+        scheduler.queue(queued);
+        running.awaitRunning();
+        assertThat(scheduler.contains("queued")).isTrue();
+        assertThat(scheduler.isRunning("queued")).isFalse();
+
+        assertThat(scheduler.cancel("queued")).isTrue();
+        assertThat(removed).containsExactly("queued");
+        assertThat(scheduler.contains("queued")).isFalse();
+
+        assertThat(scheduler.cancel("running")).isTrue();
+        awaitIdle();
+        assertThat(started).containsExactly("running");
+        assertThat(scheduler.contains("running")).isFalse();
+        assertThat(scheduler.cancel("running")).isFalse();
+    }
+}
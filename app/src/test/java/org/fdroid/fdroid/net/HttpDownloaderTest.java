@@ -0,0 +1,189 @@
+package org.fdroid.fdroid.net;
+
+import static android.os.Build.VERSION_CODES.LOLLIPOP_MR1;
+import static com.google.common.truth.Truth.assertThat;
+
+import android.net.Uri;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Runs {@link HttpDownloader} against a local HTTP server which takes
+ * {@link #LATENCY_MILLIS} to answer each request, like a slow connection or Tor would.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {LOLLIPOP_MR1})
+public class HttpDownloaderTest {
+    private static final int LATENCY_MILLIS = 100;
+    private static final String ETAG = "\"5f6a1b2c-1000\"";
+    private static final byte[] BODY = new byte[100000];
+
+    static {
+        Arrays.fill(BODY, (byte) 'x');
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+    private final Set<Integer> clientPorts = new CopyOnWriteArraySet<>();
+    private HttpServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        boolean sentEtag = exchange.getRequestHeaders().containsKey("If-None-Match");
+        requests.add(exchange.getRequestMethod() + (range == null ? "" : " " + range)
+                + (sentEtag ? " with etag!" : ""));
+        clientPorts.add(exchange.getRemoteAddress().getPort());
+        try {
+            Thread.sleep(LATENCY_MILLIS);
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+        if (!exchange.getRequestURI().getPath().endsWith("/index-v1.jar")) {
+            byte[] errorPage = "<html><body>404 Not Found</body></html>".getBytes();
+            exchange.sendResponseHeaders(404, errorPage.length);
+            exchange.getResponseBody().write(errorPage);
+            exchange.close();
+            return;
+        }
+        int offset = 0;
+        if (range != null) {
+            offset = Integer.parseInt(range.replaceAll("[^0-9]", ""));
+        }
+        exchange.getResponseHeaders().add("ETag", ETAG);
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.getResponseHeaders().add("Content-Length", String.valueOf(BODY.length));
+            exchange.sendResponseHeaders(200, -1);
+        } else {
+            exchange.sendResponseHeaders(offset == 0 ? 200 : 206, BODY.length - offset);
+            OutputStream body = exchange.getResponseBody();
+            try {
+                body.write(BODY, offset, BODY.length - offset);
+            } catch (IOException e) {
+                // the client hung up without reading the body
+            }
+        }
+        exchange.close();
+    }
+
+    private HttpDownloader createDownloader(String path, File outputFile) throws IOException {
+        Uri uri = Uri.parse("http://127.0.0.1:" + server.getAddress().getPort() + path);
+        return new HttpDownloader(uri, outputFile);
+    }
+
+    @Test
+    public void unchangedEtagNeedsOneRequest() throws IOException, InterruptedException {
+        File outputFile = folder.newFile();
+        HttpDownloader downloader = createDownloader("/repo/index-v1.jar", outputFile);
+        downloader.setCacheTag(ETAG);
+        downloader.download();
+
+        assertThat(downloader.hasChanged()).isFalse();
+        assertThat(outputFile.length()).isEqualTo(0);
+        assertThat(requests).containsExactly("GET");
+    }
+
+    @Test
+    public void changedEtagIsDownloadedWithTheSameRequest() throws IOException, InterruptedException {
+        File outputFile = folder.newFile();
+        HttpDownloader downloader = createDownloader("/repo/index-v1.jar", outputFile);
+        downloader.setCacheTag("\"older\"");
+        downloader.download();
+
+        assertThat(downloader.hasChanged()).isTrue();
+        assertThat(downloader.getCacheTag()).isEqualTo(ETAG);
+        assertThat(Files.toByteArray(outputFile)).isEqualTo(BODY);
+        assertThat(requests).containsExactly("GET");
+    }
+
+    @Test
+    public void streamingNeedsOneRequest() throws IOException, InterruptedException {
+        HttpDownloader downloader = createDownloader("/repo/index-v1.jar", folder.newFile());
+        downloader.setCacheTag(ETAG);
+        assertThat(downloader.downloadAsStream()).isNull();
+        assertThat(downloader.isNotFound()).isFalse();
+
+        downloader = createDownloader("/repo/missing.jar", folder.newFile());
+        assertThat(downloader.downloadAsStream()).isNull();
+        assertThat(downloader.isNotFound()).isTrue();
+        assertThat(requests).containsExactly("GET", "GET");
+    }
+
+    @Test
+    public void partialDownloadIsResumed() throws IOException, InterruptedException {
+        File outputFile = folder.newFile();
+        Files.write(Arrays.copyOf(BODY, 1000), outputFile);
+        HttpDownloader downloader = createDownloader("/repo/index-v1.jar", outputFile);
+        downloader.download();
+
+        assertThat(downloader.hasChanged()).isTrue();
+        assertThat(Files.toByteArray(outputFile)).isEqualTo(BODY);
+        assertThat(requests).containsExactly("HEAD", "GET bytes=1000-").inOrder();
+    }
+
+    @Test
+    public void notFoundKeepsTheConnection() throws IOException, InterruptedException {
+        HttpDownloader downloader = createDownloader("/repo/missing.jar", folder.newFile());
+        assertThat(downloader.downloadAsStream()).isNull();
+        downloader.close();
+
+        File outputFile = folder.newFile();
+        createDownloader("/repo/index-v1.jar", outputFile).download();
+        assertThat(Files.toByteArray(outputFile)).isEqualTo(BODY);
+        assertThat(requests).hasSize(2);
+        assertThat(clientPorts).hasSize(1);
+    }
+
+    /**
+     * Like loading a screen full of icons, which should not need a connection for each.
+     */
+    @Test
+    public void connectionsAreReused() throws IOException {
+        for (int i = 0; i < 10; i++) {
+            InputStream inputStream = createDownloader("/repo/index-v1.jar", null).getInputStream();
+            try {
+                assertThat(ByteStreams.toByteArray(inputStream)).isEqualTo(BODY);
+            } finally {
+                inputStream.close();
+            }
+        }
+        assertThat(requests).hasSize(10);
+        assertThat(clientPorts).hasSize(1);
+    }
+}
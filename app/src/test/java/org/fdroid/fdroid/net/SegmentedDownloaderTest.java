@@ -0,0 +1,301 @@
+package org.fdroid.fdroid.net;
+
+import static android.os.Build.VERSION_CODES.LOLLIPOP_MR1;
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.google.common.io.Files;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.fdroid.fdroid.TestUtils;
+import org.fdroid.fdroid.data.MirrorHealth;
+import org.fdroid.fdroid.data.Repo;
+import org.fdroid.fdroid.data.RepoProvider;
+import org.fdroid.fdroid.data.Schema;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs {@link SegmentedDownloader} against local HTTP servers, which stand in for a
+ * repo and its mirrors, and which can be made slow or broken.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {LOLLIPOP_MR1})
+public class SegmentedDownloaderTest {
+    private static final byte[] BODY = new byte[5 * SegmentedDownloader.SEGMENT_SIZE + 12345];
+
+    static {
+        new Random(42).nextBytes(BODY);
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Context context = TestUtils.createContextWithContentResolver(
+            ApplicationProvider.getApplicationContext().getContentResolver());
+    private final List<Server> servers = new ArrayList<>();
+    private final List<Thread> threads = new CopyOnWriteArrayList<>();
+    private final DownloadScheduler scheduler = new DownloadScheduler(3, 1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "SegmentedDownloaderTest-" + threads.size());
+            threads.add(thread);
+            return thread;
+        }
+    }, new Runnable() {
+        @Override
+        public void run() {
+        }
+    });
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+        for (Server server : servers) {
+            server.httpServer.stop(0);
+        }
+    }
+
+    /**
+     * Serves {@link #BODY}, sleeping for {@code millisPer64k} after every 64k it sends.
+     */
+    private class Server {
+        final HttpServer httpServer;
+        final int millisPer64k;
+        final AtomicLong bytesSent = new AtomicLong();
+        final AtomicInteger requests = new AtomicInteger();
+        boolean supportsRanges = true;
+        byte[] body = BODY;
+        String etag = "\"abc-" + servers.size() + "\"";
+
+        Server(int millisPer64k) throws IOException {
+            this.millisPer64k = millisPer64k;
+            httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            httpServer.createContext("/", this::handle);
+            httpServer.setExecutor(Executors.newCachedThreadPool());
+            httpServer.start();
+            servers.add(this);
+        }
+
+        HttpDownloader createDownloader() throws IOException {
+            Uri uri = Uri.parse(getAddress() + "/big.apk");
+            return new HttpDownloader(uri, null);
+        }
+
+        String getAddress() {
+            return "http://" + getHost() + "/repo";
+        }
+
+        String getHost() {
+            return "127.0.0.1:" + httpServer.getAddress().getPort();
+        }
+
+        private void handle(HttpExchange exchange) throws IOException {
+            requests.incrementAndGet();
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+            int start = 0;
+            int end = body.length;
+            int statusCode = 200;
+            if (supportsRanges && range != null && (ifRange == null || ifRange.equals(etag))) {
+                String[] fromTo = range.substring("bytes=".length()).split("-");
+                start = Integer.parseInt(fromTo[0]);
+                end = Math.min(body.length, Integer.parseInt(fromTo[1]) + 1);
+                statusCode = 206;
+                exchange.getResponseHeaders().add("Content-Range",
+                        "bytes " + start + "-" + (end - 1) + "/" + body.length);
+            }
+            exchange.getResponseHeaders().add("ETag", etag);
+            exchange.sendResponseHeaders(statusCode, end - start);
+            OutputStream output = exchange.getResponseBody();
+            try {
+                for (int offset = start; offset < end; offset += 65536) {
+                    int length = Math.min(65536, end - offset);
+                    output.write(body, offset, length);
+                    output.flush();
+                    bytesSent.addAndGet(length);
+                    if (millisPer64k > 0) {
+                        Thread.sleep(millisPer64k);
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                // the client stopped reading, because another server took over
+            }
+            exchange.close();
+        }
+    }
+
+    private SegmentedDownloader createDownloader(Server... servers) throws IOException {
+        return createDownloader(0, servers);
+    }
+
+    private SegmentedDownloader createDownloader(long repoId, Server... servers) throws IOException {
+        List<HttpDownloader> sources = new ArrayList<>();
+        for (Server server : servers) {
+            sources.add(server.createDownloader());
+        }
+        SegmentedDownloader downloader = new SegmentedDownloader(context, Uri.parse(sources.get(0).urlString),
+                new File(folder.getRoot(), "big.apk"), repoId, sources);
+        downloader.setScheduler(scheduler);
+        return downloader;
+    }
+
+    private File download(Server... servers) throws IOException, InterruptedException {
+        return download(0, servers);
+    }
+
+    private File download(long repoId, Server... servers) throws IOException, InterruptedException {
+        SegmentedDownloader downloader = createDownloader(repoId, servers);
+        downloader.download();
+        assertThat(downloader.hasChanged()).isTrue();
+        assertThat(new File(downloader.outputFile.getPath() + ".part").exists()).isFalse();
+        assertThat(threads).isNotEmpty();
+        return downloader.outputFile;
+    }
+
+    @Test
+    public void downloadsFromAllSources() throws IOException, InterruptedException {
+        Server repo = new Server(5);
+        Server mirror = new Server(5);
+        assertThat(Files.toByteArray(download(repo, mirror))).isEqualTo(BODY);
+        assertThat(repo.bytesSent.get()).isGreaterThan(0L);
+        assertThat(mirror.bytesSent.get()).isGreaterThan(0L);
+    }
+
+    /**
+     * Like a congested repo with a fast mirror, which should end up doing most of the work.
+     */
+    @Test
+    public void fasterMirrorTakesOverFromSlowRepo() throws IOException, InterruptedException {
+        Server repo = new Server(200);
+        Server mirror = new Server(0);
+        assertThat(Files.toByteArray(download(repo, mirror))).isEqualTo(BODY);
+        assertThat(mirror.bytesSent.get()).isGreaterThan((long) BODY.length / 2);
+        assertThat(mirror.bytesSent.get()).isGreaterThan(repo.bytesSent.get());
+        assertThat(mirror.requests.get()).isGreaterThan(repo.requests.get());
+    }
+
+    @Test
+    public void brokenMirrorsAreDropped() throws IOException, InterruptedException {
+        Server repo = new Server(5);
+        Server outOfSync = new Server(0);
+        outOfSync.body = new byte[BODY.length - 1];
+        Server noRanges = new Server(0);
+        noRanges.supportsRanges = false;
+        assertThat(Files.toByteArray(download(repo, outOfSync, noRanges))).isEqualTo(BODY);
+    }
+
+    /**
+     * The broken mirror comes before the good one in the list, so it only ends up
+     * last if it was recorded as failing.
+     */
+    @Test
+    public void sourcesAreRecordedInMirrorHealth() throws IOException, InterruptedException {
+        Server repo = new Server(5);
+        Server outOfSync = new Server(0);
+        outOfSync.body = new byte[BODY.length - 1];
+        Server mirror = new Server(5);
+        ContentValues values = new ContentValues(3);
+        values.put(Schema.RepoTable.Cols.ADDRESS, repo.getAddress());
+        values.put(Schema.RepoTable.Cols.NAME, "Mirrored");
+        values.put(Schema.RepoTable.Cols.MIRRORS,
+                repo.getAddress() + "," + outOfSync.getAddress() + "," + mirror.getAddress());
+        RepoProvider.Helper.insert(context, values);
+        Repo dbRepo = RepoProvider.Helper.findByAddress(context, repo.getAddress());
+
+        assertThat(Files.toByteArray(download(dbRepo.getId(), repo, outOfSync, mirror))).isEqualTo(BODY);
+
+        int outOfSyncLast = 0;
+        for (int i = 0; i < 200; i++) {
+            List<String> ranked = MirrorHealth.getRankedMirrors(context, dbRepo);
+            if (ranked.get(ranked.size() - 1).equals(outOfSync.getAddress())) {
+                outOfSyncLast++;
+            }
+        }
+        assertThat(outOfSyncLast).isGreaterThan(150);
+    }
+
+    @Test
+    public void mirrorsTakeOverFromRepoWithoutRanges() throws IOException, InterruptedException {
+        Server repo = new Server(50);
+        repo.supportsRanges = false;
+        Server mirror = new Server(0);
+        assertThat(Files.toByteArray(download(repo, mirror))).isEqualTo(BODY);
+        assertThat(mirror.bytesSent.get()).isGreaterThan(0L);
+    }
+
+    @Test
+    public void busyMirrorIsLeftOut() throws IOException, InterruptedException {
+        Server repo = new Server(5);
+        Server mirror = new Server(0);
+        assertThat(scheduler.acquireConnection(mirror.getHost())).isTrue();
+        assertThat(Files.toByteArray(download(repo, mirror))).isEqualTo(BODY);
+        assertThat(mirror.bytesSent.get()).isEqualTo(0L);
+        assertThat(threads).hasSize(1);
+    }
+
+    @Test
+    public void cancelStopsAllSources() throws IOException, InterruptedException {
+        Server repo = new Server(200);
+        Server mirror = new Server(200);
+        final SegmentedDownloader downloader = createDownloader(repo, mirror);
+        final AtomicReference<Exception> result = new AtomicReference<>();
+        Thread downloadThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    downloader.download();
+                } catch (IOException | InterruptedException e) {
+                    result.set(e);
+                }
+            }
+        });
+        downloadThread.start();
+        for (int i = 0; i < 500 && mirror.bytesSent.get() == 0; i++) {
+            Thread.sleep(10);
+        }
+        downloader.cancelDownload();
+
+        downloadThread.join(5000);
+        assertThat(result.get()).isInstanceOf(InterruptedException.class);
+        assertThat(threads).hasSize(2);
+        for (Thread thread : threads) {
+            thread.join(5000);
+            assertThat(thread.isAlive()).isFalse();
+        }
+        assertThat(downloader.outputFile.exists()).isFalse();
+    }
+
+    @Test(expected = IOException.class)
+    public void failsWhenRepoIsDown() throws IOException, InterruptedException {
+        Server repo = new Server(0);
+        Server mirror = new Server(0);
+        repo.httpServer.stop(0);
+        download(repo, mirror);
+    }
+}